@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman;
+
+import java.util.Collection;
+
+/**
+ * A {@link GearmanPersistence} able to apply many operations at once. The server
+ * batches its writes and deletes, and a store implementing this interface can make
+ * the whole batch durable with a single flush.
+ * @author isaiah
+ */
+public interface GearmanBatchPersistence extends GearmanPersistence {
+	
+	/**
+	 * Removes the deleted items from, and writes the written items to, the persistent
+	 * medium. The server never passes a write and a delete of the same job in one call,
+	 * so the order they're applied in does not matter.<br>
+	 * <br>
+	 * When this method returns, it is guaranteed all operations have completed.
+	 * @param writes
+	 * 		The items to write to a persistent medium
+	 * @param deletes
+	 * 		The items to remove
+	 * @throws Exception
+	 * 		If an exception occurs while writing or removing the items
+	 */
+	public void update(Collection<GearmanPersistable> writes, Collection<GearmanPersistable> deletes) throws Exception;
+}
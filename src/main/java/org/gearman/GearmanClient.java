@@ -176,6 +176,42 @@ public interface GearmanClient extends GearmanService {
 	 */
 	public <A> GearmanJoin<A> submitBackgroundJob(String functionName, byte[] data, GearmanJobPriority priority, A attachment, GearmanJobEventCallback<A> callback);
 	
+	/**
+	 * Submits a background job that the job server will not give to a worker before the
+	 * given time
+	 * @param functionName
+	 * 		gearman function name
+	 * @param data
+	 * 		gearman job data
+	 * @param epochTime
+	 * 		The time, in seconds since the epoch, after which the job may run
+	 * @return
+	 * 		The job return used to poll submit operation status
+	 * @throws NullPointerException
+	 * 		If the function name is <code>null</code>
+	 */
+	public GearmanJobReturn submitScheduledJob(String functionName, byte[] data, long epochTime);
+	
+	/**
+	 * Submits a background job that the job server will not give to a worker before the
+	 * given time
+	 * @param functionName
+	 * 		gearman function name
+	 * @param data
+	 * 		gearman job data
+	 * @param epochTime
+	 * 		The time, in seconds since the epoch, after which the job may run
+	 * @param attachment
+	 * 		An object used to identify this job from within the
+	 * @param callback
+	 * 		An asynchronous callback object used to receive submit operation status
+	 * @return
+	 * 		A joining object used to synchronize jobs
+	 * @throws NullPointerException
+	 * 		if the function name or callback is <code>null</code>
+	 */
+	public <A> GearmanJoin<A> submitScheduledJob(String functionName, byte[] data, long epochTime, A attachment, GearmanJobEventCallback<A> callback);
+	
 	/**
 	 * Adds a {@link GearmanServer} to the service.<br>
 	 * <br>
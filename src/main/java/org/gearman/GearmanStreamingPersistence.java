@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman;
+
+/**
+ * A {@link GearmanPersistence} able to hand its items over one at a time, so recovering
+ * a large backlog doesn't require holding every item in memory at once.
+ * @author isaiah
+ */
+public interface GearmanStreamingPersistence extends GearmanPersistence {
+	
+	/**
+	 * Receives the items read by {@link GearmanStreamingPersistence#readAll(Handler)}
+	 */
+	public interface Handler {
+		
+		/**
+		 * Called once for each persisted item
+		 * @param item
+		 * 		The item read from the persistent medium
+		 * @throws Exception
+		 * 		If the item can't be handled. Reading stops and the exception is thrown
+		 * 		from readAll
+		 */
+		public void onItem(GearmanPersistable item) throws Exception;
+	}
+	
+	/**
+	 * Reads all persistable items from the persistent medium, passing each to the
+	 * handler as it's read. Items are passed from the calling thread.
+	 * @param handler
+	 * 		Receives the items
+	 * @throws Exception
+	 * 		If an exception occurs while reading the items, or the handler throws one
+	 */
+	public void readAll(Handler handler) throws Exception;
+}
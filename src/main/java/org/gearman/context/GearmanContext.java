@@ -55,6 +55,28 @@ public class GearmanContext {
 	public static final String PROPERTY_LOGGER_NAME = "gearman.loggerName";
 	public static final String PROPERTY_WORKER_THREADS = "gearman.workerThreads";
 	public static final String PROPERTY_JOB_HANDLE_PREFIX = "gearman.jobHandlePrefix";
+	public static final String PROPERTY_READ_AHEAD = "gearman.readAhead";
+	public static final String PROPERTY_READ_AHEAD_BUFFER_SIZE = "gearman.readAheadBufferSize";
+	public static final String PROPERTY_WRITE_BATCH_SIZE = "gearman.writeBatchSize";
+	public static final String PROPERTY_BUFFER_POOL_MAX_CLASS_SIZE = "gearman.bufferPoolMaxClassSize";
+	public static final String PROPERTY_BUFFER_POOL_RETAINED_PER_CLASS = "gearman.bufferPoolRetainedPerClass";
+	public static final String PROPERTY_STREAM_THRESHOLD = "gearman.streamThreshold";
+	public static final String PROPERTY_SELECTOR_REACTOR = "gearman.selectorReactor";
+	public static final String PROPERTY_SELECTOR_THREADS = "gearman.selectorThreads";
+	public static final String PROPERTY_WRITE_HIGH_WATERMARK = "gearman.writeHighWatermark";
+	public static final String PROPERTY_WRITE_LOW_WATERMARK = "gearman.writeLowWatermark";
+	public static final String PROPERTY_GRAB_POLICY = "gearman.grabPolicy";
+	public static final String PROPERTY_FUNCTION_IDLE_TIMEOUT = "gearman.functionIdleTimeout";
+	public static final String PROPERTY_TRACE = "gearman.trace";
+	public static final String PROPERTY_TRACE_SAMPLE_RATE = "gearman.traceSampleRate";
+	public static final String PROPERTY_TRACE_BUFFER_SIZE = "gearman.traceBufferSize";
+	public static final String PROPERTY_TRACE_FILE = "gearman.traceFile";
+	public static final String PROPERTY_JOB_TIMEOUT_ATTEMPTS = "gearman.jobTimeoutAttempts";
+	public static final String PROPERTY_PERSISTENCE_QUEUE_SIZE = "gearman.persistenceQueueSize";
+	public static final String PROPERTY_PERSISTENCE_ACK_DURABLE = "gearman.persistenceAckDurable";
+	public static final String PROPERTY_SNAPSHOT_INTERVAL = "gearman.snapshotInterval";
+	public static final String PROPERTY_SPILL_HEAP_BUDGET = "gearman.spillHeapBudget";
+	public static final String PROPERTY_SPILL_DIRECTORY = "gearman.spillDirectory";
 	
 	/**<b>Attribute Type:</b> java.lang.Integer<br><br>The default port number. */
 	public static final String ATTRIBUTE_PORT = "gearman.port";
@@ -62,6 +84,50 @@ public class GearmanContext {
 	public static final String ATTRIBUTE_THREAD_TIMEOUT = "gearman.threadTimeout";
 	public static final String ATTRIBUTE_WORKER_THREADS = "gearman.workerThreads";
 	public static final String ATTRIBUTE_CHARSET = "gearman.charset";
+	/** <b>Attribute Type:</b> java.lang.Boolean<br><br>If true, connections decode every complete packet available after a single socket read. */
+	public static final String ATTRIBUTE_READ_AHEAD = "gearman.readAhead";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The size of the read buffer used by read-ahead connections. */
+	public static final String ATTRIBUTE_READ_AHEAD_BUFFER_SIZE = "gearman.readAheadBufferSize";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of bytes pending packets may be merged into before a socket write is issued. */
+	public static final String ATTRIBUTE_WRITE_BATCH_SIZE = "gearman.writeBatchSize";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The largest buffer size, a power of two, kept by the shared buffer pool. */
+	public static final String ATTRIBUTE_BUFFER_POOL_MAX_CLASS_SIZE = "gearman.bufferPoolMaxClassSize";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of free buffers the shared buffer pool keeps for each size. */
+	public static final String ATTRIBUTE_BUFFER_POOL_RETAINED_PER_CLASS = "gearman.bufferPoolRetainedPerClass";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The packet size above which payloads are relayed in chunks by the local server. 0 disables streaming. */
+	public static final String ATTRIBUTE_STREAM_THRESHOLD = "gearman.streamThreshold";
+	/** <b>Attribute Type:</b> java.lang.Boolean<br><br>If true, connections are driven by dedicated selector threads rather than the user thread pool. */
+	public static final String ATTRIBUTE_SELECTOR_REACTOR = "gearman.selectorReactor";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of selector threads. 0 uses one thread per available processor. */
+	public static final String ATTRIBUTE_SELECTOR_THREADS = "gearman.selectorThreads";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of queued outbound bytes above which a connection stops reading. 0 disables the limit. */
+	public static final String ATTRIBUTE_WRITE_HIGH_WATERMARK = "gearman.writeHighWatermark";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of queued outbound bytes a connection must drain to before it reads again. */
+	public static final String ATTRIBUTE_WRITE_LOW_WATERMARK = "gearman.writeLowWatermark";
+	/** <b>Attribute Type:</b> java.lang.String<br><br>The order in which a worker's functions are checked for jobs: round_robin, weighted or deepest_queue. */
+	public static final String ATTRIBUTE_GRAB_POLICY = "gearman.grabPolicy";
+	/** <b>Attribute Type:</b> java.lang.Long<br><br>The time, in milliseconds, a server function must have no jobs and no workers before it is removed. 0 disables removal. */
+	public static final String ATTRIBUTE_FUNCTION_IDLE_TIMEOUT = "gearman.functionIdleTimeout";
+	/** <b>Attribute Type:</b> java.lang.Boolean<br><br>If true, sent and received packets are recorded by the packet tracer. */
+	public static final String ATTRIBUTE_TRACE = "gearman.trace";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>One in this many packets is recorded while tracing. */
+	public static final String ATTRIBUTE_TRACE_SAMPLE_RATE = "gearman.traceSampleRate";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of packet records kept by the tracer. Rounded up to a power of two. */
+	public static final String ATTRIBUTE_TRACE_BUFFER_SIZE = "gearman.traceBufferSize";
+	/** <b>Attribute Type:</b> java.lang.String<br><br>The file the packet trace is written to by the TRACE SAVE admin command. */
+	public static final String ATTRIBUTE_TRACE_FILE = "gearman.traceFile";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of times a job may run past its worker's CAN_DO_TIMEOUT before it fails. */
+	public static final String ATTRIBUTE_JOB_TIMEOUT_ATTEMPTS = "gearman.jobTimeoutAttempts";
+	/** <b>Attribute Type:</b> java.lang.Integer<br><br>The number of persistence operations that may wait for the persistence writer before submissions block. */
+	public static final String ATTRIBUTE_PERSISTENCE_QUEUE_SIZE = "gearman.persistenceQueueSize";
+	/** <b>Attribute Type:</b> java.lang.Boolean<br><br>If true, JOB_CREATED is sent for a background job only once the job has been persisted. */
+	public static final String ATTRIBUTE_PERSISTENCE_ACK_DURABLE = "gearman.persistenceAckDurable";
+	/** <b>Attribute Type:</b> java.lang.Long<br><br>The time, in milliseconds, between snapshots of a persistence store that supports them. 0 disables snapshots. */
+	public static final String ATTRIBUTE_SNAPSHOT_INTERVAL = "gearman.snapshotInterval";
+	/** <b>Attribute Type:</b> java.lang.Long<br><br>The number of bytes of queued job data the local server keeps on the heap before spilling data to disk. 0 disables spilling. */
+	public static final String ATTRIBUTE_SPILL_HEAP_BUDGET = "gearman.spillHeapBudget";
+	/** <b>Attribute Type:</b> java.lang.String<br><br>The directory spilled job data is written to. If empty, a temporary directory is used. */
+	public static final String ATTRIBUTE_SPILL_DIRECTORY = "gearman.spillDirectory";
 	
 	private static final Properties properties = initProperties();
 	private static final Map<String, Object> attributes = initAttributes();
@@ -96,6 +162,72 @@ public class GearmanContext {
 		String workerThreads = getProperty(PROPERTY_WORKER_THREADS);
 		value.put(ATTRIBUTE_WORKER_THREADS, Integer.parseInt(workerThreads));
 		
+		String readAhead = getProperty(PROPERTY_READ_AHEAD);
+		value.put(ATTRIBUTE_READ_AHEAD, Boolean.parseBoolean(readAhead));
+		
+		String readAheadBufferSize = getProperty(PROPERTY_READ_AHEAD_BUFFER_SIZE);
+		value.put(ATTRIBUTE_READ_AHEAD_BUFFER_SIZE, Integer.parseInt(readAheadBufferSize));
+		
+		String writeBatchSize = getProperty(PROPERTY_WRITE_BATCH_SIZE);
+		value.put(ATTRIBUTE_WRITE_BATCH_SIZE, Integer.parseInt(writeBatchSize));
+		
+		String bufferPoolMaxClassSize = getProperty(PROPERTY_BUFFER_POOL_MAX_CLASS_SIZE);
+		value.put(ATTRIBUTE_BUFFER_POOL_MAX_CLASS_SIZE, Integer.parseInt(bufferPoolMaxClassSize));
+		
+		String bufferPoolRetainedPerClass = getProperty(PROPERTY_BUFFER_POOL_RETAINED_PER_CLASS);
+		value.put(ATTRIBUTE_BUFFER_POOL_RETAINED_PER_CLASS, Integer.parseInt(bufferPoolRetainedPerClass));
+		
+		String streamThreshold = getProperty(PROPERTY_STREAM_THRESHOLD);
+		value.put(ATTRIBUTE_STREAM_THRESHOLD, Integer.parseInt(streamThreshold));
+		
+		String selectorReactor = getProperty(PROPERTY_SELECTOR_REACTOR);
+		value.put(ATTRIBUTE_SELECTOR_REACTOR, Boolean.parseBoolean(selectorReactor));
+		
+		String selectorThreads = getProperty(PROPERTY_SELECTOR_THREADS);
+		value.put(ATTRIBUTE_SELECTOR_THREADS, Integer.parseInt(selectorThreads));
+		
+		String writeHighWatermark = getProperty(PROPERTY_WRITE_HIGH_WATERMARK);
+		value.put(ATTRIBUTE_WRITE_HIGH_WATERMARK, Integer.parseInt(writeHighWatermark));
+		
+		String writeLowWatermark = getProperty(PROPERTY_WRITE_LOW_WATERMARK);
+		value.put(ATTRIBUTE_WRITE_LOW_WATERMARK, Integer.parseInt(writeLowWatermark));
+		
+		String grabPolicy = getProperty(PROPERTY_GRAB_POLICY);
+		value.put(ATTRIBUTE_GRAB_POLICY, grabPolicy.trim());
+		
+		String functionIdleTimeout = getProperty(PROPERTY_FUNCTION_IDLE_TIMEOUT);
+		value.put(ATTRIBUTE_FUNCTION_IDLE_TIMEOUT, Long.parseLong(functionIdleTimeout));
+		
+		String trace = getProperty(PROPERTY_TRACE);
+		value.put(ATTRIBUTE_TRACE, Boolean.parseBoolean(trace));
+		
+		String traceSampleRate = getProperty(PROPERTY_TRACE_SAMPLE_RATE);
+		value.put(ATTRIBUTE_TRACE_SAMPLE_RATE, Integer.parseInt(traceSampleRate));
+		
+		String traceBufferSize = getProperty(PROPERTY_TRACE_BUFFER_SIZE);
+		value.put(ATTRIBUTE_TRACE_BUFFER_SIZE, Integer.parseInt(traceBufferSize));
+		
+		String traceFile = getProperty(PROPERTY_TRACE_FILE);
+		value.put(ATTRIBUTE_TRACE_FILE, traceFile.trim());
+		
+		String jobTimeoutAttempts = getProperty(PROPERTY_JOB_TIMEOUT_ATTEMPTS);
+		value.put(ATTRIBUTE_JOB_TIMEOUT_ATTEMPTS, Integer.parseInt(jobTimeoutAttempts));
+		
+		String persistenceQueueSize = getProperty(PROPERTY_PERSISTENCE_QUEUE_SIZE);
+		value.put(ATTRIBUTE_PERSISTENCE_QUEUE_SIZE, Integer.parseInt(persistenceQueueSize));
+		
+		String persistenceAckDurable = getProperty(PROPERTY_PERSISTENCE_ACK_DURABLE);
+		value.put(ATTRIBUTE_PERSISTENCE_ACK_DURABLE, Boolean.parseBoolean(persistenceAckDurable));
+		
+		String snapshotInterval = getProperty(PROPERTY_SNAPSHOT_INTERVAL);
+		value.put(ATTRIBUTE_SNAPSHOT_INTERVAL, Long.parseLong(snapshotInterval));
+		
+		String spillHeapBudget = getProperty(PROPERTY_SPILL_HEAP_BUDGET);
+		value.put(ATTRIBUTE_SPILL_HEAP_BUDGET, Long.parseLong(spillHeapBudget));
+		
+		String spillDirectory = getProperty(PROPERTY_SPILL_DIRECTORY);
+		value.put(ATTRIBUTE_SPILL_DIRECTORY, spillDirectory.trim());
+		
 		String charset = "UTF-8";
 		value.put(ATTRIBUTE_CHARSET, Charset.forName(charset));
 		
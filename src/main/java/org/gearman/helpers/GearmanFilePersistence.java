@@ -0,0 +1,930 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.helpers;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import org.gearman.GearmanJobPriority;
+import org.gearman.GearmanBatchPersistence;
+import org.gearman.GearmanPersistable;
+import org.gearman.GearmanPersistence;
+import org.gearman.GearmanSnapshotPersistence;
+import org.gearman.GearmanStreamingPersistence;
+import org.gearman.impl.util.ByteArray;
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * A {@link GearmanPersistence} that keeps background jobs in an append-only log of
+ * segment files.<br>
+ * <br>
+ * Each write appends a record holding the whole job, and each delete appends a small
+ * tombstone. Records carry a checksum, so a record torn by a crash is dropped when the
+ * log is reopened. A write or delete returns once its record is on disk. Threads that
+ * arrive while another thread is syncing the log are synced together afterwards, so
+ * concurrent submissions share one {@link FileChannel#force(boolean)}.<br>
+ * <br>
+ * Once a segment is full a new one is started. A background thread removes the oldest
+ * segment once no more than half of it holds live jobs, copying those jobs to the end
+ * of the log first.<br>
+ * <br>
+ * {@link #snapshot()} writes the index, the location of every live job, to a
+ * memory-mapped snapshot file along with the log position it was taken at. When the log
+ * is reopened, the index is loaded from the snapshot and only the records appended after
+ * it are read. A snapshot is also written when the log is closed.<br>
+ * <br>
+ * Jobs are identified by job handle. A directory must not be shared by two instances.
+ *
+ * @author isaiah
+ */
+public class GearmanFilePersistence implements GearmanBatchPersistence, GearmanStreamingPersistence, GearmanSnapshotPersistence, Closeable {
+	
+	/** The default size, in bytes, at which a segment is closed and a new one started */
+	public static final long DEFAULT_SEGMENT_SIZE = 64L*1024L*1024L;
+	
+	private static final String SEGMENT_PREFIX = "gearman-";
+	private static final String SEGMENT_SUFFIX = ".wal";
+	private static final String SNAPSHOT_FILE = "gearman-snapshot.map";
+	
+	private static final byte TYPE_JOB = 1;
+	private static final byte TYPE_TOMBSTONE = 2;
+	
+	/**
+	 * Record length, checksum, type, priority, epoch, then the lengths of the function
+	 * name, unique ID, job handle and data. The checksum covers everything after itself
+	 */
+	private static final int HEADER_SIZE = 4+4+1+1+8+4*4;
+	
+	private static final int SNAPSHOT_MAGIC = 0x474d5331;
+	/**
+	 * Magic number, checksum, the ID of the last segment and its size when the snapshot
+	 * was taken, then the number of entries. The checksum covers everything after itself
+	 */
+	private static final int SNAPSHOT_HEADER_SIZE = 4+4+8+8+4;
+	/** Segment ID, offset, record length and job handle length, followed by the job handle */
+	private static final int SNAPSHOT_ENTRY_SIZE = 8+8+4+4;
+	
+	/** The oldest segment is compacted once no more than this share of it is live */
+	private static final double COMPACT_RATIO = 0.5;
+	/** How often the compactor checks the oldest segment without being signaled */
+	private static final long COMPACT_INTERVAL = 30000L;
+	
+	private static final GearmanJobPriority[] PRIORITIES = GearmanJobPriority.values();
+	
+	/** A segment file */
+	private static final class Segment {
+		private final long id;
+		private final File file;
+		private final FileChannel channel;
+		
+		/** The number of bytes in the segment. Guarded by the log lock */
+		private long size;
+		/** The number of bytes held by live jobs. Guarded by the log lock */
+		private long live = 0;
+		
+		private Segment(final long id, final File file, final FileChannel channel, final long size) {
+			this.id = id;
+			this.file = file;
+			this.channel = channel;
+			this.size = size;
+		}
+	}
+	
+	/** Where a live job's record is */
+	private static final class Location {
+		private final ByteArray key;
+		private final Segment segment;
+		private final long offset;
+		private final int length;
+		
+		private Location(final ByteArray key, final Segment segment, final long offset, final int length) {
+			this.key = key;
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+	
+	/** A job read back from the log */
+	private static final class LogItem implements GearmanPersistable {
+		private final String functionName;
+		private final byte[] uniqueID;
+		private final byte[] jobHandle;
+		private final byte[] data;
+		private final long epoch;
+		private final GearmanJobPriority priority;
+		
+		private LogItem(final String functionName, final byte[] uniqueID, final byte[] jobHandle, final byte[] data, final long epoch, final GearmanJobPriority priority) {
+			this.functionName = functionName;
+			this.uniqueID = uniqueID;
+			this.jobHandle = jobHandle;
+			this.data = data;
+			this.epoch = epoch;
+			this.priority = priority;
+		}
+		
+		@Override
+		public String getFunctionName() {
+			return this.functionName;
+		}
+		
+		@Override
+		public byte[] getData() {
+			return this.data;
+		}
+		
+		@Override
+		public byte[] getJobHandle() {
+			return this.jobHandle;
+		}
+		
+		@Override
+		public byte[] getUniqueID() {
+			return this.uniqueID;
+		}
+		
+		@Override
+		public long epochTime() {
+			return this.epoch;
+		}
+		
+		@Override
+		public GearmanJobPriority getPriority() {
+			return this.priority;
+		}
+	}
+	
+	private final File directory;
+	private final long segmentSize;
+	
+	/** Guards the segments, the index and the append position */
+	private final Object lock = new Object();
+	/** Serializes syncs. Threads waiting here are covered by the sync in progress or the next one */
+	private final Object syncLock = new Object();
+	
+	/** The segments, oldest first. The last is appended to. Guarded by lock */
+	private final ArrayDeque<Segment> segments = new ArrayDeque<Segment>();
+	/** The live jobs, keyed by job handle. Guarded by lock */
+	private final Map<ByteArray,Location> index = new HashMap<ByteArray,Location>();
+	/** The number of bytes appended since the log was opened. Guarded by lock */
+	private long written = 0;
+	/** The number of appended bytes known to be on disk. Guarded by syncLock */
+	private long durable = 0;
+	/** Guarded by lock */
+	private boolean isClosed = false;
+	
+	/** Serializes snapshots. Taken before lock */
+	private final Object snapshotLock = new Object();
+	/** The value of written when the last snapshot was taken, -1 if none was taken since the log was opened. Guarded by snapshotLock */
+	private long snapshotWritten = -1;
+	
+	private final Thread compactor;
+	
+	/**
+	 * Opens the log in the given directory with the default segment size, creating the
+	 * directory if needed
+	 * @param directory
+	 * 		The directory holding the segment files
+	 * @throws IOException
+	 * 		If the directory can't be created or the log can't be read
+	 */
+	public GearmanFilePersistence(final File directory) throws IOException {
+		this(directory, DEFAULT_SEGMENT_SIZE);
+	}
+	
+	/**
+	 * Opens the log in the given directory, creating the directory if needed
+	 * @param directory
+	 * 		The directory holding the segment files
+	 * @param segmentSize
+	 * 		The size, in bytes, at which a segment is closed and a new one started. A
+	 * 		record larger than this gets a segment of its own
+	 * @throws IOException
+	 * 		If the directory can't be created or the log can't be read
+	 */
+	public GearmanFilePersistence(final File directory, final long segmentSize) throws IOException {
+		if(segmentSize<=0) throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
+		if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("failed to create directory: " + directory);
+		
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		
+		this.recover();
+		
+		this.compactor = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				GearmanFilePersistence.this.runCompactor();
+			}
+		}, "gearman-wal-compactor");
+		this.compactor.setDaemon(true);
+		this.compactor.start();
+	}
+	
+	@Override
+	public void write(final GearmanPersistable item) throws Exception {
+		this.sync(this.appendJob(item));
+	}
+	
+	@Override
+	public void delete(final GearmanPersistable item) throws Exception {
+		this.sync(this.appendTombstone(item));
+	}
+	
+	/**
+	 * Appends all the records, then syncs the log once
+	 */
+	@Override
+	public void update(final Collection<GearmanPersistable> writes, final Collection<GearmanPersistable> deletes) throws Exception {
+		long position = 0;
+		for(GearmanPersistable item : deletes) {
+			position = Math.max(position, this.appendTombstone(item));
+		}
+		for(GearmanPersistable item : writes) {
+			position = Math.max(position, this.appendJob(item));
+		}
+		this.sync(position);
+	}
+	
+	private final long appendJob(final GearmanPersistable item) throws Exception {
+		final byte[] jobHandle = item.getJobHandle();
+		final byte[] function = item.getFunctionName().getBytes(GearmanUtils.getCharset());
+		final byte[] record = encode(TYPE_JOB, function, item.getUniqueID(), jobHandle, item.getData(), item.epochTime(), item.getPriority());
+		
+		return this.append(new ByteArray(jobHandle), record, true);
+	}
+	
+	/**
+	 * @return
+	 * 		The log position after the tombstone, or 0 if the job isn't in the log
+	 */
+	private final long appendTombstone(final GearmanPersistable item) throws Exception {
+		final byte[] jobHandle = item.getJobHandle();
+		final ByteArray key = new ByteArray(jobHandle);
+		
+		synchronized(this.lock) {
+			// Nothing to delete if the job was never written
+			if(!this.index.containsKey(key)) return 0;
+		}
+		
+		final byte[] function = item.getFunctionName().getBytes(GearmanUtils.getCharset());
+		final byte[] record = encode(TYPE_TOMBSTONE, function, item.getUniqueID(), jobHandle, null, 0, null);
+		return this.append(key, record, false);
+	}
+	
+	@Override
+	public void deleteAll() throws Exception {
+		synchronized(this.lock) {
+			if(this.isClosed) throw new IOException("log is closed");
+			
+			final long nextID = this.segments.getLast().id+1;
+			for(Segment segment : this.segments) {
+				this.remove(segment);
+			}
+			this.segments.clear();
+			this.index.clear();
+			
+			this.segments.add(this.openSegment(nextID));
+			
+			final File snapshot = new File(this.directory, SNAPSHOT_FILE);
+			if(snapshot.exists() && !snapshot.delete()) throw new IOException("failed to delete " + snapshot);
+		}
+	}
+	
+	@Override
+	public Collection<GearmanPersistable> readAll() throws Exception {
+		final List<GearmanPersistable> items = new ArrayList<GearmanPersistable>();
+		this.readAll(new Handler() {
+			@Override
+			public void onItem(final GearmanPersistable item) {
+				items.add(item);
+			}
+		});
+		return items;
+	}
+	
+	/**
+	 * Reads the live jobs segment by segment, front to back. Only the index is copied up
+	 * front, each job is read as it's passed to the handler
+	 */
+	@Override
+	public void readAll(final Handler handler) throws Exception {
+		final List<Location> locations;
+		synchronized(this.lock) {
+			if(this.isClosed) throw new IOException("log is closed");
+			locations = new ArrayList<Location>(this.index.values());
+		}
+		
+		// Read each segment front to back
+		Collections.sort(locations, new Comparator<Location>() {
+			@Override
+			public int compare(final Location o1, final Location o2) {
+				if(o1.segment.id!=o2.segment.id) return o1.segment.id<o2.segment.id? -1: 1;
+				return o1.offset<o2.offset? -1: (o1.offset==o2.offset? 0: 1);
+			}
+		});
+		
+		for(Location location : locations) {
+			while(location!=null) {
+				final ByteBuffer record = ByteBuffer.allocate(location.length);
+				try {
+					readFully(location.segment.channel, record, location.offset);
+				} catch (ClosedChannelException e) {
+					// The segment was compacted since the index was copied. Look the job up again
+					synchronized(this.lock) {
+						if(this.isClosed) throw e;
+						location = this.index.get(location.key);
+					}
+					continue;
+				}
+				
+				handler.onItem(decode(record));
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Writes the index to a memory-mapped snapshot file. When the log is reopened, the
+	 * index is loaded from the snapshot and only the records appended after it are read.
+	 * Nothing is written if the log hasn't changed since the last snapshot
+	 */
+	@Override
+	public void snapshot() throws IOException {
+		synchronized(this.snapshotLock) {
+			final Location[] locations;
+			final Segment last;
+			final long tailOffset;
+			final long position;
+			synchronized(this.lock) {
+				if(this.isClosed) throw new IOException("log is closed");
+				if(this.written==this.snapshotWritten) return;
+				
+				locations = this.index.values().toArray(new Location[this.index.size()]);
+				last = this.segments.getLast();
+				tailOffset = last.size;
+				position = this.written;
+			}
+			
+			// The snapshot must not refer to records that aren't on disk
+			this.sync(position);
+			
+			this.writeSnapshot(locations, last.id, tailOffset);
+			this.snapshotWritten = position;
+		}
+	}
+	
+	/**
+	 * Syncs the log, writes a snapshot and closes the segment files. The log can't be
+	 * used afterwards
+	 */
+	@Override
+	public void close() throws IOException {
+		synchronized(this.snapshotLock) {
+			synchronized(this.lock) {
+				if(this.isClosed) return;
+				this.isClosed = true;
+				
+				try {
+					final Segment last = this.segments.getLast();
+					last.channel.force(false);
+					
+					// Nothing can be appended now, so the next open has no records to read
+					if(this.written!=this.snapshotWritten) {
+						try {
+							this.writeSnapshot(this.index.values().toArray(new Location[this.index.size()]), last.id, last.size);
+						} catch (IOException e) {
+							LOGGER.warn("failed to snapshot the log in " + this.directory, e);
+						}
+					}
+				} finally {
+					for(Segment segment : this.segments) {
+						segment.channel.close();
+					}
+				}
+			}
+		}
+		this.compactor.interrupt();
+	}
+	
+	/**
+	 * Writes the snapshot to a temporary file, then moves it over the previous snapshot
+	 * @param tailID
+	 * 		The last segment when the locations were taken
+	 * @param tailOffset
+	 * 		The last segment's size when the locations were taken
+	 */
+	private final void writeSnapshot(final Location[] locations, final long tailID, final long tailOffset) throws IOException {
+		long size = SNAPSHOT_HEADER_SIZE;
+		for(Location location : locations) {
+			size += SNAPSHOT_ENTRY_SIZE + location.key.length();
+		}
+		if(size>Integer.MAX_VALUE) throw new IOException("snapshot too large to map: " + size + " bytes");
+		
+		final File temp = new File(this.directory, SNAPSHOT_FILE + ".tmp");
+		try (FileChannel channel = FileChannel.open(temp.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+			final MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+			snapshot.putInt(SNAPSHOT_MAGIC);
+			snapshot.putInt(0);		// checksum, filled in below
+			snapshot.putLong(tailID);
+			snapshot.putLong(tailOffset);
+			snapshot.putInt(locations.length);
+			for(Location location : locations) {
+				snapshot.putLong(location.segment.id);
+				snapshot.putLong(location.offset);
+				snapshot.putInt(location.length);
+				snapshot.putInt(location.key.length());
+				snapshot.put(location.key.getBytes());
+			}
+			snapshot.putInt(4, checksum(snapshot, 8));
+			snapshot.force();
+		}
+		
+		Files.move(temp.toPath(), new File(this.directory, SNAPSHOT_FILE).toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+	}
+	
+	/**
+	 * Loads the index from the snapshot file, if there's a valid one. Called with the
+	 * lock held, after the segments are opened
+	 * @return
+	 * 		The ID of the segment and the offset at which the records appended after the
+	 * 		snapshot begin, or null if the whole log must be read
+	 */
+	private final long[] loadSnapshot() {
+		final File file = new File(this.directory, SNAPSHOT_FILE);
+		if(!file.isFile()) return null;
+		
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			final long size = channel.size();
+			if(size<SNAPSHOT_HEADER_SIZE || size>Integer.MAX_VALUE) throw new IOException("bad snapshot size: " + size);
+			
+			final MappedByteBuffer snapshot = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+			if(snapshot.getInt(0)!=SNAPSHOT_MAGIC || snapshot.getInt(4)!=checksum(snapshot, 8)) throw new IOException("bad snapshot checksum");
+			
+			final long tailID = snapshot.getLong(8);
+			final long tailOffset = snapshot.getLong(16);
+			final int count = snapshot.getInt(24);
+			
+			final Map<Long,Segment> segments = new HashMap<Long,Segment>();
+			for(Segment segment : this.segments) {
+				segments.put(segment.id, segment);
+			}
+			
+			final Segment tail = segments.get(tailID);
+			if(tailID>this.segments.getLast().id || (tail!=null && tail.size<tailOffset)) {
+				throw new IOException("snapshot is ahead of the log");
+			}
+			
+			snapshot.position(SNAPSHOT_HEADER_SIZE);
+			for(int i=0; i<count; i++) {
+				final long id = snapshot.getLong();
+				final long offset = snapshot.getLong();
+				final int length = snapshot.getInt();
+				final byte[] jobHandle = new byte[snapshot.getInt()];
+				snapshot.get(jobHandle);
+				
+				// The segment was compacted after the snapshot. Its live jobs were copied past the snapshot
+				final Segment segment = segments.get(id);
+				if(segment==null) continue;
+				
+				final ByteArray key = new ByteArray(jobHandle);
+				this.index.put(key, new Location(key, segment, offset, length));
+				segment.live += length;
+			}
+			
+			return new long[] {tailID, tailOffset};
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("ignoring the snapshot in " + this.directory + ", reading the whole log", e);
+			
+			this.index.clear();
+			for(Segment segment : this.segments) {
+				segment.live = 0;
+			}
+			return null;
+		}
+	}
+	
+	/**
+	 * Appends a record to the last segment and updates the index
+	 * @return
+	 * 		The log position after the record, to be passed to {@link #sync(long)}
+	 */
+	private final long append(final ByteArray key, final byte[] record, final boolean isJob) throws IOException {
+		synchronized(this.lock) {
+			if(this.isClosed) throw new IOException("log is closed");
+			
+			Segment segment = this.segments.getLast();
+			if(segment.size>0 && segment.size+record.length>this.segmentSize) {
+				segment = this.roll();
+			}
+			
+			final long offset = segment.size;
+			try {
+				writeFully(segment.channel, ByteBuffer.wrap(record), offset);
+			} catch (IOException e) {
+				// Don't leave a partial record for the next one to follow
+				try { segment.channel.truncate(offset); }
+				catch (IOException e2) { LOGGER.warn("failed to truncate " + segment.file, e2); }
+				throw e;
+			}
+			segment.size += record.length;
+			this.written += record.length;
+			
+			final Location previous;
+			if(isJob) {
+				previous = this.index.put(key, new Location(key, segment, offset, record.length));
+				segment.live += record.length;
+			} else {
+				previous = this.index.remove(key);
+			}
+			if(previous!=null) previous.segment.live -= previous.length;
+			
+			return this.written;
+		}
+	}
+	
+	/**
+	 * Waits until the log is on disk up to the given position. If another thread is
+	 * syncing, this thread waits for it and then syncs everything appended since, on
+	 * behalf of all the threads that waited with it
+	 */
+	private final void sync(final long position) throws IOException {
+		synchronized(this.syncLock) {
+			if(this.durable>=position) return;
+			
+			final long target;
+			final Segment segment;
+			synchronized(this.lock) {
+				target = this.written;
+				segment = this.segments.getLast();
+			}
+			
+			try {
+				segment.channel.force(false);
+			} catch (ClosedChannelException e) {
+				// Closed segments were synced when they were closed
+				synchronized(this.lock) { if(this.isClosed) throw e; }
+			}
+			this.durable = target;
+		}
+	}
+	
+	/**
+	 * Syncs the last segment and starts a new one. Called with the lock held
+	 */
+	private final Segment roll() throws IOException {
+		final Segment last = this.segments.getLast();
+		last.channel.force(false);
+		
+		final Segment next = this.openSegment(last.id+1);
+		this.segments.add(next);
+		
+		this.lock.notifyAll();
+		return next;
+	}
+	
+	private final Segment openSegment(final long id) throws IOException {
+		final File file = new File(this.directory, String.format("%s%016x%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX));
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+		return new Segment(id, file, channel, channel.size());
+	}
+	
+	/**
+	 * Closes and deletes a segment. Called with the lock held
+	 */
+	private final void remove(final Segment segment) throws IOException {
+		segment.channel.close();
+		if(!segment.file.delete()) throw new IOException("failed to delete " + segment.file);
+	}
+	
+	/**
+	 * Opens the existing segments and rebuilds the index, from the snapshot and the
+	 * records appended after it if there's a snapshot. A damaged record ends its segment.
+	 * The damaged end of the last segment, left by a crash mid-write, is cut off
+	 */
+	private final void recover() throws IOException {
+		final File[] files = this.directory.listFiles();
+		if(files==null) throw new IOException("failed to list " + this.directory);
+		
+		final List<Long> ids = new ArrayList<Long>();
+		for(File file : files) {
+			final String name = file.getName();
+			if(!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) continue;
+			try {
+				ids.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length()-SEGMENT_SUFFIX.length()), 16));
+			} catch (NumberFormatException e) {
+				// Not a segment
+			}
+		}
+		Collections.sort(ids);
+		
+		synchronized(this.lock) {
+			for(Long id : ids) {
+				this.segments.add(this.openSegment(id));
+			}
+			if(this.segments.isEmpty()) {
+				this.segments.add(this.openSegment(0));
+			}
+			
+			// Only the records appended after the snapshot are read
+			final long[] tail = this.loadSnapshot();
+			
+			for(Segment segment : this.segments) {
+				long from = 0;
+				if(tail!=null) {
+					if(segment.id<tail[0]) continue;
+					if(segment.id==tail[0]) from = tail[1];
+				}
+				
+				final long end = this.scan(segment, from);
+				if(end<segment.size) {
+					if(segment==this.segments.getLast()) {
+						LOGGER.warn("dropping " + (segment.size-end) + " damaged bytes at the end of " + segment.file);
+						segment.channel.truncate(end);
+					} else {
+						LOGGER.warn("ignoring " + (segment.size-end) + " damaged bytes at the end of " + segment.file);
+					}
+					segment.size = end;
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Applies a segment's records to the index
+	 * @param from
+	 * 		The offset of the first record to apply
+	 * @return
+	 * 		The offset after the last intact record
+	 */
+	private final long scan(final Segment segment, final long from) throws IOException {
+		final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+		long offset = from;
+		
+		while(offset+HEADER_SIZE<=segment.size) {
+			header.clear();
+			readFully(segment.channel, header, offset);
+			header.flip();
+			
+			final int length = header.getInt(0);
+			if(length<HEADER_SIZE || offset+length>segment.size) break;
+			
+			final ByteBuffer record = ByteBuffer.allocate(length);
+			readFully(segment.channel, record, offset);
+			if(record.getInt(4)!=checksum(record.array(), length)) break;
+			
+			final byte type = record.get(8);
+			final int functionLength = record.getInt(18);
+			final int uniqueIDLength = record.getInt(22);
+			final long fieldsLength = (long)functionLength + uniqueIDLength + record.getInt(26) + record.getInt(30);
+			if(functionLength<0 || uniqueIDLength<0 || record.getInt(26)<0 || record.getInt(30)<0 || HEADER_SIZE+fieldsLength!=length) break;
+			
+			final ByteArray key = key(record);
+			
+			final Location previous;
+			if(type==TYPE_JOB) {
+				previous = this.index.put(key, new Location(key, segment, offset, length));
+				segment.live += length;
+			} else if(type==TYPE_TOMBSTONE) {
+				previous = this.index.remove(key);
+			} else {
+				break;
+			}
+			if(previous!=null) previous.segment.live -= previous.length;
+			
+			offset += length;
+		}
+		
+		return offset;
+	}
+	
+	private final void runCompactor() {
+		while(true) {
+			try {
+				synchronized(this.lock) {
+					if(this.isClosed) return;
+					if(!this.isCompactable()) this.lock.wait(COMPACT_INTERVAL);
+					if(this.isClosed) return;
+				}
+				while(this.compactOldest());
+			} catch (InterruptedException e) {
+				return;
+			} catch (IOException e) {
+				synchronized(this.lock) { if(this.isClosed) return; }
+				LOGGER.warn("failed to compact the log in " + this.directory, e);
+			}
+		}
+	}
+	
+	/**
+	 * Tests if the oldest segment is closed and mostly dead. Called with the lock held
+	 */
+	private final boolean isCompactable() {
+		if(this.segments.size()<2) return false;
+		final Segment oldest = this.segments.getFirst();
+		return oldest.live <= oldest.size*COMPACT_RATIO;
+	}
+	
+	/**
+	 * Copies the live jobs of the oldest segment to the end of the log, then deletes it.
+	 * Only the oldest segment is ever removed, so a tombstone can't be dropped while an
+	 * older segment still holds the job it deletes
+	 * @return
+	 * 		true if a segment was removed
+	 */
+	private final boolean compactOldest() throws IOException {
+		final Segment oldest;
+		final long size;
+		synchronized(this.lock) {
+			if(this.isClosed || !this.isCompactable()) return false;
+			oldest = this.segments.getFirst();
+			size = oldest.size;
+		}
+		
+		long position = 0;
+		try {
+			final ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+			for(long offset=0; offset<size;) {
+				header.clear();
+				readFully(oldest.channel, header, offset);
+				final int length = header.getInt(0);
+				
+				if(header.get(8)==TYPE_JOB) {
+					final ByteBuffer record = ByteBuffer.allocate(length);
+					readFully(oldest.channel, record, offset);
+					position = Math.max(position, this.relocate(oldest, offset, record));
+				}
+				offset += length;
+			}
+		} catch (ClosedChannelException e) {
+			// Removed by deleteAll() or close()
+			synchronized(this.lock) { if(this.isClosed || this.segments.peekFirst()!=oldest) return false; }
+			throw e;
+		}
+		
+		// The copies must be on disk before the originals are deleted
+		if(position>0) this.sync(position);
+		
+		synchronized(this.lock) {
+			if(this.isClosed || this.segments.peekFirst()!=oldest) return false;
+			assert oldest.live==0;
+			
+			this.segments.removeFirst();
+			this.remove(oldest);
+		}
+		return true;
+	}
+	
+	/**
+	 * Appends a copy of the record if the job is still live at the given location
+	 * @return
+	 * 		The log position after the copy, or 0 if the job was no longer there
+	 */
+	private final long relocate(final Segment segment, final long offset, final ByteBuffer record) throws IOException {
+		final ByteArray key = key(record);
+		
+		synchronized(this.lock) {
+			final Location location = this.index.get(key);
+			if(location==null || location.segment!=segment || location.offset!=offset) return 0;
+			return this.append(key, record.array(), true);
+		}
+	}
+	
+	/**
+	 * Returns the record's job handle
+	 */
+	private static final ByteArray key(final ByteBuffer record) {
+		final int offset = HEADER_SIZE + record.getInt(18) + record.getInt(22);
+		return new ByteArray(Arrays.copyOfRange(record.array(), offset, offset+record.getInt(26)));
+	}
+	
+	private static final byte[] encode(final byte type, final byte[] function, final byte[] uniqueID, byte[] jobHandle, byte[] data, final long epoch, final GearmanJobPriority priority) {
+		if(jobHandle==null) jobHandle = new byte[0];
+		if(data==null) data = new byte[0];
+		
+		final long length = (long)HEADER_SIZE + function.length + uniqueID.length + jobHandle.length + data.length;
+		if(length>Integer.MAX_VALUE) throw new IllegalArgumentException("job too large to persist: " + length + " bytes");
+		
+		final ByteBuffer buffer = ByteBuffer.allocate((int)length);
+		buffer.putInt((int)length);
+		buffer.putInt(0);	// checksum, filled in below
+		buffer.put(type);
+		buffer.put(priority==null? 0: (byte)priority.ordinal());
+		buffer.putLong(epoch);
+		buffer.putInt(function.length);
+		buffer.putInt(uniqueID.length);
+		buffer.putInt(jobHandle.length);
+		buffer.putInt(data.length);
+		buffer.put(function);
+		buffer.put(uniqueID);
+		buffer.put(jobHandle);
+		buffer.put(data);
+		
+		final byte[] record = buffer.array();
+		buffer.putInt(4, checksum(record, record.length));
+		return record;
+	}
+	
+	private static final LogItem decode(final ByteBuffer record) {
+		final int functionLength = record.getInt(18);
+		final int uniqueIDLength = record.getInt(22);
+		final int jobHandleLength = record.getInt(26);
+		final int dataLength = record.getInt(30);
+		
+		final byte[] bytes = record.array();
+		int offset = HEADER_SIZE;
+		final String function = new String(bytes, offset, functionLength, GearmanUtils.getCharset());
+		offset += functionLength;
+		final byte[] uniqueID = Arrays.copyOfRange(bytes, offset, offset+uniqueIDLength);
+		offset += uniqueIDLength;
+		final byte[] jobHandle = Arrays.copyOfRange(bytes, offset, offset+jobHandleLength);
+		offset += jobHandleLength;
+		final byte[] data = Arrays.copyOfRange(bytes, offset, offset+dataLength);
+		
+		final int priority = record.get(9);
+		return new LogItem(function, uniqueID, jobHandle, data, record.getLong(10), PRIORITIES[priority<PRIORITIES.length? priority: GearmanJobPriority.NORMAL_PRIORITY.ordinal()]);
+	}
+	
+	private static final int checksum(final byte[] record, final int length) {
+		final CRC32 crc = new CRC32();
+		crc.update(record, 8, length-8);
+		return (int)crc.getValue();
+	}
+	
+	/**
+	 * Returns the checksum of the buffer from the given index to its limit
+	 */
+	private static final int checksum(final ByteBuffer buffer, final int from) {
+		final ByteBuffer view = buffer.duplicate();
+		view.position(from);
+		
+		final CRC32 crc = new CRC32();
+		final byte[] chunk = new byte[8192];
+		while(view.hasRemaining()) {
+			final int length = Math.min(chunk.length, view.remaining());
+			view.get(chunk, 0, length);
+			crc.update(chunk, 0, length);
+		}
+		return (int)crc.getValue();
+	}
+	
+	private static final void writeFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			position += channel.write(buffer, position);
+		}
+	}
+	
+	private static final void readFully(final FileChannel channel, final ByteBuffer buffer, long position) throws IOException {
+		while(buffer.hasRemaining()) {
+			final int read = channel.read(buffer, position);
+			if(read<0) throw new EOFException();
+			position += read;
+		}
+	}
+}
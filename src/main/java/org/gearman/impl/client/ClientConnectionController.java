@@ -36,6 +36,7 @@ import org.gearman.impl.core.GearmanCallbackHandler;
 import org.gearman.impl.core.GearmanConnection;
 import org.gearman.impl.core.GearmanConnection.SendCallbackResult;
 import org.gearman.impl.core.GearmanPacket;
+import org.gearman.impl.core.PacketTracer;
 import org.gearman.impl.server.GearmanServerInterface;
 import org.gearman.impl.serverpool.AbstractConnectionController;
 import org.gearman.impl.serverpool.AbstractJobServerPool;
@@ -118,7 +119,10 @@ abstract class ClientConnectionController extends AbstractConnectionController {
 		final byte[] data = jobSub.data;
 		final byte[] uID = jobSub.uniqueID;
 		
-		if(jobSub.isBackground) {
+		if(jobSub.epoch>0) {
+			// Scheduled jobs are always background jobs with normal priority
+			this.sendPacket(GearmanPacket.createSUBMIT_JOB_EPOCH(funcName, uID, jobSub.epoch, data), jobSendCallback);
+		} else if(jobSub.isBackground) {
 			switch(p) {
 			case LOW_PRIORITY:
 				this.sendPacket(GearmanPacket.createSUBMIT_JOB_LOW_BG(funcName, uID, data), jobSendCallback);
@@ -150,7 +154,7 @@ abstract class ClientConnectionController extends AbstractConnectionController {
 		
 	@Override
 	public void onPacketReceived(GearmanPacket packet, GearmanConnection<Object> conn) {
-		LOGGER.info(GearmanUtils.toString(conn) + " : IN : " + packet.getPacketType());
+		PacketTracer.trace(conn, PacketTracer.IN, packet);
 		
 		switch (packet.getPacketType()) {
 		case JOB_CREATED:
@@ -459,13 +459,22 @@ public class ClientImpl extends AbstractJobServerPool<ClientImpl.InnerConnection
 		return submitJob(functionName, data, priority, true);
 	}
 	
+	@Override
+	public GearmanJobReturn submitScheduledJob(String functionName, byte[] data, long epochTime) {
+		if(epochTime<=0) throw new IllegalArgumentException("epoch time must be positive: " + epochTime);
+		
+		final GearmanJobReturnImpl jobReturn = new GearmanJobReturnImpl();
+		submitJob(jobReturn, functionName, data, GearmanJobPriority.NORMAL_PRIORITY, true, epochTime);
+		return jobReturn;
+	}
+	
 	private GearmanJobReturn submitJob(String functionName, byte[] data, GearmanJobPriority priority, boolean isBackground) {
 		final GearmanJobReturnImpl jobReturn = new GearmanJobReturnImpl();
-		submitJob(jobReturn, functionName, data, priority, isBackground);
+		submitJob(jobReturn, functionName, data, priority, isBackground, 0);
 		return jobReturn;
 	}
 	
-	private void submitJob(BackendJobReturn jobReturn, String functionName, byte[] data, GearmanJobPriority priority, boolean isBackground) {
+	private void submitJob(BackendJobReturn jobReturn, String functionName, byte[] data, GearmanJobPriority priority, boolean isBackground, long epoch) {
 		if(functionName==null) throw new NullPointerException();
 		if(data==null) data = new byte[0];
 		if(priority==null) priority = GearmanJobPriority.NORMAL_PRIORITY;
@@ -478,7 +487,7 @@ public class ClientImpl extends AbstractJobServerPool<ClientImpl.InnerConnection
 			return;
 		}
 		
-		this.addJob(new ClientJobSubmission(functionName, data, GearmanUtils.createUID() , jobReturn, priority, isBackground));
+		this.addJob(new ClientJobSubmission(functionName, data, GearmanUtils.createUID() , jobReturn, priority, isBackground, epoch));
 	}
 
 	@Override
@@ -501,11 +510,21 @@ public class ClientImpl extends AbstractJobServerPool<ClientImpl.InnerConnection
 		return submitJob(functionName, data, priority, true, attachment, callback);
 	}
 	
+	@Override
+	public <A> GearmanJoin<A> submitScheduledJob(String functionName, byte[] data, long epochTime, A attachment, GearmanJobEventCallback<A> callback) {
+		if(epochTime<=0) throw new IllegalArgumentException("epoch time must be positive: " + epochTime);
+		return submitJob(functionName, data, GearmanJobPriority.NORMAL_PRIORITY, true, epochTime, attachment, callback);
+	}
+	
 	private <A> GearmanJoin<A> submitJob(String functionName, byte[] data, GearmanJobPriority priority, boolean isBackground, A attachment, GearmanJobEventCallback<A> callback) {
+		return submitJob(functionName, data, priority, isBackground, 0, attachment, callback);
+	}
+	
+	private <A> GearmanJoin<A> submitJob(String functionName, byte[] data, GearmanJobPriority priority, boolean isBackground, long epoch, A attachment, GearmanJobEventCallback<A> callback) {
 		if(callback==null) throw new NullPointerException();
 		
 		final GearmanJobEventCallbackCaller<A> jobReturn = new GearmanJobEventCallbackCaller<A>(attachment, callback, this.getGearman().getScheduler());
-		submitJob(jobReturn, functionName, data, priority, isBackground);
+		submitJob(jobReturn, functionName, data, priority, isBackground, epoch);
 		return jobReturn;
 	}
 }
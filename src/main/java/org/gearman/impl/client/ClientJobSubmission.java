@@ -36,13 +36,20 @@ class ClientJobSubmission {
 	final BackendJobReturn jobReturn;
 	final GearmanJobPriority priority;
 	final boolean isBackground;
+	/** The time, in seconds since the epoch, before which the job may not run, or 0 */
+	final long epoch;
 	
 	public ClientJobSubmission(String functionName, byte[] data, byte[] uniqueID, BackendJobReturn jobReturn, GearmanJobPriority priority ,boolean isBackground) {
+		this(functionName, data, uniqueID, jobReturn, priority, isBackground, 0);
+	}
+	
+	public ClientJobSubmission(String functionName, byte[] data, byte[] uniqueID, BackendJobReturn jobReturn, GearmanJobPriority priority ,boolean isBackground, long epoch) {
 		this.functionName = functionName;
 		this.data = data;
 		this.uniqueID = uniqueID;
 		this.jobReturn = jobReturn;
 		this.priority = priority;
 		this.isBackground = isBackground;
+		this.epoch = epoch;
 	}
 }
@@ -39,6 +39,22 @@ public interface GearmanCodec<X> {
 	 */
 	public void init(GearmanCodecChannel<X> channel);
 	public ByteBuffer createByteBuffer();
+	
+	/**
+	 * Called when a channel no longer uses its buffer, allowing the buffer to be reused
+	 * @param buffer
+	 * 		The channel's last buffer
+	 */
+	public void releaseByteBuffer(ByteBuffer buffer);
 	public void decode(GearmanCodecChannel<X> channel, int byteCount);
-	public byte[] encode(GearmanPacket packet);
+	
+	/**
+	 * Encodes a packet into the buffers to be written to the socket, in order.
+	 * Implementations should avoid copying large arguments into new buffers.
+	 * @param packet
+	 * 		The packet to encode
+	 * @return
+	 * 		The encoded packet
+	 */
+	public ByteBuffer[] encode(GearmanPacket packet);
 }
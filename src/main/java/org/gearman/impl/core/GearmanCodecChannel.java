@@ -35,4 +35,31 @@ public interface GearmanCodecChannel<X> {
 	public void setCodecAttachement(X att);
 	public X getCodecAttachement();
 	public void onDecode(GearmanPacket packet);
+	
+	/**
+	 * Tests if packets of the given type may be decoded with a streamed last argument
+	 * @param type
+	 * 		The packet type
+	 * @return
+	 * 		<code>true</code> if the connection's handler accepts streamed packets of the given type
+	 */
+	public boolean isStreamable(GearmanPacket.Type type);
+	
+	/**
+	 * Returns the stream the payload currently being read is pushed into
+	 * @return
+	 * 		The current stream, or <code>null</code> if no payload is being streamed
+	 */
+	public GearmanPacketStream getPacketStream();
+	public void setPacketStream(GearmanPacketStream stream);
+	
+	/**
+	 * Stops reading from the connection after the current read
+	 */
+	public void suspendRead();
+	
+	/**
+	 * Resumes reading from the connection
+	 */
+	public void resumeRead();
 }
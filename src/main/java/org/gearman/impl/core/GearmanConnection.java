@@ -59,8 +59,26 @@ public interface GearmanConnection<X> {
 	
 	public int getPort();
 	public int getLocalPort();
+	
+	/**
+	 * Returns a number identifying this connection among the connections opened in
+	 * this JVM
+	 * @return
+	 * 		The connection id
+	 */
+	public int getConnectionId();
 	public String getHostAddress();
 	public boolean isClosed();
+	
+	/**
+	 * Tests if the data queued for sending is below the connection's high watermark. Once
+	 * the queue grows above the high watermark, the connection stops reading and stays
+	 * unwritable until the queue drains to the low watermark. Packets sent while the
+	 * connection is unwritable are still queued.
+	 * @return
+	 * 		<code>true</code> if the connection is writable
+	 */
+	public boolean isWritable();
 	public void close() throws IOException;
 	
 	// TODO create an optional response timeout mechanism
@@ -37,8 +37,12 @@ import java.util.concurrent.Executors;
 
 import org.gearman.impl.core.GearmanConnection.SendCallbackResult;
 import org.gearman.impl.reactor.NioReactor;
+import org.gearman.impl.reactor.Reactor;
+import org.gearman.impl.reactor.SelectorReactor;
 import org.gearman.impl.reactor.Socket;
 import org.gearman.impl.reactor.SocketHandler;
+import org.gearman.impl.reactor.StreamSource;
+import org.gearman.impl.util.GearmanUtils;
 
 public class GearmanConnectionManager {
 	
@@ -53,19 +57,37 @@ public class GearmanConnectionManager {
 		}
 	}
 	
-	private final NioReactor reactor;
+	private final Reactor reactor;
 	
 	public GearmanConnectionManager() throws IOException {
 		this(Executors.newCachedThreadPool());
 	}
 	
+	/**
+	 * Creates a connection manager using the configured reactor. If the selector reactor
+	 * is enabled, the executor is not used for I/O
+	 * @param executor
+	 * 		The thread pool driving the {@link NioReactor}
+	 * @throws IOException
+	 * 		If an I/O error occurs
+	 */
 	public GearmanConnectionManager(final ExecutorService executor) throws IOException {
 		if(executor==null) throw new IllegalArgumentException("executor is null");
-		this.reactor = new NioReactor(executor);
+		this.reactor = GearmanUtils.isSelectorReactor()? new SelectorReactor(GearmanUtils.getSelectorThreads()): new NioReactor(executor);
+	}
+	
+	/**
+	 * Creates a connection manager driven by the given reactor
+	 * @param reactor
+	 * 		The reactor driving the connections
+	 */
+	public GearmanConnectionManager(final Reactor reactor) {
+		if(reactor==null) throw new IllegalArgumentException("reactor is null");
+		this.reactor = reactor;
 	}
 	
 	public final <X> void openPort(final int port, final GearmanConnectionHandler<X> handler) throws IOException {
-		final SocketHandler<SocketHandlerImpl<X,Integer>.Connection> sHandler = new SocketHandlerImpl<X,Integer>(handler, new StandardCodec());
+		final SocketHandler<SocketHandlerImpl<X,Integer>.Connection> sHandler = new SocketHandlerImpl<X,Integer>(handler, createDefaultCodec());
 		this.reactor.openPort(port, sHandler);
 	}
 	
@@ -75,7 +97,7 @@ public class GearmanConnectionManager {
 	}
 	
 	public final <X> void createGearmanConnection(final InetSocketAddress adrs, final GearmanConnectionHandler<X> handler, GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> failCallback) {
-		this.createGearmanConnection(adrs, handler, new StandardCodec(), failCallback);
+		this.createGearmanConnection(adrs, handler, createDefaultCodec(), failCallback);
 	}
 	
 	public final <X,Y> void createGearmanConnection(final InetSocketAddress adrs, final GearmanConnectionHandler<X> handler, final GearmanCodec<Y> codec, GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> callback) {
@@ -83,6 +105,15 @@ public class GearmanConnectionManager {
 		this.reactor.openSocket(adrs, sHandler, callback);
 	}
 	
+	/**
+	 * Creates the codec used when one is not specified
+	 * @return
+	 * 		A {@link ReadAheadCodec} if read-ahead is enabled, otherwise a {@link StandardCodec}
+	 */
+	private static final GearmanCodec<Integer> createDefaultCodec() {
+		return GearmanUtils.isReadAhead()? new ReadAheadCodec(): new StandardCodec();
+	}
+	
 	public final void shutdown() {
 		this.reactor.shutdown();
 	}
@@ -125,6 +156,11 @@ public class GearmanConnectionManager {
 		public final ByteBuffer createSocketBuffer() {
 			return this.codec.createByteBuffer();
 		}
+		
+		@Override
+		public final void releaseSocketBuffer(final ByteBuffer buffer) {
+			this.codec.releaseByteBuffer(buffer);
+		}
 
 		@Override
 		public final void onAccept(final Socket<Connection> socket) {
@@ -150,11 +186,23 @@ public class GearmanConnectionManager {
 			
 			final Connection conn = socket.getAttachment();
 			
+			// A payload still being read will never complete
+			final GearmanPacketStream stream = conn.stream;
+			conn.stream = null;
+			if(stream!=null) stream.fail();
+			
 			this.handler.onDisconnect(conn);
 			conn.codecAtt=null;
 			conn.connAtt=null;
 		}
 
+		@Override
+		public final void onWritabilityChanged(final Socket<Connection> socket) {
+			final Connection conn = socket.getAttachment();
+			if(conn!=null && this.handler instanceof GearmanWritabilityHandler)
+				((GearmanWritabilityHandler<X>)this.handler).onWritabilityChanged(conn);
+		}
+
 		@Override
 		public final void onRead(final Integer bytes, final Socket<Connection> socket) {			
 			assert socket.getAttachment()!=null;
@@ -164,9 +212,11 @@ public class GearmanConnectionManager {
 		private final class Connection implements GearmanConnection<X>, GearmanCodecChannel<Y> {
 			
 			private final Socket<?> socket;
+			private final int id = GearmanUtils.nextConnectionId();
 			
 			private X connAtt;
 			private Y codecAtt;
+			private GearmanPacketStream stream;
 			
 			private Connection(final Socket<?> socket) {
 				this.socket = socket;
@@ -193,6 +243,11 @@ public class GearmanConnectionManager {
 			public final int getPort() {
 				return this.socket.getPort();
 			}
+			
+			@Override
+			public final int getConnectionId() {
+				return this.id;
+			}
 
 			@Override
 			public final void setAttachment(final X att) {
@@ -235,11 +290,53 @@ public class GearmanConnectionManager {
 				return socket.isClosed();
 			}
 
+			@Override
+			public boolean isWritable() {
+				return socket.isWritable();
+			}
+
+			@Override
+			public final boolean isStreamable(final GearmanPacket.Type type) {
+				final GearmanConnectionHandler<X> handler = SocketHandlerImpl.this.handler;
+				return handler instanceof GearmanStreamHandler && ((GearmanStreamHandler<X>)handler).isStreamable(type);
+			}
+
+			@Override
+			public final GearmanPacketStream getPacketStream() {
+				return this.stream;
+			}
+
+			@Override
+			public final void setPacketStream(final GearmanPacketStream stream) {
+				this.stream = stream;
+			}
+
+			@Override
+			public final void suspendRead() {
+				this.socket.suspendRead();
+			}
+
+			@Override
+			public final void resumeRead() {
+				this.socket.resumeRead();
+			}
+
 			@Override
 			public void sendPacket(GearmanPacket packet, GearmanCallbackHandler<GearmanPacket, SendCallbackResult> callback) {
-				final byte[] data = SocketHandlerImpl.this.codec.encode(packet);
+				final ByteBuffer[] data = SocketHandlerImpl.this.codec.encode(packet);
 				final CompleteWrapper2 wrapper = new CompleteWrapper2(packet,callback);
-				this.socket.write(ByteBuffer.wrap(data), null ,wrapper);
+				
+				if(packet.isStreamed()) {
+					final StreamSource source = packet.getStream().subscribe();
+					if(source==null) {
+						// The payload is already being relayed, so the packet can no longer be sent
+						wrapper.failed(null, null);
+						return;
+					}
+					this.socket.write(data, source, null, wrapper);
+				} else {
+					this.socket.write(data, null ,wrapper);
+				}
 			}
 		}
 	}
@@ -249,7 +346,7 @@ public class GearmanConnectionManager {
 	 * @author isaiah
 	 *
 	 */
-	private static final class CompleteWrapper2 implements CompletionHandler<ByteBuffer, Void> {
+	private static final class CompleteWrapper2 implements CompletionHandler<ByteBuffer[], Void> {
 		
 		private final GearmanCallbackHandler<GearmanPacket, SendCallbackResult> callback;
 		private final GearmanPacket packet;
@@ -260,7 +357,7 @@ public class GearmanConnectionManager {
 		}
 
 		@Override
-		public void completed(ByteBuffer result, Void attachment) {
+		public void completed(ByteBuffer[] result, Void attachment) {
 			if(this.callback!=null)
 				this.callback.onComplete(packet, SendCallbackResult.SEND_SUCCESSFUL);
 		}
@@ -28,6 +28,10 @@
 
 package org.gearman.impl.core; 
 
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
 import org.gearman.impl.util.GearmanUtils;
 
 /**
@@ -53,11 +57,11 @@ import org.gearman.impl.util.GearmanUtils;
  */
 public final class GearmanPacket {
 	
-	public static final GearmanPacket NO_JOB = new GearmanPacket(Magic.RES, Type.NO_JOB);
-	public static final GearmanPacket NOOP = new GearmanPacket(Magic.RES, Type.NOOP);
-	public static final GearmanPacket PRE_SLEEP = new GearmanPacket(Magic.REQ, Type.PRE_SLEEP);
-	public static final GearmanPacket RESET_ABILITIES = new GearmanPacket(Magic.REQ, Type.RESET_ABILITIES);
-	public static final GearmanPacket GRAB_JOB = new GearmanPacket(Magic.REQ, Type.GRAB_JOB);
+	public static final GearmanPacket NO_JOB = new GearmanPacket(Magic.RES, Type.NO_JOB).toImmutable();
+	public static final GearmanPacket NOOP = new GearmanPacket(Magic.RES, Type.NOOP).toImmutable();
+	public static final GearmanPacket PRE_SLEEP = new GearmanPacket(Magic.REQ, Type.PRE_SLEEP).toImmutable();
+	public static final GearmanPacket RESET_ABILITIES = new GearmanPacket(Magic.REQ, Type.RESET_ABILITIES).toImmutable();
+	public static final GearmanPacket GRAB_JOB = new GearmanPacket(Magic.REQ, Type.GRAB_JOB).toImmutable();
 	
 	/**
 	 * Creates a text based packet for administrative tasks.<br>
@@ -150,6 +154,9 @@ public final class GearmanPacket {
 	public static final GearmanPacket createSUBMIT_JOB_LOW_BG(final String funcName, final byte[] uID, final byte[] data) {
 		return new GearmanPacket(Magic.REQ, Type.SUBMIT_JOB_LOW_BG, funcName.getBytes(GearmanUtils.getCharset()), uID, data);
 	}
+	public static final GearmanPacket createSUBMIT_JOB_EPOCH(final String funcName, final byte[] uID, final long epoch, final byte[] data) {
+		return new GearmanPacket(Magic.REQ, Type.SUBMIT_JOB_EPOCH, funcName.getBytes(GearmanUtils.getCharset()), uID, Long.toString(epoch).getBytes(GearmanUtils.getCharset()), data);
+	}
 	public static final GearmanPacket createGRAB_JOB() {
 		return GearmanPacket.GRAB_JOB;
 	}
@@ -197,30 +204,246 @@ public final class GearmanPacket {
 	
 	
 	
+	/**
+	 * Creates a packet backed by the given buffer. The NULL byte separated arguments
+	 * are expected to be between the buffer's position and limit. The separators are
+	 * located up front, but argument data is not copied out of the buffer until it's
+	 * requested.<br>
+	 * <br>
+	 * The packet takes ownership of the buffer's content. The caller must not modify
+	 * the content after this call.
+	 * @param magic
+	 * 		The packet magic
+	 * @param type
+	 * 		The packet type
+	 * @param body
+	 * 		The packet body
+	 * @return
+	 * 		A GearmanPacket backed by the given buffer
+	 * @throws IllegalArgumentException
+	 * 		If the body does not contain the number of arguments required by the packet type
+	 */
+	public static final GearmanPacket fromBuffer(final Magic magic, final Type type, final ByteBuffer body) {
+		final int argCount = type.getArgumentCount();
+		if(argCount==0) return new GearmanPacket(magic, type);
+		
+		final ByteBuffer slice = body.slice();
+		return new GearmanPacket(magic, type, slice, findOffsets(slice, type), null);
+	}
+	
+	/**
+	 * Creates a packet whose last argument is streamed. The buffer holds the leading
+	 * arguments, each followed by its NULL byte separator.
+	 */
+	static final GearmanPacket fromStream(final Magic magic, final Type type, final ByteBuffer leading, final GearmanPacketStream stream) {
+		final ByteBuffer slice = leading.slice();
+		return new GearmanPacket(magic, type, slice, findOffsets(slice, type), stream);
+	}
+	
+	/**
+	 * Finds the offset of each argument in a packet body
+	 */
+	private static final int[] findOffsets(final ByteBuffer body, final Type type) {
+		final int argCount = type.getArgumentCount();
+		final ByteBuffer scanner = body.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		
+		final int[] offsets = new int[argCount];
+		for(int i=1, pos=0; i<argCount; i++) {
+			final int nul = indexOfNull(scanner, pos, body.limit());
+			if(nul<0) throw new IllegalArgumentException("Packet type " + type + " requires " + argCount + " argument(s). Aquired " + i + " argument(s)");
+			
+			offsets[i] = pos = nul+1;
+		}
+		return offsets;
+	}
+	
+	/**
+	 * Returns the size of the leading arguments, the arguments before the last argument,
+	 * including their NULL byte separators
+	 * @param body
+	 * 		A buffer holding the start of a packet body between its position and limit
+	 * @param type
+	 * 		The packet type
+	 * @return
+	 * 		The size of the leading arguments, or -1 if they are not all in the buffer
+	 */
+	static final int getLeadingSize(final ByteBuffer body, final Type type) {
+		final int argCount = type.getArgumentCount();
+		final ByteBuffer scanner = body.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		
+		int pos = body.position();
+		for(int i=1; i<argCount; i++) {
+			final int nul = indexOfNull(scanner, pos, body.limit());
+			if(nul<0) return -1;
+			pos = nul+1;
+		}
+		return pos-body.position();
+	}
+	
+	/**
+	 * Finds the first NULL byte in the given range. Eight bytes are tested at a time.
+	 * The buffer must be in little-endian order, such that the first byte in the
+	 * range is the least significant byte, where the zero-byte test is exact.
+	 */
+	private static final int indexOfNull(final ByteBuffer buffer, final int from, final int to) {
+		assert buffer.order()==ByteOrder.LITTLE_ENDIAN;
+		
+		int i = from;
+		for(; i+8<=to; i+=8) {
+			final long value = buffer.getLong(i);
+			final long zeros = (value - 0x0101010101010101L) & ~value & 0x8080808080808080L;
+			if(zeros!=0) return i + (Long.numberOfTrailingZeros(zeros)>>>3);
+		}
+		for(; i<to; i++) {
+			if(buffer.get(i)==0) return i;
+		}
+		return -1;
+	}
+	
 	private static final int HEADER_SIZE = 12;
 	
+	/** Immutable packets up to this size are encoded into a single buffer */
+	private static final int MAX_MERGED_FRAME = 1024;
+	
 	private Magic magic;
     private Type type;
-    private byte[][] arguments;
+    
+    /**
+     * The argument data. If this packet is backed by a buffer, an argument is
+     * <code>null</code> until it is materialized. The array is atomic so an argument
+     * materialized by one thread is published whole to the others
+     */
+    private final AtomicReferenceArray<byte[]> arguments;
+    
+    /** The packet body, if this packet is backed by a buffer */
+    private final ByteBuffer body;
+    /** The offset of each argument within the body, if this packet is backed by a buffer */
+    private final int[] offsets;
+    /** The source of the last argument, if it's streamed */
+    private final GearmanPacketStream stream;
+    /** The read-only encoded form, if this packet is immutable */
+    private final ByteBuffer[] frame;
     
     public GearmanPacket(final Magic magic, final Type type , byte[]...arguments) {
     	this.magic = magic;
     	this.type = type;
 
-    	this.arguments = arguments==null? new byte[0][]: arguments;
+    	final byte[][] args = arguments==null? new byte[0][]: arguments;
     	
-    	for(int i=0; i<this.arguments.length; i++) {
-    		if(this.arguments[i]==null) this.arguments[i] = new byte[0];
+    	for(int i=0; i<args.length; i++) {
+    		if(args[i]==null) args[i] = new byte[0];
     	}
     	
-    	if(this.arguments.length!=type.getArgumentCount()) {
-    		throw new IllegalArgumentException("Packet type " + type + " requires " + type.getArgumentCount() + " argument(s). Aquired " + this.arguments.length + " argument(s)");
+    	if(args.length!=type.getArgumentCount()) {
+    		throw new IllegalArgumentException("Packet type " + type + " requires " + type.getArgumentCount() + " argument(s). Aquired " + args.length + " argument(s)");
     	}
-    	for(int i=0; i<this.arguments.length-1; i++) {
-    		for(byte b : this.arguments[i]) {
+    	for(int i=0; i<args.length-1; i++) {
+    		for(byte b : args[i]) {
     			if(b==0)  throw new IllegalArgumentException("Argument " + i + "contains a null value. Only the last argument can contain null values");
     		}
     	}
+    	
+    	this.arguments = new AtomicReferenceArray<byte[]>(args);
+    	this.body = null;
+    	this.offsets = null;
+    	this.stream = null;
+    	this.frame = null;
+    }
+    
+    private GearmanPacket(final Magic magic, final Type type, final ByteBuffer body, final int[] offsets, final GearmanPacketStream stream) {
+    	this.magic = magic;
+    	this.type = type;
+    	
+    	this.arguments = new AtomicReferenceArray<byte[]>(offsets.length);
+    	this.body = body;
+    	this.offsets = offsets;
+    	this.stream = stream;
+    	this.frame = null;
+    }
+    
+    private GearmanPacket(final GearmanPacket packet, final ByteBuffer[] frame) {
+    	this.magic = packet.magic;
+    	this.type = packet.type;
+    	
+    	this.arguments = packet.arguments;
+    	this.body = packet.body;
+    	this.offsets = packet.offsets;
+    	this.stream = null;
+    	this.frame = frame;
+    }
+    
+    /**
+     * Returns an immutable packet with the same content as this packet. The
+     * immutable packet is encoded once, and every send writes from views of the
+     * same read-only buffers. Use this for packets that are sent many times.<br>
+     * <br>
+     * The argument data is shared, so the arrays returned by
+     * {@link #getArgumentData(int)} must not be modified.
+     * 
+     * @return
+     * 		An immutable packet, or this packet if it is already immutable
+     * @throws IllegalStateException
+     * 		if this packet is streamed
+     */
+    public final GearmanPacket toImmutable() {
+    	if(this.frame!=null) return this;
+    	if(this.stream!=null) throw new IllegalStateException("streamed packets can't be made immutable");
+    	
+    	ByteBuffer[] frame = this.toByteBuffers();
+    	
+    	int size = 0;
+    	for(ByteBuffer buffer : frame) {
+    		size += buffer.remaining();
+    	}
+    	
+    	if(frame.length>1 && size<=MAX_MERGED_FRAME) {
+    		final ByteBuffer merged = ByteBuffer.allocate(size);
+    		for(ByteBuffer buffer : frame) {
+    			merged.put(buffer);
+    		}
+    		merged.flip();
+    		frame = new ByteBuffer[] {merged};
+    	}
+    	
+    	for(int i=0; i<frame.length; i++) {
+    		frame[i] = frame[i].asReadOnlyBuffer();
+    	}
+    	
+    	return new GearmanPacket(this, frame);
+    }
+    
+    /**
+     * Tests if this packet is immutable
+     * @return
+     * 		<code>true</code> if this packet is pre-encoded and can't be modified
+     * @see #toImmutable()
+     */
+    public final boolean isImmutable() {
+    	return this.frame!=null;
+    }
+    
+    /**
+     * Tests if the last argument is streamed. The data of a streamed argument is not held
+     * by the packet and can't be read, but the packet can be sent to other connections
+     * while the data is arriving.
+     * @return
+     * 		<code>true</code> if the last argument is streamed
+     */
+    public final boolean isStreamed() {
+    	return this.stream!=null;
+    }
+    
+    /**
+     * Returns the source of the last argument
+     * @return
+     * 		The stream, or <code>null</code> if this packet is not streamed
+     */
+    public final GearmanPacketStream getStream() {
+    	return this.stream;
+    }
+    
+    private final boolean isStreamed(final int arg) {
+    	return this.stream!=null && arg==this.arguments.length()-1;
     }
     
     public final Type getPacketType() {
@@ -228,6 +451,7 @@ public final class GearmanPacket {
     }
     
     public final void setPacketType(final Type type) {
+    	if(this.frame!=null) throw new UnsupportedOperationException("packet is immutable");
     	this.type = type;
     }
     
@@ -240,19 +464,83 @@ public final class GearmanPacket {
     }
     
     public final void setMagic(final Magic magic) {
+    	if(this.frame!=null) throw new UnsupportedOperationException("packet is immutable");
     	this.magic = magic;
     }
     
     public final byte[] getArgumentData(final Argument arg) {
     	final int pos = GearmanPacket.getArgumentNumber(this.type, arg);
-    	return pos==-1? null: this.arguments[pos];
+    	return pos==-1? null: this.getArgumentData(pos);
     }
     
     public final byte[] getArgumentData(final int arg) {
-    	return this.arguments[arg];
+    	byte[] value = this.arguments.get(arg);
+    	if(value==null) {
+    		if(this.isStreamed(arg)) throw new IllegalStateException("argument " + arg + " is streamed");
+    		
+    		// Materialize the argument. If threads race, all share the first copy published
+    		value = new byte[this.getArgumentLength(arg)];
+    		
+    		final ByteBuffer src = this.body.duplicate();
+    		src.position(this.offsets[arg]);
+    		src.get(value);
+    		
+    		if(!this.arguments.compareAndSet(arg, null, value)) value = this.arguments.get(arg);
+    	}
+    	return value;
+    }
+    
+    /**
+     * Returns a read-only view of the argument data. If the argument has not been
+     * materialized, the data is not copied.
+     * @param arg
+     * 		The argument number
+     * @return
+     * 		A read-only buffer holding the argument data between its position and limit
+     */
+    public final ByteBuffer getArgumentBuffer(final int arg) {
+    	final byte[] value = this.arguments.get(arg);
+    	if(value!=null) return ByteBuffer.wrap(value).asReadOnlyBuffer();
+    	if(this.isStreamed(arg)) throw new IllegalStateException("argument " + arg + " is streamed");
+    	
+    	final ByteBuffer view = this.body.asReadOnlyBuffer();
+    	view.limit(this.offsets[arg]+this.getArgumentLength(arg));
+    	view.position(this.offsets[arg]);
+    	return view;
+    }
+    
+    /**
+     * Returns the size of the argument data without materializing it
+     * @param arg
+     * 		The argument number
+     * @return
+     * 		The number of bytes in the given argument
+     */
+    public final int getArgumentLength(final int arg) {
+    	final byte[] value = this.arguments.get(arg);
+    	if(value!=null) return value.length;
+    	if(this.isStreamed(arg)) return this.stream.getSize();
+    	
+    	final int end = arg+1<this.offsets.length? this.offsets[arg+1]-1: this.body.limit();
+    	return end-this.offsets[arg];
     }
     
 
+    /**
+     * Returns the size of the packet body, as given in the packet header, without
+     * materializing any argument
+     * @return
+     * 		The number of bytes following the packet header
+     */
+    public final int getBodySize() {
+    	int size = 0;
+    	for(int i=0; i<this.arguments.length(); i++) {
+    		size += this.getArgumentLength(i);
+    	}
+    	if(this.arguments.length()>0) size += this.arguments.length()-1;
+    	return size;
+    }
+
     /**
      * Retrieves the Packet as a series of bytes. Typically called when about
      * to send the packet over a {@link  GearmanJobServerConnection}.
@@ -261,16 +549,32 @@ public final class GearmanPacket {
      */
     public byte[] toBytes() {
     	
+    	if(this.frame!=null) {
+    		int size = 0;
+    		for(ByteBuffer buffer : this.frame) {
+    			size += buffer.remaining();
+    		}
+    		
+    		final byte[] packet = new byte[size];
+    		int pos = 0;
+    		for(ByteBuffer buffer : this.frame) {
+    			final int length = buffer.remaining();
+    			buffer.duplicate().get(packet, pos, length);
+    			pos += length;
+    		}
+    		return packet;
+    	}
+    	
     	if(this.getPacketType().equals(Type.TEXT)) {
     		return this.getArgumentData(0);
     	}
     	
     	// Find the packet size
     	int packet_size = HEADER_SIZE;
-    	for(byte[] arg : this.arguments) {
-    		packet_size += arg.length;
+    	for(int i=0; i<this.arguments.length(); i++) {
+    		packet_size += this.getArgumentLength(i);
     	}
-    	if(this.arguments.length>0) packet_size += this.arguments.length-1;
+    	if(this.arguments.length()>0) packet_size += this.arguments.length()-1;
     	
     	// Allocate a byte[] to hold the entire packet
     	final byte[] packet = new byte[packet_size];
@@ -298,14 +602,66 @@ public final class GearmanPacket {
     	
     	// Inject the arguments
     	int pos = HEADER_SIZE;
-    	for(byte[] arg : this.arguments) {
-    		System.arraycopy(arg, 0, packet, pos, arg.length);
-    		pos += arg.length+1;
+    	for(int i=0; i<this.arguments.length(); i++) {
+    		final ByteBuffer arg = this.getArgumentBuffer(i);
+    		final int length = arg.remaining();
+    		
+    		arg.get(packet, pos, length);
+    		pos += length+1;
     	}
     	
     	return packet;
     }
 
+    /**
+     * Retrieves the packet as a sequence of buffers, suitable for a gathering
+     * write. The first buffer holds the header and all but the last argument.
+     * The last argument, typically the payload, is returned as a read-only view
+     * of the argument data, so it is not copied. If the last argument is streamed,
+     * only the first buffer is returned. If this packet is immutable, views of the
+     * pre-encoded buffers are returned.
+     * 
+     * @return
+     * 		The buffers that make up the packet, in order
+     */
+    public ByteBuffer[] toByteBuffers() {
+    	
+    	if(this.frame!=null) {
+    		final ByteBuffer[] buffers = new ByteBuffer[this.frame.length];
+    		for(int i=0; i<buffers.length; i++) {
+    			buffers[i] = this.frame[i].duplicate();
+    		}
+    		return buffers;
+    	}
+    	
+    	if(this.getPacketType().equals(Type.TEXT)) {
+    		return new ByteBuffer[] {this.getArgumentBuffer(0)};
+    	}
+    	
+    	final int last = this.arguments.length()-1;
+    	
+    	// Find the header size, including the leading arguments and all separators
+    	int head_size = HEADER_SIZE;
+    	for(int i=0; i<last; i++) {
+    		head_size += this.getArgumentLength(i)+1;
+    	}
+    	final int body_size = head_size-HEADER_SIZE + (last<0? 0: this.getArgumentLength(last));
+    	
+    	final ByteBuffer head = ByteBuffer.allocate(head_size);
+    	head.putInt(this.magic.getMagicCode());
+    	head.putInt(this.type.getTypeValue());
+    	head.putInt(body_size);
+    	
+    	for(int i=0; i<last; i++) {
+    		head.put(this.getArgumentBuffer(i));
+    		head.put((byte)0);
+    	}
+    	head.flip();
+    	
+    	if(last<0 || this.stream!=null) return new ByteBuffer[] {head};
+    	return new ByteBuffer[] {head, this.getArgumentBuffer(last)};
+    }
+    
     /**
      * The data or payload of a packet can contain different set of components
      * depending on the type of packet. Clients of the packet class may want to
@@ -576,6 +932,6 @@ public final class GearmanPacket {
     	}
     }
 	public int getArgumentCount() {
-		return this.arguments.length;
+		return this.arguments.length();
 	}
 }
@@ -0,0 +1,368 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.core;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+
+import org.gearman.impl.core.GearmanConnection.SendCallbackResult;
+import org.gearman.impl.reactor.StreamSource;
+import org.gearman.impl.util.ByteBufferPool;
+
+/**
+ * The payload of a packet that is relayed while it's being read, rather than after the
+ * whole packet is assembled.<br>
+ * <br>
+ * The codec pushes the payload into the stream in chunks as it arrives. Each connection
+ * the packet is sent to subscribes to the stream and writes the chunks as they become
+ * available. A chunk is held only until every subscriber has written it. If too many
+ * chunks are held, reading from the source connection is suspended until the
+ * subscribers catch up, bounding the memory used per stream.<br>
+ * <br>
+ * Subscribers must be added before the first chunk is pushed, which means while the
+ * packet is being handled.
+ * 
+ * @author isaiah
+ */
+public final class GearmanPacketStream {
+	
+	/** The number of chunks held before reading from the source is suspended */
+	private static final int MAX_PENDING_CHUNKS = 4;
+	
+	private final ByteBufferPool pool = ByteBufferPool.getDefault();
+	
+	/** The connection the payload is read from */
+	private final GearmanCodecChannel<?> source;
+	/** The payload size */
+	private final int size;
+	
+	private final List<Subscriber> subscribers = new ArrayList<Subscriber>();
+	
+	/** The number of bytes pushed so far */
+	private int received;
+	/** The number of chunks not yet written by every subscriber */
+	private int pending;
+	
+	private boolean isStarted;
+	private boolean isFailed;
+	private boolean isSuspended;
+	
+	GearmanPacketStream(final GearmanCodecChannel<?> source, final int size) {
+		this.source = source;
+		this.size = size;
+	}
+	
+	/**
+	 * Returns the payload size
+	 * @return
+	 * 		The number of bytes in the payload
+	 */
+	public final int getSize() {
+		return this.size;
+	}
+	
+	/**
+	 * Returns the number of payload bytes not yet pushed into the stream
+	 * @return
+	 * 		The number of bytes remaining
+	 */
+	final synchronized int getRemaining() {
+		return this.size-this.received;
+	}
+	
+	/**
+	 * Subscribes a socket writer to the stream
+	 * @return
+	 * 		The source for the socket writer, or <code>null</code> if the stream has already started
+	 */
+	public final synchronized StreamSource subscribe() {
+		if(this.isStarted) return null;
+		
+		final Cursor cursor = new Cursor();
+		this.subscribers.add(cursor);
+		return cursor;
+	}
+	
+	/**
+	 * Subscribes to the stream, assembling the payload in memory. Once the payload is
+	 * assembled, the callback is given a regular packet with the payload as its last
+	 * argument. If the stream fails or has already started, the callback is given the
+	 * streamed packet with a failed result.
+	 * @param head
+	 * 		The streamed packet
+	 * @param callback
+	 * 		The callback receiving the assembled packet
+	 */
+	public final void assemble(final GearmanPacket head, final GearmanCallbackHandler<GearmanPacket, SendCallbackResult> callback) {
+		synchronized(this) {
+			if(!this.isStarted) {
+				this.subscribers.add(new Assembler(head, callback));
+				return;
+			}
+		}
+		callback.onComplete(head, SendCallbackResult.SEND_FAILED);
+	}
+	
+	/**
+	 * Pushes the next chunk of the payload. The chunk is copied, so the buffer may be
+	 * reused once this method returns
+	 * @param data
+	 * 		The data between the buffer's position and limit
+	 */
+	final void push(final ByteBuffer data) {
+		final int length = Math.min(data.remaining(), this.getRemaining());
+		if(length==0) return;
+		
+		final ByteBuffer view = data.duplicate();
+		view.limit(view.position()+length);
+		data.position(data.position()+length);
+		
+		final List<Runnable> ready = new ArrayList<Runnable>();
+		final List<Assembler> assembled = new ArrayList<Assembler>();
+		boolean suspend = false;
+		
+		synchronized(this) {
+			this.isStarted = true;
+			this.received += length;
+			final boolean isEnd = this.received==this.size;
+			
+			Chunk chunk = null;
+			for(Subscriber subscriber : this.subscribers) {
+				if(subscriber instanceof Assembler) {
+					final Assembler assembler = (Assembler)subscriber;
+					assembler.put(view.duplicate());
+					if(isEnd) assembled.add(assembler);
+				} else {
+					if(chunk==null) {
+						chunk = new Chunk(this.pool.lease(length));
+						chunk.data.put(view.duplicate()).flip();
+						this.pending++;
+					}
+					
+					final Cursor cursor = (Cursor)subscriber;
+					chunk.refs++;
+					cursor.chunks.add(chunk);
+					cursor.wake(ready);
+				}
+			}
+			
+			if(isEnd) {
+				for(Subscriber subscriber : this.subscribers) {
+					if(subscriber instanceof Cursor) ((Cursor)subscriber).wake(ready);
+				}
+				this.subscribers.removeAll(assembled);
+			}
+			
+			if(this.pending>=MAX_PENDING_CHUNKS && !this.isSuspended) {
+				this.isSuspended = true;
+				suspend = true;
+			}
+		}
+		
+		if(suspend) this.source.suspendRead();
+		for(Runnable r : ready) {
+			r.run();
+		}
+		for(Assembler assembler : assembled) {
+			assembler.complete();
+		}
+	}
+	
+	/**
+	 * Fails the stream. Called if the source connection is lost before the whole
+	 * payload has been read
+	 */
+	final void fail() {
+		final List<Runnable> ready = new ArrayList<Runnable>();
+		final List<Assembler> failed = new ArrayList<Assembler>();
+		
+		synchronized(this) {
+			if(this.received==this.size || this.isFailed) return;
+			this.isFailed = true;
+			
+			for(Subscriber subscriber : this.subscribers) {
+				if(subscriber instanceof Assembler) {
+					failed.add((Assembler)subscriber);
+				} else {
+					((Cursor)subscriber).wake(ready);
+				}
+			}
+			this.subscribers.removeAll(failed);
+		}
+		
+		for(Runnable r : ready) {
+			r.run();
+		}
+		for(Assembler assembler : failed) {
+			assembler.callback.onComplete(assembler.head, SendCallbackResult.SEND_FAILED);
+		}
+	}
+	
+	/**
+	 * Releases a subscriber's reference to a chunk
+	 */
+	private final void release(final Chunk chunk) {
+		boolean resume = false;
+		
+		synchronized(this) {
+			if(--chunk.refs>0) return;
+			
+			this.pool.release(chunk.data);
+			this.pending--;
+			
+			if(this.isSuspended && this.pending<MAX_PENDING_CHUNKS) {
+				this.isSuspended = false;
+				resume = true;
+			}
+		}
+		
+		if(resume) this.source.resumeRead();
+	}
+	
+	private static final class Chunk {
+		private final ByteBuffer data;
+		private int refs;
+		
+		private Chunk(final ByteBuffer data) {
+			this.data = data;
+		}
+	}
+	
+	private static interface Subscriber {
+	}
+	
+	/**
+	 * Assembles the payload in memory for connections that can't write it in chunks
+	 */
+	private final class Assembler implements Subscriber {
+		private final GearmanPacket head;
+		private final GearmanCallbackHandler<GearmanPacket, SendCallbackResult> callback;
+		private final byte[] payload = new byte[GearmanPacketStream.this.size];
+		private int position;
+		
+		private Assembler(final GearmanPacket head, final GearmanCallbackHandler<GearmanPacket, SendCallbackResult> callback) {
+			this.head = head;
+			this.callback = callback;
+		}
+		
+		private void put(final ByteBuffer data) {
+			final int length = data.remaining();
+			data.get(this.payload, this.position, length);
+			this.position += length;
+		}
+		
+		private void complete() {
+			final int argCount = this.head.getArgumentCount();
+			
+			final byte[][] args = new byte[argCount][];
+			for(int i=0; i<argCount-1; i++) {
+				args[i] = this.head.getArgumentData(i);
+			}
+			args[argCount-1] = this.payload;
+			
+			final GearmanPacket packet = new GearmanPacket(this.head.getMagic(), this.head.getPacketType(), args);
+			this.callback.onComplete(packet, SendCallbackResult.SEND_SUCCESSFUL);
+		}
+	}
+	
+	/**
+	 * Feeds the chunks to a socket writer
+	 */
+	private final class Cursor implements Subscriber, StreamSource {
+		private final Queue<Chunk> chunks = new ArrayDeque<Chunk>();
+		
+		/** The chunk being written */
+		private Chunk current;
+		/** The callback waiting on the next chunk */
+		private Runnable waiter;
+		
+		/** Hands the waiting callback over to be run outside the lock */
+		private void wake(final List<Runnable> ready) {
+			if(this.waiter==null) return;
+			ready.add(this.waiter);
+			this.waiter = null;
+		}
+		
+		@Override
+		public ByteBuffer poll(final Runnable onReady) {
+			synchronized(GearmanPacketStream.this) {
+				assert this.current==null;
+				
+				this.current = this.chunks.poll();
+				if(this.current!=null) return this.current.data.duplicate();
+				
+				if(GearmanPacketStream.this.isFailed || GearmanPacketStream.this.received==GearmanPacketStream.this.size) {
+					GearmanPacketStream.this.subscribers.remove(this);
+					return null;
+				}
+				
+				this.waiter = onReady;
+				return ByteBuffer.allocate(0);
+			}
+		}
+
+		@Override
+		public void written() {
+			final Chunk chunk;
+			synchronized(GearmanPacketStream.this) {
+				chunk = this.current;
+				this.current = null;
+			}
+			if(chunk!=null) GearmanPacketStream.this.release(chunk);
+		}
+
+		@Override
+		public boolean isFailed() {
+			synchronized(GearmanPacketStream.this) {
+				return GearmanPacketStream.this.isFailed;
+			}
+		}
+
+		@Override
+		public void cancel() {
+			final List<Chunk> held = new ArrayList<Chunk>();
+			synchronized(GearmanPacketStream.this) {
+				GearmanPacketStream.this.subscribers.remove(this);
+				this.waiter = null;
+				
+				if(this.current!=null) held.add(this.current);
+				this.current = null;
+				
+				held.addAll(this.chunks);
+				this.chunks.clear();
+			}
+			
+			for(Chunk chunk : held) {
+				GearmanPacketStream.this.release(chunk);
+			}
+		}
+	}
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.core;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.gearman.impl.core.GearmanPacket.Type;
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * Records sent and received packets into a fixed-size ring buffer.<br>
+ * <br>
+ * Each record holds the connection id, the direction, the packet type, the body size
+ * and a timestamp, packed into an array of longs so tracing a packet does not allocate.
+ * When the ring is full the oldest records are overwritten. Tracing is off unless
+ * <code>gearman.trace</code> is set, and only one in every
+ * <code>gearman.traceSampleRate</code> packets is recorded.<br>
+ * <br>
+ * The ring can be dumped to a writer, which is how the TRACE admin command replies, or
+ * to the file named by <code>gearman.traceFile</code>.
+ * 
+ * @author isaiah
+ */
+public final class PacketTracer {
+	
+	/** The direction of a packet read from a connection */
+	public static final boolean IN = true;
+	/** The direction of a packet written to a connection */
+	public static final boolean OUT = false;
+	
+	private static volatile boolean isEnabled = GearmanUtils.isTrace();
+	private static volatile int sampleRate = Math.max(1, GearmanUtils.getTraceSampleRate());
+	
+	private static final int SIZE = ringSize(GearmanUtils.getTraceBufferSize());
+	private static final int MASK = SIZE-1;
+	
+	/** The sequence of a slot that has never been written */
+	private static final long EMPTY = -2L;
+	/** The sequence of a slot while a writer owns it */
+	private static final long WRITING = -1L;
+	
+	/** The number of longs in a record: the time, the connection and size, the type and direction */
+	private static final int FIELDS = 3;
+	
+	/** The number of records claimed so far */
+	private static final AtomicLong cursor = new AtomicLong(0);
+	/**
+	 * The sequence number of the record in each slot, {@link #EMPTY}, or {@link #WRITING}.
+	 * A writer takes a slot by swapping its sequence for WRITING, so writers never mix
+	 * their fields. A reader only trusts a slot whose sequence is unchanged across its read
+	 */
+	private static final AtomicLongArray sequence = initSequence();
+	/**
+	 * The records, {@link #FIELDS} longs per slot. The fields are atomic so a reader's
+	 * loads stay ordered between its two reads of the sequence
+	 */
+	private static final AtomicLongArray records = new AtomicLongArray(SIZE*FIELDS);
+	
+	/** Converts System.nanoTime() to milliseconds since the epoch */
+	private static final long NANO_ORIGIN = System.nanoTime();
+	private static final long MILLI_ORIGIN = System.currentTimeMillis();
+	
+	private PacketTracer() {}
+	
+	private static final int ringSize(final int requested) {
+		int value = 1;
+		while(value<requested && value<(1<<30)) value <<= 1;
+		return value;
+	}
+	
+	private static final AtomicLongArray initSequence() {
+		final AtomicLongArray value = new AtomicLongArray(SIZE);
+		for(int i=0; i<SIZE; i++) value.set(i, EMPTY);
+		return value;
+	}
+	
+	/**
+	 * Tests if tracing is enabled
+	 */
+	public static final boolean isEnabled() {
+		return isEnabled;
+	}
+	
+	/**
+	 * Enables or disables tracing
+	 */
+	public static final void setEnabled(final boolean enabled) {
+		isEnabled = enabled;
+	}
+	
+	/**
+	 * Sets the sampling rate. One in every <code>rate</code> packets is recorded
+	 */
+	public static final void setSampleRate(final int rate) {
+		if(rate<1) throw new IllegalArgumentException("rate must be positive: " + rate);
+		sampleRate = rate;
+	}
+	
+	/**
+	 * Records a packet, if tracing is enabled and the packet is sampled
+	 * @param conn
+	 * 		The connection the packet was sent or received on
+	 * @param in
+	 * 		{@link #IN} if the packet was received, {@link #OUT} if it's being sent
+	 * @param packet
+	 * 		The packet
+	 */
+	public static final void trace(final GearmanConnection<?> conn, final boolean in, final GearmanPacket packet) {
+		if(!isEnabled) return;
+		
+		final int rate = sampleRate;
+		if(rate>1 && ThreadLocalRandom.current().nextInt(rate)!=0) return;
+		
+		final long seq = cursor.getAndIncrement();
+		final int i = (int)seq & MASK;
+		
+		/*
+		 * The ring wrapped while another writer still has the slot, or a newer record is
+		 * already in it. The record is dropped; a trace is a sample, not a log
+		 */
+		final long prev = sequence.get(i);
+		if(prev==WRITING || prev>seq || !sequence.compareAndSet(i, prev, WRITING)) return;
+		
+		final int f = i*FIELDS;
+		records.set(f, System.nanoTime());
+		records.set(f+1, ((long)conn.getConnectionId()<<32) | (packet.getBodySize() & 0xFFFFFFFFL));
+		records.set(f+2, (packet.getPacketType().ordinal()<<1) | (in? 1: 0));
+		sequence.set(i, seq);
+	}
+	
+	/**
+	 * Writes the recorded packets, oldest first, one per line in the format
+	 * TIME\tCONNECTION\tIN|OUT\tTYPE\tSIZE, where TIME is in milliseconds since the epoch.
+	 * Records overwritten while dumping are skipped
+	 * @param out
+	 * 		The writer to dump to
+	 * @throws IOException
+	 * 		If writing fails
+	 */
+	public static final void dump(final Writer out) throws IOException {
+		final long end = cursor.get();
+		final Type[] types = Type.values();
+		
+		for(long seq=Math.max(0, end-SIZE); seq<end; seq++) {
+			final int i = (int)seq & MASK;
+			if(sequence.get(i)!=seq) continue;
+			
+			final int f = i*FIELDS;
+			final long t = records.get(f);
+			final long cs = records.get(f+1);
+			final long pd = records.get(f+2);
+			
+			if(sequence.get(i)!=seq) continue;
+			
+			final int c = (int)(cs>>>32);
+			final int s = (int)cs;
+			final int p = (int)(pd>>>1);
+			final boolean d = (pd&1)!=0;
+			
+			final long millis = MILLI_ORIGIN + (t-NANO_ORIGIN)/1000000L;
+			out.write(Long.toString(millis)); out.write('\t');
+			out.write(Integer.toString(c)); out.write('\t');
+			out.write(d? "IN": "OUT"); out.write('\t');
+			out.write(types[p].name()); out.write('\t');
+			out.write(Integer.toString(s)); out.write('\n');
+		}
+		out.flush();
+	}
+	
+	/**
+	 * Dumps the recorded packets to the configured trace file, replacing its contents
+	 * @return
+	 * 		The file written
+	 * @throws IOException
+	 * 		If writing fails
+	 */
+	public static final File dumpToFile() throws IOException {
+		final File file = new File(GearmanUtils.getTraceFile());
+		try (Writer out = new OutputStreamWriter(new FileOutputStream(file), GearmanUtils.getCharset())) {
+			dump(out);
+		}
+		return file;
+	}
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.core;
+
+import java.nio.ByteBuffer;
+
+import org.gearman.impl.core.GearmanPacket.Magic;
+import org.gearman.impl.core.GearmanPacket.Type;
+import org.gearman.impl.util.ByteBufferPool;
+import org.gearman.impl.util.GearmanUtils;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+/**
+ * A codec that reads ahead. Instead of limiting each socket read to the next
+ * expected field, the whole buffer is made available to the socket. After each
+ * read, every complete packet found in the buffer is decoded and only the
+ * partial tail is compacted to the front of the buffer.
+ * 
+ * @author isaiah
+ */
+public final class ReadAheadCodec implements GearmanCodec<Integer> {
+	
+	private static final int SIZE_POS		= 8;
+	private static final int HEADER_SIZE	= 12;
+	
+	/** The attachment value while an overlong text line is dropped */
+	private static final int DISCARD		= -1;
+	
+	private final ByteBufferPool pool = ByteBufferPool.getDefault();
+	private final int streamThreshold = GearmanUtils.getStreamThreshold();
+	
+	/** The capacity of newly created buffers */
+	private final int bufferSize;
+	/** The capacity of buffers leased for the requested size */
+	private final int baseCapacity;
+	
+	public ReadAheadCodec() {
+		this(GearmanUtils.getReadAheadBufferSize());
+	}
+	
+	public ReadAheadCodec(final int bufferSize) {
+		if(bufferSize<HEADER_SIZE) throw new IllegalArgumentException("buffer size must be at least " + HEADER_SIZE + " bytes");
+		this.bufferSize = bufferSize;
+		this.baseCapacity = this.pool.capacityOf(bufferSize);
+	}
+	
+	@Override
+	public final void init(final GearmanCodecChannel<Integer> channel) {
+		// The attachment holds the size of the frame being waited on, 0 if not known, or DISCARD
+		channel.setCodecAttachement(0);
+	}
+	
+	@Override
+	public final ByteBuffer createByteBuffer() {
+		return this.pool.lease(this.bufferSize);
+	}
+	
+	@Override
+	public final void releaseByteBuffer(final ByteBuffer buffer) {
+		this.pool.release(buffer);
+	}
+
+	@Override
+	public final void decode(final GearmanCodecChannel<Integer> channel, final int byteCount) {
+		ByteBuffer buffer = channel.getBuffer();
+		
+		// Skip parsing if the pending frame is known to be incomplete
+		final int pending = channel.getCodecAttachement();
+		if(pending>0 && buffer.position()<pending) return;
+		
+		buffer.flip();
+		try {
+			while(buffer.hasRemaining()) {
+				final GearmanPacketStream stream = channel.getPacketStream();
+				if(stream!=null) {
+					// Push the buffered payload bytes
+					stream.push(buffer);
+					if(stream.getRemaining()==0) channel.setPacketStream(null);
+					continue;
+				}
+				
+				if(channel.getCodecAttachement()==DISCARD) {
+					// Drop the rest of an overlong text line
+					final int end = StandardCodec.endOfLine(buffer, buffer.position(), buffer.limit());
+					if(end<0) {
+						buffer.position(buffer.limit());
+						break;
+					}
+					buffer.position(end);
+					channel.setCodecAttachement(0);
+					continue;
+				}
+				
+				final int start = buffer.position();
+				final int available = buffer.remaining();
+				
+				final int frameSize;
+				if(buffer.get(start)==0) {
+					if(available<HEADER_SIZE) break;
+					final int size = buffer.getInt(start+SIZE_POS);
+					if(size<0 || size>Integer.MAX_VALUE-HEADER_SIZE) {
+						// Corrupt header. There is no way to find the next frame, so drop the buffered data
+						LOGGER.warn("Invalid packet size: " + size);
+						buffer.position(buffer.limit());
+						break;
+					}
+					
+					frameSize = HEADER_SIZE + size;
+					
+					if(available<frameSize) {
+						if(this.startStream(channel, buffer, start, size)) continue;
+						
+						channel.setCodecAttachement(frameSize);
+						break;
+					}
+					
+					buffer.position(start+frameSize);
+					this.binary(channel, buffer, start, frameSize);
+				} else {
+					final int end = StandardCodec.endOfLine(buffer, start, buffer.limit());
+					if(end<0) {
+						if(available>=StandardCodec.MAX_TEXT_LINE) {
+							LOGGER.warn("Text line exceeds " + StandardCodec.MAX_TEXT_LINE + " bytes. Discarding the line");
+							buffer.position(buffer.limit());
+							channel.setCodecAttachement(DISCARD);
+						}
+						break;
+					}
+					
+					frameSize = end-start;
+					buffer.position(start+frameSize);
+					StandardCodec.decodeText(channel, buffer, start, frameSize);
+				}
+				
+				channel.setCodecAttachement(0);
+			}
+		} finally {
+			if(channel.getBuffer()==buffer) buffer.compact();
+		}
+		
+		// The buffer may have been handed off to a packet
+		buffer = channel.getBuffer();
+		
+		final int required = channel.getCodecAttachement();
+		if(required>buffer.capacity()) {
+			// Grow buffer to fit the pending frame
+			buffer = this.resize(channel, buffer, required);
+		} else if(!buffer.hasRemaining()) {
+			// A text line is longer then the buffer
+			buffer = this.resize(channel, buffer, buffer.capacity()*2);
+		} else if(buffer.position()==0 && buffer.capacity()>this.baseCapacity) {
+			// Nothing is pending. Shrink back to the base size
+			buffer = this.resize(channel, buffer, this.bufferSize);
+		}
+	}
+	
+	@Override
+	public final ByteBuffer[] encode(final GearmanPacket packet) {
+		return packet.toByteBuffers();
+	}
+	
+	private final void binary(final GearmanCodecChannel<Integer> channel, final ByteBuffer buffer, final int start, final int frameSize) {
+		try {
+			final Magic magic = Magic.fromMagicCode(buffer.getInt(start));
+			final Type type = Type.fromTypeValue(buffer.getInt(start+4));
+			
+			final GearmanPacket packet;
+			if(frameSize==HEADER_SIZE) {
+				packet = new GearmanPacket(magic, type);
+			} else if(start==0 && frameSize==buffer.capacity() && frameSize>this.baseCapacity && !this.pool.isPooled(buffer)) {
+				// The frame was too large for the pool. Give the buffer to the packet rather than copying the body out
+				final ByteBuffer body = buffer.duplicate();
+				body.limit(frameSize).position(HEADER_SIZE);
+				
+				channel.setBuffer(this.createByteBuffer());
+				packet = GearmanPacket.fromBuffer(magic, type, body);
+			} else {
+				final ByteBuffer body = ByteBuffer.allocate(frameSize-HEADER_SIZE);
+				
+				final ByteBuffer src = buffer.duplicate();
+				src.limit(start+frameSize).position(start+HEADER_SIZE);
+				body.put(src).flip();
+				
+				packet = GearmanPacket.fromBuffer(magic, type, body);
+			}
+			
+			channel.onDecode(packet);
+		} catch (Exception e) {
+			LOGGER.warn("Unexpected Exception", e);
+		}
+	}
+	
+	/**
+	 * Starts streaming a partially read frame if the frame qualifies and its leading
+	 * arguments have been read. The packet is decoded and the buffered payload bytes
+	 * are pushed into its stream
+	 * @return
+	 * 		<code>true</code> if the frame is streamed
+	 */
+	private final boolean startStream(final GearmanCodecChannel<Integer> channel, final ByteBuffer buffer, final int start, final int size) {
+		if(this.streamThreshold<=0 || size<=this.streamThreshold) return false;
+		
+		final Type type = Type.fromTypeValue(buffer.getInt(start+4));
+		if(type==null || !channel.isStreamable(type)) return false;
+		
+		final ByteBuffer read = buffer.duplicate();
+		read.position(start+HEADER_SIZE);
+		
+		final int leadingSize = GearmanPacket.getLeadingSize(read, type);
+		if(leadingSize<0 || leadingSize==size) return false;
+		
+		final Magic magic = Magic.fromMagicCode(buffer.getInt(start));
+		
+		final ByteBuffer leading = ByteBuffer.allocate(leadingSize);
+		read.limit(start+HEADER_SIZE+leadingSize);
+		leading.put(read).flip();
+		
+		final GearmanPacketStream stream = new GearmanPacketStream(channel, size-leadingSize);
+		channel.setPacketStream(stream);
+		buffer.position(start+HEADER_SIZE+leadingSize);
+		
+		try {
+			// The handler subscribes to the stream before the first chunk is pushed
+			channel.onDecode(GearmanPacket.fromStream(magic, type, leading, stream));
+		} catch (Exception e) {
+			LOGGER.warn("Unexpected Exception", e);
+		}
+		
+		return true;
+	}
+	
+	private final ByteBuffer resize(final GearmanCodecChannel<Integer> channel, final ByteBuffer buffer, final int capacity) {
+		final ByteBuffer newbuf = this.pool.lease(capacity);
+		
+		buffer.flip();
+		newbuf.put(buffer);
+		this.pool.release(buffer);
+		
+		channel.setBuffer(newbuf);
+		return newbuf;
+	}
+}
@@ -27,12 +27,11 @@
 
 package org.gearman.impl.core;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.nio.ByteBuffer;
 
 import org.gearman.impl.core.GearmanPacket.Magic;
 import org.gearman.impl.core.GearmanPacket.Type;
+import org.gearman.impl.util.ByteBufferPool;
 import org.gearman.impl.util.GearmanUtils;
 
 import static org.gearman.context.GearmanContext.LOGGER;
@@ -43,19 +42,36 @@ public final class StandardCodec implements GearmanCodec<Integer>{
 	private static final int HEADER		= 1;
 	private static final int BODY		= 2;
 	private static final int TEXT		= 3;
+	private static final int STREAM_HEAD	= 4;
+	private static final int STREAM		= 5;
+	private static final int TEXT_DISCARD	= 6;
 	
 //	private static final int MAGIC_POS		= 0;
-//	private static final int TYPE_POS		= 4;
+	private static final int TYPE_POS		= 4;
 	private static final int SIZE_POS		= 8;
 	private static final int HEADER_SIZE	= 12;
 	
+	private static final int BUFFER_SIZE	= 1024;
+	/** The longest text line accepted. Longer lines are discarded */
+	static final int MAX_TEXT_LINE	= 8192;
+	/** The buffer size used while a payload is streamed */
+	private static final int STREAM_BUFFER_SIZE	= 65536;
+	
+	
+	private final ByteBufferPool pool = ByteBufferPool.getDefault();
+	private final int streamThreshold = GearmanUtils.getStreamThreshold();
 	
 	@Override
 	public final ByteBuffer createByteBuffer() {
-		final ByteBuffer buffer = ByteBuffer.allocateDirect(1024);
+		final ByteBuffer buffer = this.pool.lease(BUFFER_SIZE);
 		buffer.limit(1);
 		return buffer;
 	}
+	
+	@Override
+	public final void releaseByteBuffer(final ByteBuffer buffer) {
+		this.pool.release(buffer);
+	}
 
 	@Override
 	public final void decode(final GearmanCodecChannel<Integer> channel, final int byteCount) {
@@ -73,14 +89,23 @@ public final class StandardCodec implements GearmanCodec<Integer>{
 		case TEXT:
 			text(channel);
 			return;
+		case TEXT_DISCARD:
+			textDiscard(channel);
+			return;
+		case STREAM_HEAD:
+			streamHead(channel);
+			return;
+		case STREAM:
+			stream(channel);
+			return;
 		default:
 			assert false;
 		}		
 	}
 
 	@Override
-	public final byte[] encode(final GearmanPacket packet) {
-		return packet.toBytes();
+	public final ByteBuffer[] encode(final GearmanPacket packet) {
+		return packet.toByteBuffers();
 	}
 
 	@Override
@@ -96,6 +121,8 @@ public final class StandardCodec implements GearmanCodec<Integer>{
 			buffer.limit(HEADER_SIZE);
 			channel.setCodecAttachement(HEADER);
 		} else {
+			// Text lines are read in bulk
+			buffer.limit(buffer.capacity());
 			channel.setCodecAttachement(TEXT);
 			text(channel);
 		}
@@ -123,20 +150,113 @@ public final class StandardCodec implements GearmanCodec<Integer>{
 		} else {
 			final int headerAndSize = HEADER_SIZE+size;
 			
-			if(headerAndSize>buffer.capacity()) {
-				// Grow Buffer
-				ByteBuffer newbuf = ByteBuffer.allocateDirect(headerAndSize);
-				
-				buffer.clear();
-				buffer.limit(HEADER_SIZE);
-				newbuf.put(buffer);
+			if(this.streamThreshold>0 && size>this.streamThreshold) {
+				final Type type = Type.fromTypeValue(buffer.getInt(TYPE_POS));
+				if(type!=null && channel.isStreamable(type)) {
+					// Read what fits in the buffer, then look for the leading arguments
+					buffer.limit(Math.min(headerAndSize, buffer.capacity()));
+					channel.setCodecAttachement(STREAM_HEAD);
+					return;
+				}
+			}
+			
+			this.growBody(channel, buffer, headerAndSize);
+		}
+	}
+	
+	/**
+	 * Prepares the buffer to read the rest of the packet body
+	 */
+	private final void growBody(final GearmanCodecChannel<Integer> channel, ByteBuffer buffer, final int headerAndSize) {
+		if(headerAndSize>buffer.capacity()) {
+			// Grow Buffer. The base buffer is returned to the pool until the packet is read
+			ByteBuffer newbuf = this.pool.lease(headerAndSize);
+			
+			buffer.flip();
+			newbuf.put(buffer);
+			this.pool.release(buffer);
+		
+			channel.setBuffer(newbuf);
+			buffer = newbuf;
+		}
+		
+		buffer.limit(headerAndSize);
+		channel.setCodecAttachement(BODY);
+	}
+	
+	private final void streamHead(final GearmanCodecChannel<Integer> channel) {
+		try {
+			final ByteBuffer buffer = channel.getBuffer();
+			if(buffer.hasRemaining()) return;
+			
+			final int headerAndSize = HEADER_SIZE+buffer.getInt(SIZE_POS);
+			final Type type = Type.fromTypeValue(buffer.getInt(TYPE_POS));
+			
+			final ByteBuffer read = buffer.duplicate();
+			read.flip();
+			read.position(HEADER_SIZE);
+			
+			final int leadingSize = GearmanPacket.getLeadingSize(read, type);
+			final int payloadSize = headerAndSize-HEADER_SIZE-leadingSize;
 			
-				channel.setBuffer(newbuf);
-				buffer = newbuf;
+			if(leadingSize<0 || payloadSize==0) {
+				// The leading arguments don't fit in the buffer. Read the packet as a whole
+				this.growBody(channel, buffer, headerAndSize);
+				this.body(channel);
+				return;
 			}
 			
-			buffer.limit(headerAndSize);
-			channel.setCodecAttachement(BODY);
+			final Magic magic = Magic.fromMagicCode(buffer.getInt(0));
+			
+			final ByteBuffer leading = ByteBuffer.allocate(leadingSize);
+			read.limit(HEADER_SIZE+leadingSize);
+			leading.put(read).flip();
+			read.limit(buffer.position());
+			
+			final GearmanPacketStream stream = new GearmanPacketStream(channel, payloadSize);
+			final GearmanPacket packet = GearmanPacket.fromStream(magic, type, leading, stream);
+			
+			// Use a larger buffer while the payload is streamed
+			final ByteBuffer streamBuffer = this.pool.lease(STREAM_BUFFER_SIZE);
+			channel.setBuffer(streamBuffer);
+			channel.setPacketStream(stream);
+			channel.setCodecAttachement(STREAM);
+			
+			// The handler subscribes to the stream before the first chunk is pushed
+			channel.onDecode(packet);
+			
+			stream.push(read);
+			this.pool.release(buffer);
+			
+			this.nextChunk(channel, streamBuffer, stream);
+		} catch (Exception e) {
+			LOGGER.warn("Unexpected Exception", e);
+		}
+	}
+	
+	private final void stream(final GearmanCodecChannel<Integer> channel) {
+		final ByteBuffer buffer = channel.getBuffer();
+		if(buffer.hasRemaining()) return;
+		
+		final GearmanPacketStream stream = channel.getPacketStream();
+		
+		buffer.flip();
+		stream.push(buffer);
+		
+		this.nextChunk(channel, buffer, stream);
+	}
+	
+	private final void nextChunk(final GearmanCodecChannel<Integer> channel, final ByteBuffer buffer, final GearmanPacketStream stream) {
+		final int remaining = stream.getRemaining();
+		
+		if(remaining==0) {
+			channel.setPacketStream(null);
+			this.pool.release(buffer);
+			channel.setBuffer(this.createByteBuffer());
+			channel.setCodecAttachement(FORMAT);
+		} else {
+			buffer.clear();
+			buffer.limit(Math.min(remaining, buffer.capacity()));
 		}
 	}
 	
@@ -147,25 +267,34 @@ public final class StandardCodec implements GearmanCodec<Integer>{
 			
 			final Magic magic;
 			final Type type;
-			final byte[] body;
+			final ByteBuffer body;
 			
-			try {
-				buffer.flip();
-				
-				magic = Magic.fromMagicCode(buffer.getInt());
-				type = Type.fromTypeValue(buffer.getInt());
-				final int size = buffer.getInt();
-				
-				body = new byte[size];
-				buffer.get(body);
+			buffer.flip();
+			
+			magic = Magic.fromMagicCode(buffer.getInt());
+			type = Type.fromTypeValue(buffer.getInt());
+			final int size = buffer.getInt();
+			
+			if(buffer.capacity()>BUFFER_SIZE && !this.pool.isPooled(buffer)) {
+				// The packet was too large for the pool. Give the buffer to the packet rather than copying the body out
+				body = buffer.slice();
+				channel.setBuffer(this.createByteBuffer());
+			} else {
+				body = ByteBuffer.wrap(new byte[size]);
+				buffer.get(body.array());
 				
-			} finally {
-				buffer.clear();
-				buffer.limit(1);
-				channel.setCodecAttachement(FORMAT);
+				if(buffer.capacity()>BUFFER_SIZE) {
+					// Shrink back to the base size
+					this.pool.release(buffer);
+					channel.setBuffer(this.createByteBuffer());
+				} else {
+					buffer.clear();
+					buffer.limit(1);
+				}
 			}
+			channel.setCodecAttachement(FORMAT);
 			
-			final GearmanPacket packet = new GearmanPacket(magic, type, parseArguments(body,type));
+			final GearmanPacket packet = GearmanPacket.fromBuffer(magic, type, body);
 			
 			channel.onDecode(packet);
 		} catch (Exception e) {
@@ -174,70 +303,119 @@ public final class StandardCodec implements GearmanCodec<Integer>{
 	}
 	
 	private final void text(final GearmanCodecChannel<Integer> channel) {
-		try {
-			final ByteBuffer buffer = channel.getBuffer();
-			if(buffer.hasRemaining()) return;
+		ByteBuffer buffer = channel.getBuffer();
+		
+		// Decode every complete line received so far
+		int start = 0;
+		int end;
+		while((end = endOfLine(buffer, start, buffer.position()))>=0) {
+			decodeText(channel, buffer, start, end-start);
+			start = end;
+		}
+		
+		if(start>0) {
+			this.replay(channel, buffer, start);
+			return;
+		}
+		
+		if(buffer.hasRemaining()) return;
+		
+		if(buffer.capacity()<MAX_TEXT_LINE) {
+			// Grow the buffer to fit the line
+			final ByteBuffer newbuf = this.pool.lease(Math.min(buffer.capacity()*2, MAX_TEXT_LINE));
 			
-			final char newValue = (char) buffer.get(buffer.position()-1);
+			buffer.flip();
+			newbuf.put(buffer);
+			this.pool.release(buffer);
 			
-			if(newValue!='\n' && newValue!='\r') {
-				buffer.limit(buffer.limit()+1);
-				return;
-			}
+			channel.setBuffer(newbuf);
+		} else {
+			LOGGER.warn("Text line exceeds " + MAX_TEXT_LINE + " bytes. Discarding the line");
 			
-			try {
-				final byte[] strBytes = new byte[buffer.position()];
-				
-				buffer.flip();
-				buffer.get(strBytes);
-				
-				final String str = new String(strBytes, GearmanUtils.getCharset());
-				final GearmanPacket packet = GearmanPacket.createTEXT(str);
-				
-				channel.onDecode(packet);
-			} finally {
-				buffer.clear();
-				buffer.limit(1);
-				channel.setCodecAttachement(FORMAT);
-			}
-		} catch (Throwable th) {
-			LOGGER.warn("Unexpected Exception", th);
+			buffer.clear();
+			channel.setCodecAttachement(TEXT_DISCARD);
 		}
 	}
 	
-	private static final byte[][] parseArguments(final byte[] body, final Type type) {
-		final int argCount = type.getArgumentCount();
-		if(argCount==0) return null;
+	private final void textDiscard(final GearmanCodecChannel<Integer> channel) {
+		final ByteBuffer buffer = channel.getBuffer();
 		
-		final byte[][] value = new byte[argCount][];
-		final ByteArrayOutputStream buff = new ByteArrayOutputStream();
+		final int end = endOfLine(buffer, 0, buffer.position());
+		if(end<0) {
+			buffer.clear();
+		} else {
+			this.replay(channel, buffer, end);
+		}
+	}
+	
+	/**
+	 * Feeds bytes that were read past the end of a text line back through the decoder,
+	 * as if they were just read off the socket
+	 * @param from
+	 * 		The position of the first byte to replay. All bytes up to the buffer's position are replayed
+	 */
+	private final void replay(final GearmanCodecChannel<Integer> channel, ByteBuffer buffer, final int from) {
+		final int length = buffer.position()-from;
+		final byte[] pending = new byte[length];
 		
-		byte b;
-		int pos=0, arg=0;
-		for(; pos<body.length && arg<argCount-1 ; pos++) {
-			b = body[pos];
-			if(b!=0) {
-				buff.write(b);
-			} else {
-				value[arg] = buff.toByteArray();
-				buff.reset();
-				arg++;
-			}
+		buffer.flip();
+		buffer.position(from);
+		buffer.get(pending);
+		
+		if(buffer.capacity()>BUFFER_SIZE) {
+			this.pool.release(buffer);
+			buffer = this.createByteBuffer();
+			channel.setBuffer(buffer);
+		} else {
+			buffer.clear();
+			buffer.limit(1);
 		}
-		try {
-			buff.close();
-		} catch (IOException e) {
-			LOGGER.warn("Failed to close ByteArrayOutputStream", e);
+		channel.setCodecAttachement(FORMAT);
+		
+		for(int pos=0; pos<length;) {
+			final ByteBuffer current = channel.getBuffer();
+			final int count = Math.min(current.remaining(), length-pos);
+			
+			current.put(pending, pos, count);
+			pos += count;
+			
+			this.decode(channel, count);
 		}
+	}
+	
+	/**
+	 * Finds the end of the first text line in the given range. A line ends with a
+	 * <code>'\n'</code>, a <code>'\r'</code>, or a <code>"\r\n"</code> pair.
+	 * @return
+	 * 		The index following the line terminator, or -1 if the range holds no complete line
+	 */
+	static final int endOfLine(final ByteBuffer buffer, final int from, final int to) {
+		for(int i=from; i<to; i++) {
+			final byte b = buffer.get(i);
+			if(b=='\n') return i+1;
+			if(b=='\r') return (i+1<to && buffer.get(i+1)=='\n')? i+2: i+1;
+		}
+		return -1;
+	}
+	
+	/**
+	 * Decodes a text line, including its terminator. Blank lines are skipped
+	 */
+	static final void decodeText(final GearmanCodecChannel<?> channel, final ByteBuffer buffer, final int start, final int length) {
+		final byte first = buffer.get(start);
+		if(first=='\n' || first=='\r') return;
 		
-		if(arg==argCount-1) {
-			byte[] bArray = new byte[body.length-pos];
-			System.arraycopy(body, pos, bArray, 0, bArray.length);
-			value[arg] = bArray;
+		try {
+			final byte[] strBytes = new byte[length];
 			
-			return value;
-		} else {
-			return null;
+			final ByteBuffer line = buffer.duplicate();
+			line.limit(start+length).position(start);
+			line.get(strBytes);
+			
+			final String str = new String(strBytes, GearmanUtils.getCharset());
+			channel.onDecode(GearmanPacket.createTEXT(str));
+		} catch (Throwable th) {
+			LOGGER.warn("Unexpected Exception", th);
 		}
 	}
 }
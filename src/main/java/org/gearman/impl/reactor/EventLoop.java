@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.reactor;
+
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+/**
+ * A single selector thread. Every channel registered with an event loop is only
+ * accessed by the loop's thread, so per-channel state needs no locking. Other
+ * threads hand work to the loop with {@link #execute(Runnable)}.
+ * 
+ * @author isaiah
+ */
+final class EventLoop implements Runnable {
+	
+	/**
+	 * Handles the ready operations of a registered channel. The handler is the
+	 * key's attachment
+	 */
+	interface KeyHandler {
+		/**
+		 * Called on the loop's thread when the key's channel is ready
+		 * @param key
+		 * 		The selected key
+		 */
+		public void ready(SelectionKey key);
+		
+		/**
+		 * Called on the loop's thread when the loop shuts down with the key still registered
+		 * @param key
+		 * 		The registered key
+		 */
+		public void shutdown(SelectionKey key);
+	}
+	
+	private final Selector selector;
+	private final Thread thread;
+	
+	/** Tasks handed to the loop by other threads */
+	private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<Runnable>();
+	
+	private volatile boolean isShutdown = false;
+	
+	EventLoop(final String name) throws IOException {
+		this.selector = Selector.open();
+		
+		this.thread = new Thread(this, name);
+		this.thread.setDaemon(true);
+	}
+	
+	final void start() {
+		this.thread.start();
+	}
+	
+	/**
+	 * Tests if the calling thread is this loop's thread
+	 * @return
+	 * 		<code>true</code> if called from the loop
+	 */
+	final boolean inLoop() {
+		return Thread.currentThread()==this.thread;
+	}
+	
+	final boolean isShutdown() {
+		return this.isShutdown;
+	}
+	
+	/**
+	 * Runs the task on the loop's thread. Tasks run in the order they're given
+	 * @param task
+	 * 		The task to run
+	 */
+	final void execute(final Runnable task) {
+		this.tasks.add(task);
+		if(!this.inLoop()) this.selector.wakeup();
+	}
+	
+	/**
+	 * Wakes the loop so cancelled keys are flushed from the selector
+	 */
+	final void wakeup() {
+		this.selector.wakeup();
+	}
+	
+	/**
+	 * Registers a channel with this loop. Must be called from the loop's thread
+	 * @return
+	 * 		The channel's key
+	 */
+	final SelectionKey register(final SelectableChannel channel, final int ops, final KeyHandler handler) throws ClosedChannelException {
+		assert this.inLoop();
+		return channel.register(this.selector, ops, handler);
+	}
+	
+	/**
+	 * Stops the loop. Channels still registered are handed to their handlers to close
+	 */
+	final void shutdown() {
+		this.isShutdown = true;
+		this.selector.wakeup();
+	}
+	
+	@Override
+	public void run() {
+		try {
+			while(!this.isShutdown) {
+				// Tasks queued by the loop itself don't wake the selector
+				if(this.tasks.isEmpty()) this.selector.select();
+				else this.selector.selectNow();
+				
+				this.runTasks();
+				
+				final Iterator<SelectionKey> it = this.selector.selectedKeys().iterator();
+				while(it.hasNext()) {
+					final SelectionKey key = it.next();
+					it.remove();
+					
+					if(!key.isValid()) continue;
+					try {
+						((KeyHandler)key.attachment()).ready(key);
+					} catch (Throwable th) {
+						LOGGER.warn("Unexpected Exception", th);
+					}
+				}
+			}
+		} catch (IOException ioe) {
+			LOGGER.error("Selector failed", ioe);
+		} finally {
+			this.close();
+		}
+	}
+	
+	private final void runTasks() {
+		Runnable task;
+		while((task=this.tasks.poll())!=null) {
+			try {
+				task.run();
+			} catch (Throwable th) {
+				LOGGER.warn("Unexpected Exception", th);
+			}
+		}
+	}
+	
+	private final void close() {
+		this.isShutdown = true;
+		
+		final List<SelectionKey> keys = new ArrayList<SelectionKey>(this.selector.keys());
+		for(SelectionKey key : keys) {
+			try {
+				((KeyHandler)key.attachment()).shutdown(key);
+			} catch (Throwable th) {
+				LOGGER.warn("Unexpected Exception", th);
+			}
+		}
+		
+		// Let pending writes fail against the closed channels
+		this.runTasks();
+		
+		try {
+			this.selector.close();
+		} catch (IOException ioe) {
+			LOGGER.warn("Failed to close selector", ioe);
+		}
+	}
+}
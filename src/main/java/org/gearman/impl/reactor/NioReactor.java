@@ -49,10 +49,10 @@ import org.gearman.impl.core.GearmanConnectionManager.ConnectCallbackResult;
 import static org.gearman.context.GearmanContext.LOGGER;
 
 /**
- * The connection handler
+ * A reactor driven by an {@link AsynchronousChannelGroup} over a user defined thread pool
  * @author isaiah
  */
-public final class NioReactor {
+public final class NioReactor implements Reactor {
 	
 	/** nio.2 thread pool */
 	private final AsynchronousChannelGroup asyncChannelGroup;
@@ -74,6 +74,7 @@ public final class NioReactor {
 	/**
 	 * Closes all ports and shuts down the NioReactor service
 	 */
+	@Override
 	public synchronized void shutdown() {
 		this.closePorts();
 		asyncChannelGroup.shutdown();
@@ -84,6 +85,7 @@ public final class NioReactor {
 	 * @return
 	 * 		<code>true</code> if this NioReactor service is shutdown
 	 */
+	@Override
 	public boolean isShutdown() {
 		return asyncChannelGroup.isShutdown();
 	}
@@ -95,6 +97,7 @@ public final class NioReactor {
 	 * @return
 	 * @throws IOException
 	 */
+	@Override
 	public synchronized boolean closePort(int port) throws IOException {
 		final AsynchronousServerSocketChannel server = this.ports.remove(port);
 		if(server==null) return false;
@@ -106,6 +109,7 @@ public final class NioReactor {
 	/**
 	 * Closes all open ports
 	 */
+	@Override
 	public synchronized void closePorts() {
 		Iterator<AsynchronousServerSocketChannel> it = this.ports.values().iterator();
 		while(it.hasNext()) {
@@ -124,6 +128,7 @@ public final class NioReactor {
 	 * @return
 	 * 		The list of open ports
 	 */
+	@Override
 	public synchronized Set<Integer> getOpenPorts() {
 		return Collections.unmodifiableSet(this.ports.keySet());
 	}
@@ -136,6 +141,7 @@ public final class NioReactor {
 	 * 		The socket handler
 	 * @param callback
 	 */
+	@Override
 	public final <X> void openSocket(final InetSocketAddress adrs, final SocketHandler<X> sHandler, final GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> callback) {
 		final AsynchronousSocketChannel socket;
 		try {
@@ -204,6 +210,7 @@ public final class NioReactor {
 		});
 	}
 	
+	@Override
 	public synchronized final <A> void openPort(final int port, final SocketHandler<A> handler) throws IOException {
 		final AsynchronousServerSocketChannel server = AsynchronousServerSocketChannel.open(this.asyncChannelGroup);
 		try {
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.reactor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.Set;
+
+import org.gearman.impl.core.GearmanCallbackHandler;
+import org.gearman.impl.core.GearmanConnectionManager.ConnectCallbackResult;
+
+/**
+ * Drives the I/O for a set of sockets and server ports
+ * 
+ * @author isaiah
+ */
+public interface Reactor {
+	
+	/**
+	 * Closes all ports and shuts down the reactor
+	 */
+	public void shutdown();
+	
+	/**
+	 * Tests if this reactor is shutdown
+	 * @return
+	 * 		<code>true</code> if this reactor is shutdown
+	 */
+	public boolean isShutdown();
+	
+	/**
+	 * Attempts to close an open port
+	 * @param port
+	 * 		The port to close
+	 * @return
+	 * 		<code>true</code> if the port was open and is now closed
+	 * @throws IOException
+	 * 		If an I/O error occurs
+	 */
+	public boolean closePort(int port) throws IOException;
+	
+	/**
+	 * Closes all open ports
+	 */
+	public void closePorts();
+	
+	/**
+	 * Returns the list of open ports
+	 * @return
+	 * 		The list of open ports
+	 */
+	public Set<Integer> getOpenPorts();
+	
+	/**
+	 * Opens a new socket
+	 * @param adrs
+	 * 		The address of the server to connect to
+	 * @param sHandler
+	 * 		The socket handler
+	 * @param callback
+	 * 		Notified once the connection attempt has completed
+	 */
+	public <X> void openSocket(InetSocketAddress adrs, SocketHandler<X> sHandler, GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> callback);
+	
+	/**
+	 * Opens a port and accepts connections on it
+	 * @param port
+	 * 		The port to open
+	 * @param handler
+	 * 		The socket handler for accepted connections
+	 * @throws IOException
+	 * 		If the port could not be opened
+	 */
+	public <A> void openPort(int port, SocketHandler<A> handler) throws IOException;
+}
@@ -0,0 +1,355 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.reactor;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.Channel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.gearman.impl.core.GearmanCallbackHandler;
+import org.gearman.impl.core.GearmanConnectionManager.ConnectCallbackResult;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+/**
+ * A reactor driven by a fixed set of {@link java.nio.channels.Selector} threads. Each
+ * connection is pinned to one event loop for its lifetime, so its reads, writes and
+ * callbacks always run on the same thread. The I/O threads are separate from the
+ * thread pool that runs user work.
+ * 
+ * @author isaiah
+ */
+public final class SelectorReactor implements Reactor {
+	
+	/** The event loops. Connections are assigned round-robin */
+	private final EventLoop[] loops;
+	private final AtomicInteger nextLoop = new AtomicInteger();
+	
+	/** the set of open ports */
+	private final ConcurrentHashMap<Integer, Port> ports = new ConcurrentHashMap<Integer, Port>();
+	
+	private volatile boolean isShutdown = false;
+	
+	/**
+	 * Creates a new SelectorReactor
+	 * @param threads
+	 * 		The number of event loops. If less than 1, one loop per available processor is created
+	 * @throws IOException
+	 * 		If an I/O error occurs
+	 */
+	public SelectorReactor(int threads) throws IOException {
+		if(threads<1) threads = Runtime.getRuntime().availableProcessors();
+		
+		this.loops = new EventLoop[threads];
+		for(int i=0; i<threads; i++) {
+			this.loops[i] = new EventLoop("gearman-selector-" + i);
+		}
+		for(EventLoop loop : this.loops) {
+			loop.start();
+		}
+	}
+	
+	private final EventLoop nextLoop() {
+		return this.loops[(this.nextLoop.getAndIncrement() & Integer.MAX_VALUE) % this.loops.length];
+	}
+	
+	@Override
+	public synchronized void shutdown() {
+		this.isShutdown = true;
+		this.closePorts();
+		
+		for(EventLoop loop : this.loops) {
+			loop.shutdown();
+		}
+	}
+	
+	@Override
+	public boolean isShutdown() {
+		return this.isShutdown;
+	}
+	
+	@Override
+	public synchronized boolean closePort(int port) throws IOException {
+		final Port server = this.ports.remove(port);
+		if(server==null) return false;
+		
+		server.close();
+		return true;
+	}
+	
+	@Override
+	public synchronized void closePorts() {
+		Iterator<Port> it = this.ports.values().iterator();
+		while(it.hasNext()) {
+			try {
+				Port port = it.next();
+				port.close();
+				it.remove();
+			} catch (IOException e) {
+				LOGGER.warn("failed to close port",e);
+			}
+		}
+	}
+	
+	@Override
+	public synchronized Set<Integer> getOpenPorts() {
+		return Collections.unmodifiableSet(this.ports.keySet());
+	}
+	
+	@Override
+	public final <X> void openSocket(final InetSocketAddress adrs, final SocketHandler<X> sHandler, final GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> callback) {
+		if(this.isShutdown) {
+			onConnect(adrs, ConnectCallbackResult.SERVICE_SHUTDOWN, callback);
+			return;
+		}
+		
+		final SocketChannel socket;
+		try {
+			socket = SocketChannel.open();
+			socket.configureBlocking(false);
+		} catch (IOException e) {
+			onConnect(adrs, ConnectCallbackResult.CONNECTION_FAILED, callback);
+			return;
+		}
+		
+		final EventLoop loop = this.nextLoop();
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				if(loop.isShutdown()) {
+					closeChannel(socket);
+					onConnect(adrs, ConnectCallbackResult.SERVICE_SHUTDOWN, callback);
+					return;
+				}
+				
+				final Connector<X> connector = new Connector<X>(adrs, socket, loop, sHandler, callback);
+				try {
+					if(socket.connect(adrs)) {
+						connector.connected(null);
+					} else {
+						loop.register(socket, SelectionKey.OP_CONNECT, connector);
+					}
+				} catch (IOException e) {
+					closeChannel(socket);
+					onConnect(adrs, ConnectCallbackResult.CONNECTION_FAILED, callback);
+				}
+			}
+		});
+	}
+	
+	@Override
+	public synchronized final <A> void openPort(final int port, final SocketHandler<A> handler) throws IOException {
+		final ServerSocketChannel server = ServerSocketChannel.open();
+		try {
+			server.bind(new InetSocketAddress(port));
+			server.configureBlocking(false);
+		} catch (IOException ioe) {
+			server.close();
+			throw ioe;
+		}
+		
+		final EventLoop loop = this.nextLoop();
+		
+		final Object o;
+		o = this.ports.putIfAbsent(port, new Port(server, loop));
+		
+		// If this port is already open, an exception should have been thrown
+		assert o==null;
+		
+		loop.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					loop.register(server, SelectionKey.OP_ACCEPT, new Acceptor<A>(server, handler));
+				} catch (IOException ioe) {
+					// The port was closed before it was registered
+					closeChannel(server);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Creates the socket for a connected channel and starts reading
+	 * @param key
+	 * 		The channel's key, or <code>null</code> if the channel is not registered
+	 */
+	private static final <X> void start(final SocketChannel channel, final EventLoop loop, final SocketHandler<X> handler, final SelectionKey key) {
+		try {
+			final SelectorSocket<X> socket = new SelectorSocket<X>(channel, loop, handler);
+			handler.onAccept(socket);
+			socket.start(key);
+		} catch (IOException e) {
+			// failed to create SelectorSocket.
+			closeChannel(channel);
+		} catch (Throwable th) {
+			// User threw runtime exception
+			th.printStackTrace();
+			closeChannel(channel);
+		}
+	}
+	
+	private static final void onConnect(final InetSocketAddress adrs, final ConnectCallbackResult result, final GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> callback) {
+		try {
+			callback.onComplete(adrs, result);
+		} catch (Throwable th) {
+			// user threw exception
+			th.printStackTrace();
+		}
+	}
+	
+	private static final void closeChannel(final Channel channel) {
+		try {
+			channel.close();
+		} catch (IOException ioe) {
+			LOGGER.warn("Failed to close channel", ioe);
+		}
+	}
+	
+	/**
+	 * An open server port and the loop accepting its connections
+	 */
+	private static final class Port {
+		private final ServerSocketChannel server;
+		private final EventLoop loop;
+		
+		private Port(final ServerSocketChannel server, final EventLoop loop) {
+			this.server = server;
+			this.loop = loop;
+		}
+		
+		private final void close() throws IOException {
+			this.server.close();
+			this.loop.wakeup();
+		}
+	}
+	
+	/**
+	 * Finishes an outgoing connection
+	 */
+	private static final class Connector<X> implements EventLoop.KeyHandler {
+		private final InetSocketAddress adrs;
+		private final SocketChannel socket;
+		private final EventLoop loop;
+		private final SocketHandler<X> handler;
+		private final GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> callback;
+		
+		private Connector(final InetSocketAddress adrs, final SocketChannel socket, final EventLoop loop, final SocketHandler<X> handler, final GearmanCallbackHandler<InetSocketAddress, ConnectCallbackResult> callback) {
+			this.adrs = adrs;
+			this.socket = socket;
+			this.loop = loop;
+			this.handler = handler;
+			this.callback = callback;
+		}
+		
+		private final void connected(final SelectionKey key) {
+			onConnect(this.adrs, ConnectCallbackResult.SUCCESS, this.callback);
+			start(this.socket, this.loop, this.handler, key);
+		}
+
+		@Override
+		public void ready(final SelectionKey key) {
+			try {
+				if(!this.socket.finishConnect()) return;
+			} catch (IOException e) {
+				key.cancel();
+				closeChannel(this.socket);
+				onConnect(this.adrs, ConnectCallbackResult.CONNECTION_FAILED, this.callback);
+				return;
+			}
+			
+			key.interestOps(0);
+			this.connected(key);
+		}
+
+		@Override
+		public void shutdown(final SelectionKey key) {
+			closeChannel(this.socket);
+			onConnect(this.adrs, ConnectCallbackResult.SERVICE_SHUTDOWN, this.callback);
+		}
+	}
+	
+	/**
+	 * Accepts connections on a server port and hands them out to the event loops
+	 */
+	private final class Acceptor<A> implements EventLoop.KeyHandler {
+		private final ServerSocketChannel server;
+		private final SocketHandler<A> handler;
+		
+		private Acceptor(final ServerSocketChannel server, final SocketHandler<A> handler) {
+			this.server = server;
+			this.handler = handler;
+		}
+		
+		@Override
+		public void ready(final SelectionKey key) {
+			while(true) {
+				final SocketChannel channel;
+				try {
+					channel = this.server.accept();
+					if(channel==null) return;
+				} catch (IOException ioe) {
+					LOGGER.warn("Failed to accept connection", ioe);
+					return;
+				}
+				
+				try {
+					channel.configureBlocking(false);
+				} catch (IOException ioe) {
+					closeChannel(channel);
+					continue;
+				}
+				
+				final EventLoop loop = SelectorReactor.this.nextLoop();
+				loop.execute(new Runnable() {
+					@Override
+					public void run() {
+						if(loop.isShutdown()) {
+							closeChannel(channel);
+							return;
+						}
+						start(channel, loop, Acceptor.this.handler, null);
+					}
+				});
+			}
+		}
+
+		@Override
+		public void shutdown(final SelectionKey key) {
+			closeChannel(this.server);
+		}
+	}
+}
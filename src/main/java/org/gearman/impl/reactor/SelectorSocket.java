@@ -0,0 +1,569 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.reactor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.CompletionHandler;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.gearman.impl.util.GearmanUtils;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+/**
+ * A socket pinned to a single {@link EventLoop}. All I/O and all socket state
+ * changes happen on the loop's thread. Calls from other threads are handed to
+ * the loop.
+ * 
+ * @author isaiah
+ */
+final class SelectorSocket<A> implements Socket<A>, EventLoop.KeyHandler {
+	
+	private final SocketChannel socketChannel;
+	private final InetSocketAddress local;
+	private final InetSocketAddress remote;
+	
+	private final EventLoop loop;
+	private final SocketHandler<A> handler;
+	
+	private A att;
+	private ByteBuffer buffer;
+	
+	private SelectionKey key;
+	
+	/** Writes handed over by any thread, not yet taken by the loop */
+	private final Queue<Writter<?>> pending = new ConcurrentLinkedQueue<Writter<?>>();
+	/** Set while a flush task is queued on the loop */
+	private final AtomicBoolean isFlushQueued = new AtomicBoolean(false);
+	/** Counts the bytes queued for writing */
+	private final WriteWatermark watermark = new WriteWatermark();
+	
+	// --- Loop confined state --- //
+	
+	/** Writes taken by the loop, in order */
+	private final ArrayDeque<Writter<?>> writters = new ArrayDeque<Writter<?>>();
+	/** The stream chunk being written, if any */
+	private final ByteBuffer[] chunk = new ByteBuffer[1];
+	/** Set while flushing, so writes made by callbacks don't start a nested flush */
+	private boolean isFlushing;
+	/** Set while the handler is processing a read */
+	private boolean isReading;
+	private boolean isReadSuspended;
+	/** Set while the write queue is above the high watermark */
+	private boolean isReadThrottled;
+	
+	/** The number of bytes pending writes are merged into before a write is issued */
+	private final int writeBatchSize;
+	
+	private volatile boolean isClosed = false;
+	
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			SelectorSocket.this.isFlushQueued.set(false);
+			SelectorSocket.this.flush();
+		}
+	};
+	
+	private final Runnable writabilityTask = new Runnable() {
+		@Override
+		public void run() {
+			SelectorSocket.this.writabilityChanged();
+		}
+	};
+	
+	private final Runnable sourceReadyTask = new Runnable() {
+		@Override
+		public void run() {
+			SelectorSocket.this.scheduleFlush();
+		}
+	};
+	
+	SelectorSocket(final SocketChannel socketChannel, final EventLoop loop, final SocketHandler<A> handler) throws IOException {
+		this.local = (InetSocketAddress) socketChannel.getLocalAddress();
+		this.remote = (InetSocketAddress) socketChannel.getRemoteAddress();
+		
+		this.socketChannel = socketChannel;
+		this.loop = loop;
+		
+		this.handler = handler;
+		this.buffer = handler.createSocketBuffer();
+		
+		this.writeBatchSize = GearmanUtils.getWriteBatchSize();
+	}
+	
+	/**
+	 * Starts reading. Must be called from the loop after {@link SocketHandler#onAccept(Socket)}
+	 * @param key
+	 * 		The channel's key, or <code>null</code> if the channel is not registered yet
+	 */
+	final void start(final SelectionKey key) throws IOException {
+		assert this.loop.inLoop();
+		
+		if(key==null) {
+			this.key = this.loop.register(this.socketChannel, 0, this);
+		} else {
+			this.key = key;
+			key.attach(this);
+		}
+		
+		if(this.isClosed) {
+			// Closed in onAccept
+			this.closeConnection();
+			return;
+		}
+		
+		this.updateInterest();
+		this.flush();
+	}
+	
+	@Override
+	public void close() {
+		this.isClosed = true;
+		this.scheduleFlush();
+	}
+
+	@Override
+	public A getAttachment() {
+		return att;
+	}
+
+	@Override
+	public ByteBuffer getByteBuffer() {
+		return buffer;
+	}
+
+	@Override
+	public InetAddress getInetAddress() {
+		return this.remote.getAddress();
+	}
+
+	@Override
+	public boolean getKeepAlive() throws IOException {
+		return this.socketChannel.getOption(StandardSocketOptions.SO_KEEPALIVE);
+	}
+
+	@Override
+	public InetAddress getLocalAddress() {
+		return this.local.getAddress();
+	}
+	
+	@Override
+	public int getLocalPort() {
+		return this.local.getPort();
+	}
+
+	@Override
+	public SocketAddress getLocalSocketAddress() {
+		return this.local;
+	}
+
+	@Override
+	public int getPort() {
+		return this.remote.getPort();
+	}
+
+	@Override
+	public SocketAddress getRemoteSocketAddress() {
+		return this.remote;
+	}
+
+	@Override
+	public boolean getTcpNoDelay() throws IOException {
+		return this.socketChannel.getOption(StandardSocketOptions.TCP_NODELAY);
+	}
+
+	@Override
+	public boolean isClosed() {
+		return this.isClosed;
+	}
+
+	@Override
+	public void setAttachment(A att) {
+		this.att = att;
+	}
+
+	@Override
+	public void setByteBuffer(ByteBuffer buffer) {
+		this.buffer = buffer;
+	}
+
+	@Override
+	public void setKeepAlive(boolean on) throws IOException {
+		this.socketChannel.setOption(StandardSocketOptions.SO_KEEPALIVE, on);
+	}
+
+	@Override
+	public void setTcpNoDelay(boolean on) throws IOException {
+		this.socketChannel.setOption(StandardSocketOptions.TCP_NODELAY, on);
+	}
+	
+	@Override
+	public void suspendRead() {
+		this.setReadSuspended(true);
+	}
+	
+	@Override
+	public void resumeRead() {
+		this.setReadSuspended(false);
+	}
+	
+	private final void setReadSuspended(final boolean value) {
+		if(this.loop.inLoop()) {
+			this.isReadSuspended = value;
+			this.updateInterest();
+		} else {
+			this.loop.execute(new Runnable() {
+				@Override
+				public void run() {
+					SelectorSocket.this.isReadSuspended = value;
+					SelectorSocket.this.updateInterest();
+				}
+			});
+		}
+	}
+
+	@Override
+	public <A2> void write(ByteBuffer[] data, A2 att, CompletionHandler<ByteBuffer[], A2> callback) {
+		this.write(data, null, att, callback);
+	}
+	
+	@Override
+	public <A2> void write(ByteBuffer[] data, StreamSource source, A2 att, CompletionHandler<ByteBuffer[], A2> callback) {
+		final Writter<A2> writter = new Writter<A2>(data, source, att, callback);
+		if(this.watermark.add(writter.size)) this.writabilityChanged();
+		
+		this.pending.add(writter);
+		this.scheduleFlush();
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return this.watermark.isWritable();
+	}
+	
+	/**
+	 * Throttles or resumes reading to match the current writability, then notifies the handler
+	 */
+	private final void writabilityChanged() {
+		if(!this.loop.inLoop()) {
+			this.loop.execute(this.writabilityTask);
+			return;
+		}
+		
+		// The state is read on the loop, so the last task applies the latest state
+		this.isReadThrottled = !this.watermark.isWritable();
+		this.updateInterest();
+		this.handler.onWritabilityChanged(this);
+	}
+	
+	/**
+	 * Removes written or dropped writers from the write queue's byte count
+	 */
+	private final void dequeued(final long size) {
+		if(this.watermark.remove(size)) this.writabilityChanged();
+	}
+	
+	/**
+	 * Flushes now if called from the loop, otherwise queues a flush on the loop once
+	 */
+	private final void scheduleFlush() {
+		if(this.loop.inLoop()) {
+			this.flush();
+		} else if(this.isFlushQueued.compareAndSet(false, true)) {
+			this.loop.execute(this.flushTask);
+		}
+	}
+	
+	@Override
+	public void ready(final SelectionKey key) {
+		if(key.isWritable()) this.flush();
+		if(key.isValid() && key.isReadable()) this.read();
+	}
+	
+	@Override
+	public void shutdown(final SelectionKey key) {
+		this.isClosed = true;
+		this.closeConnection();
+	}
+	
+	private final void read() {
+		final int result;
+		try {
+			result = this.socketChannel.read(this.buffer);
+		} catch (IOException ioe) {
+			// An IOException is sometimes thrown when the server suddenly disconnects
+			this.isClosed = true;
+			this.closeConnection();
+			return;
+		}
+		
+		if(result==-1) {
+			// EOF
+			this.isClosed = true;
+			this.closeConnection();
+			return;
+		}
+		
+		this.isReading = true;
+		try {
+			this.handler.onRead(result, this);
+		} finally {
+			this.isReading = false;
+		}
+		
+		// The connection may have been closed while the handler held the buffer
+		if(!this.socketChannel.isOpen()) this.releaseBuffer();
+	}
+	
+	/**
+	 * Writes as much pending data as the socket accepts. If the socket is full, the
+	 * rest is written when the socket becomes writable.
+	 */
+	private final void flush() {
+		assert this.loop.inLoop();
+		if(this.isFlushing || this.key==null) return;
+		
+		this.isFlushing = true;
+		try {
+			while(true) {
+				Writter<?> writter;
+				while((writter=this.pending.poll())!=null) {
+					this.writters.add(writter);
+				}
+				
+				if(!this.socketChannel.isOpen()) {
+					this.failWritters(new ClosedChannelException());
+					return;
+				}
+				
+				writter = this.writters.peek();
+				if(writter==null) {
+					this.setWriteInterest(false);
+					if(this.isClosed) this.closeConnection();
+					return;
+				}
+				
+				final boolean isDone = writter.source!=null? this.writeStream(writter): this.writeBatch();
+				if(!isDone) return;
+			}
+		} catch (IOException ioe) {
+			this.isClosed = true;
+			this.failWritters(ioe);
+			this.closeConnection();
+		} finally {
+			this.isFlushing = false;
+		}
+	}
+	
+	/**
+	 * Writes the stream-less writers at the head of the queue in one gathering write
+	 * @return
+	 * 		<code>true</code> if all the data was written
+	 */
+	private final boolean writeBatch() throws IOException {
+		// Merge pending packets into one write until the byte budget is reached
+		final List<Writter<?>> batch = new ArrayList<Writter<?>>();
+		int count = 0;
+		long size = 0;
+		for(Writter<?> writter : this.writters) {
+			if(writter.source!=null || (!batch.isEmpty() && size>=this.writeBatchSize)) break;
+			
+			batch.add(writter);
+			count += writter.data.length;
+			size += writter.remaining();
+		}
+		
+		final ByteBuffer[] data;
+		if(batch.size()==1) {
+			data = batch.get(0).data;
+		} else {
+			data = new ByteBuffer[count];
+			int pos = 0;
+			for(Writter<?> writter : batch) {
+				System.arraycopy(writter.data, 0, data, pos, writter.data.length);
+				pos += writter.data.length;
+			}
+		}
+		
+		if(size>0) this.socketChannel.write(data);
+		
+		// Complete the writers that were fully written
+		final List<Writter<?>> done = new ArrayList<Writter<?>>(batch.size());
+		long written = 0;
+		for(Writter<?> writter : batch) {
+			if(writter.remaining()>0) break;
+			done.add(this.writters.poll());
+			written += writter.size;
+		}
+		this.dequeued(written);
+		
+		final boolean isDone = done.size()==batch.size();
+		if(!isDone) this.setWriteInterest(true);
+		
+		for(Writter<?> writter : done) {
+			writter.completed();
+		}
+		
+		return isDone;
+	}
+	
+	/**
+	 * Writes a stream writer's buffers, followed by the buffers polled from its source
+	 * @return
+	 * 		<code>true</code> if the source has ended
+	 */
+	private final boolean writeStream(final Writter<?> writter) throws IOException {
+		while(true) {
+			if(writter.remaining()>0) {
+				this.socketChannel.write(writter.data);
+				if(writter.remaining()>0) {
+					this.setWriteInterest(true);
+					return false;
+				}
+				continue;
+			}
+			
+			if(this.chunk[0]!=null) {
+				if(this.chunk[0].hasRemaining()) {
+					this.socketChannel.write(this.chunk[0]);
+					if(this.chunk[0].hasRemaining()) {
+						this.setWriteInterest(true);
+						return false;
+					}
+				}
+				
+				this.chunk[0] = null;
+				writter.source.written();
+			}
+			
+			final ByteBuffer next = writter.source.poll(this.sourceReadyTask);
+			
+			if(next==null) {
+				this.writters.poll();
+				this.dequeued(writter.size);
+				if(writter.source.isFailed()) {
+					// The data written so far is an incomplete unit, so the connection can't be used
+					this.isClosed = true;
+					writter.failed(new IOException("stream source failed"));
+					this.closeConnection();
+					return false;
+				}
+				
+				writter.completed();
+				return true;
+			} else if(next.hasRemaining()) {
+				this.chunk[0] = next;
+			} else {
+				// Nothing is ready. The source will flush when it is
+				this.setWriteInterest(false);
+				return false;
+			}
+		}
+	}
+	
+	private final void failWritters(final Throwable exc) {
+		this.chunk[0] = null;
+		
+		Writter<?> writter;
+		while((writter=this.pending.poll())!=null) {
+			this.writters.add(writter);
+		}
+		while((writter=this.writters.poll())!=null) {
+			this.dequeued(writter.size);
+			if(writter.source!=null) writter.source.cancel();
+			writter.failed(exc);
+		}
+	}
+	
+	private final void setWriteInterest(final boolean value) {
+		if(!this.key.isValid()) return;
+		
+		final boolean isWriteBlocked = (this.key.interestOps() & SelectionKey.OP_WRITE)!=0;
+		if(isWriteBlocked==value) return;
+		this.updateInterest(value);
+	}
+	
+	private final void updateInterest() {
+		if(this.key==null || !this.key.isValid()) return;
+		this.updateInterest((this.key.interestOps() & SelectionKey.OP_WRITE)!=0);
+	}
+	
+	private final void updateInterest(final boolean write) {
+		if(this.key==null || !this.key.isValid()) return;
+		
+		int ops = 0;
+		if(!this.isReadSuspended && !this.isReadThrottled && this.buffer!=null) ops |= SelectionKey.OP_READ;
+		if(write) ops |= SelectionKey.OP_WRITE;
+		
+		this.key.interestOps(ops);
+	}
+	
+	/**
+	 * Releases the read buffer once the read loop has ended
+	 */
+	private final void releaseBuffer() {
+		final ByteBuffer buffer = this.buffer;
+		this.buffer = null;
+		
+		if(buffer!=null) this.handler.releaseSocketBuffer(buffer);
+	}
+	
+	private final void closeConnection() {
+		assert this.loop.inLoop();
+		
+		if(!this.socketChannel.isOpen()) return;
+		try {
+			if(this.key!=null) this.key.cancel();
+			this.socketChannel.close();
+		} catch (IOException ioe) {
+			LOGGER.warn("Failed to close connection", ioe);
+		} catch (Throwable th) {
+			LOGGER.warn("Unexspected Exception", th);
+		} finally {
+			// A buffer held by the handler is released once the read returns
+			if(!this.isReading) this.releaseBuffer();
+			this.failWritters(new ClosedChannelException());
+			
+			this.handler.onDisconnect(this);
+		}
+	}
+}
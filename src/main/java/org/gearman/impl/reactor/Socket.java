@@ -147,16 +147,50 @@ public interface Socket<X> {
 	/**
 	 * Writes data to the socket asynchronously.<br>
 	 * <br>
-	 * The write operation may write up to r bytes to the channel, where r is the number of bytes remaining in the buffer, that is, data.remaining() at the time that the write is attempted.<br>
+	 * The buffers are written in order, as a gathering write. The write operation may write up to r bytes to the channel, where r is the total number of bytes remaining in the buffers at the time that the write is attempted.<br>
 	 * <br>
-	 * Buffers are not safe for use by multiple concurrent threads so care should be taken to not access the buffer until the operation has completed.
+	 * Buffers are not safe for use by multiple concurrent threads so care should be taken to not access the buffers until the operation has completed.
 	 * @param data
 	 * 		The data to send over the socket
 	 * @param ioeHandler
 	 * 		Defines what actions to take if an exception occurs while
 	 *		sending the data
 	 */
-	public <A> void write(ByteBuffer data, A att, CompletionHandler<ByteBuffer, A> callback);
+	public <A> void write(ByteBuffer[] data, A att, CompletionHandler<ByteBuffer[], A> callback);
+	
+	/**
+	 * Writes data to the socket asynchronously, followed by the data from a stream source.<br>
+	 * <br>
+	 * The buffers and the source's data are written as one contiguous unit. Writes queued
+	 * after this one are not made until the source has ended. The callback is invoked once
+	 * all the source's data has been written.
+	 * @param data
+	 * 		The data to send before the source's data
+	 * @param source
+	 * 		The source of the remaining data
+	 */
+	public <A> void write(ByteBuffer[] data, StreamSource source, A att, CompletionHandler<ByteBuffer[], A> callback);
+	
+	/**
+	 * Tests if the data queued for writing is below the high watermark. Once the queue grows
+	 * above the high watermark, the socket stays unwritable until the queue drains to the low
+	 * watermark. Reading is suspended while the socket is unwritable. Data written while the
+	 * socket is unwritable is still queued.
+	 * @return
+	 * 		<code>true</code> if the socket is writable
+	 */
+	public boolean isWritable();
+	
+	/**
+	 * Stops reading from the socket. The read in progress, if any, is completed, but no
+	 * more data is read until {@link #resumeRead()} is called.
+	 */
+	public void suspendRead();
+	
+	/**
+	 * Resumes reading from the socket after a call to {@link #suspendRead()}
+	 */
+	public void resumeRead();
 
 	/**
 	 * Returns the ByteBuffer for this socket.
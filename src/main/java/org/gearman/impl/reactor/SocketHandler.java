@@ -72,6 +72,16 @@ public interface SocketHandler<X> {
 	 */
 	public abstract void onRead(Integer bytes, Socket<X> socket);
 
+	/**
+	 * The <i>onWritabilityChanged</i> event is triggered when the socket's write queue
+	 * crosses the high or low watermark. The current state is given by
+	 * {@link Socket#isWritable()}.
+	 * 
+	 * @param socket
+	 *            The socket whose writability changed
+	 */
+	public abstract void onWritabilityChanged(Socket<X> socket);
+
 	/**
 	 * Creates a new {@link ByteBuffer}.<br>
 	 * <br>
@@ -82,4 +92,13 @@ public interface SocketHandler<X> {
 	 * @return A new buffer
 	 */
 	public ByteBuffer createSocketBuffer();
-}
\ No newline at end of file
+
+	/**
+	 * Releases a socket's buffer. This is called once no more data will be read
+	 * into the buffer.
+	 * 
+	 * @param buffer
+	 *            The buffer to release
+	 */
+	public void releaseSocketBuffer(ByteBuffer buffer);
+}
@@ -35,8 +35,14 @@ import java.net.StandardSocketOptions;
 import java.nio.ByteBuffer;
 import java.nio.channels.AsynchronousSocketChannel;
 import java.nio.channels.CompletionHandler;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+
+import org.gearman.impl.util.GearmanUtils;
 
 import static org.gearman.context.GearmanContext.LOGGER;
 
@@ -54,8 +60,22 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 	private final Queue<Writter<?>> writters;
 	private boolean isWriting;
 	
+	/** The number of bytes pending writes are merged into before a write is issued */
+	private final int writeBatchSize;
+	/** Counts the bytes queued for writing */
+	private final WriteWatermark watermark = new WriteWatermark();
+	
 	private boolean isClosed = false;
 	
+	/** Guards the read suspension state */
+	private final Object readLock = new Object();
+	/** Set when reads should stop after the read in progress */
+	private boolean isReadSuspended;
+	/** Set while the write queue is above the high watermark */
+	private boolean isReadThrottled;
+	/** Set when a read completed while suspended, and the next read was not issued */
+	private boolean isReadParked;
+	
 	SocketImpl(AsynchronousSocketChannel socketChannel, SocketHandler<A> handler) throws IOException {
 		this.local = (InetSocketAddress) socketChannel.getLocalAddress();
 		this.remote = (InetSocketAddress) socketChannel.getRemoteAddress();
@@ -66,6 +86,7 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 		this.buffer = handler.createSocketBuffer();
 		
 		writters = new LinkedList<Writter<?>>();
+		writeBatchSize = GearmanUtils.getWriteBatchSize();
 	}
 	
 	@Override
@@ -161,9 +182,66 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 	}
 
 	@Override
-	public <A2> void write(ByteBuffer data, A2 att, CompletionHandler<ByteBuffer, A2> callback) {
+	public void suspendRead() {
+		synchronized(this.readLock) {
+			this.isReadSuspended = true;
+		}
+	}
+	
+	@Override
+	public void resumeRead() {
+		synchronized(this.readLock) {
+			this.isReadSuspended = false;
+			if(this.isReadThrottled || !this.isReadParked) return;
+			this.isReadParked = false;
+		}
+		this.socketChannel.read(buffer, null, this);
+	}
+	
+	@Override
+	public boolean isWritable() {
+		return this.watermark.isWritable();
+	}
+	
+	/**
+	 * Throttles or resumes reading to match the current writability, then notifies the handler
+	 */
+	private final void writabilityChanged() {
+		final boolean isResumed;
+		synchronized(this.readLock) {
+			// The state is read under the lock, so the last caller applies the latest state
+			this.isReadThrottled = !this.watermark.isWritable();
+			isResumed = !this.isReadThrottled && !this.isReadSuspended && this.isReadParked;
+			if(isResumed) this.isReadParked = false;
+		}
+		
+		if(isResumed) this.socketChannel.read(buffer, null, this);
+		this.handler.onWritabilityChanged(this);
+	}
+	
+	/**
+	 * Removes written or dropped writers from the write queue's byte count
+	 */
+	private final void dequeued(final List<Writter<?>> writters) {
+		long size = 0;
+		for(Writter<?> writter : writters) {
+			size += writter.size;
+		}
+		if(this.watermark.remove(size)) this.writabilityChanged();
+	}
+
+	@Override
+	public <A2> void write(ByteBuffer[] data, A2 att, CompletionHandler<ByteBuffer[], A2> callback) {
+		this.write(data, null, att, callback);
+	}
+	
+	@Override
+	public <A2> void write(ByteBuffer[] data, StreamSource source, A2 att, CompletionHandler<ByteBuffer[], A2> callback) {
+		final Writter<A2> writter = new Writter<A2>(data, source, att, callback);
+		if(this.watermark.add(writter.size)) this.writabilityChanged();
+		
 		synchronized(this.writters) {
-			this.writters.add(new Writter<A2>(data, att, callback));
+			this.writters.add(writter);
 			
 			if(this.isWriting) return;
 			this.isWriting=true;
@@ -174,11 +252,23 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 	private final void writeNext() {
 		assert this.isWriting;
 		
-		final Writter<?> writter;
+		final List<Writter<?>> batch = new ArrayList<Writter<?>>();
 		synchronized(this.writters) {
-			writter = this.writters.poll();;
+			// Merge pending packets into one write until the byte budget is reached
+			long size = 0;
+			Writter<?> writter;
+			while((batch.isEmpty() || size<this.writeBatchSize) && (writter=this.writters.peek())!=null) {
+				// A stream is always written on its own
+				if(writter.source!=null && !batch.isEmpty()) break;
+				
+				this.writters.poll();
+				batch.add(writter);
+				size += writter.remaining();
+				
+				if(writter.source!=null) break;
+			}
 			
-			if(writter==null) {
+			if(batch.isEmpty()) {
 				this.isWriting = false;
 				if(this.isClosed && this.writters.isEmpty())
 					this.closeConnection();
@@ -186,7 +276,12 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 			}	
 			this.isWriting=true;
 		}
-		writter.write();
+		
+		if(batch.get(0).source!=null) {
+			new StreamBatch(batch.get(0)).write();
+		} else {
+			new Batch(batch).write();
+		}
 	}
 	
 	@Override
@@ -198,11 +293,19 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 		if(result==-1) {
 			// EOF
 			
+			this.releaseBuffer();
 			this.closeConnection();
 			return;
 		}
 		
 		this.handler.onRead(result,this);
+		
+		synchronized(this.readLock) {
+			if(this.isReadSuspended || this.isReadThrottled) {
+				this.isReadParked = true;
+				return;
+			}
+		}
 		this.socketChannel.read(buffer, null, this);
 	}
 	
@@ -218,7 +321,8 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 		
 		// An IOException is sometimes thrown when the server suddenly disconnects
 		if(exc instanceof IOException) {
-			this.writters.clear();
+			this.releaseBuffer();
+			this.dropWritters();
 			this.close();
 			return;
 		}
@@ -228,7 +332,40 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 		assert false;
 	}
 	
+	/**
+	 * Releases the read buffer once the read loop has ended
+	 */
+	private final void releaseBuffer() {
+		final ByteBuffer buffer = this.buffer;
+		this.buffer = null;
+		
+		if(buffer!=null) this.handler.releaseSocketBuffer(buffer);
+	}
+	
+	/**
+	 * Drops all pending writes. Stream sources are cancelled so they stop buffering data
+	 */
+	private final void dropWritters() {
+		final List<Writter<?>> dropped;
+		synchronized(this.writters) {
+			for(Writter<?> writter : this.writters) {
+				if(writter.source!=null) writter.source.cancel();
+			}
+			dropped = new ArrayList<Writter<?>>(this.writters);
+			this.writters.clear();
+		}
+		this.dequeued(dropped);
+	}
+	
 	private final void closeConnection() {
+		synchronized(this.readLock) {
+			// A parked read will never complete, so the buffer is released here
+			if(this.isReadParked) {
+				this.isReadParked = false;
+				this.releaseBuffer();
+			}
+		}
+		
 		if(!this.socketChannel.isOpen()) return;
 		try {
 			this.socketChannel.shutdownOutput();
@@ -243,41 +380,142 @@ final class SocketImpl<A> implements Socket<A>, CompletionHandler<Integer, Objec
 		}
 	}
 	
-	private final class Writter<A2> implements CompletionHandler<Integer, Object> {
-		private final ByteBuffer data;
-		private final A2 att;
-		private final CompletionHandler<ByteBuffer, A2> callback;
+	/**
+	 * A set of pending writes sent together in gathering writes. Each writer's
+	 * callback is invoked after the whole batch has been written
+	 */
+	private final class Batch implements CompletionHandler<Long, Object> {
+		private final List<Writter<?>> writters;
+		private final ByteBuffer[] data;
+		
+		/** The first buffer with remaining data */
+		private int offset;
 		
-		public Writter(ByteBuffer data, A2 att, CompletionHandler<ByteBuffer, A2> callback) {
-			this.data = data;
-			this.att = att;
-			this.callback = callback;
+		public Batch(List<Writter<?>> writters) {
+			this.writters = writters;
+			
+			if(writters.size()==1) {
+				this.data = writters.get(0).data;
+			} else {
+				int count = 0;
+				for(Writter<?> writter : writters) {
+					count += writter.data.length;
+				}
+				
+				this.data = new ByteBuffer[count];
+				int pos = 0;
+				for(Writter<?> writter : writters) {
+					System.arraycopy(writter.data, 0, this.data, pos, writter.data.length);
+					pos += writter.data.length;
+				}
+			}
 		}
 	
 		public void write() {
-			if(this.data.hasRemaining()) {
-				SocketImpl.this.socketChannel.write(this.data, null, this);
+			while(this.offset<this.data.length && !this.data[this.offset].hasRemaining()) {
+				this.offset++;
+			}
+			
+			if(this.offset<this.data.length) {
+				SocketImpl.this.socketChannel.write(this.data, this.offset, this.data.length-this.offset, 0L, TimeUnit.MILLISECONDS, null, this);
 			} else {
+				SocketImpl.this.dequeued(this.writters);
 				SocketImpl.this.writeNext();
 				
-				try {
-					if(this.callback!=null) this.callback.completed(data, att);
-				} catch (Throwable th) {
-					// user threw exception
-					th.printStackTrace();
+				for(Writter<?> writter : this.writters) {
+					writter.completed();
+				}
+			}
+		}
+		
+		@Override
+		public void completed(Long result, Object attachment) {
+			this.write();
+		}
+
+		@Override
+		public void failed(Throwable exc, Object attachment) {
+			SocketImpl.this.dequeued(this.writters);
+			SocketImpl.this.writeNext();
+			
+			for(Writter<?> writter : this.writters) {
+				writter.failed(exc);
+			}
+		}
+	}
+	
+	/**
+	 * Writes a single stream writer. The writer's buffers are written first, followed by
+	 * the buffers polled from its source until the source ends
+	 */
+	private final class StreamBatch implements CompletionHandler<Long, Object>, Runnable {
+		private final Writter<?> writter;
+		private final ByteBuffer[] chunk = new ByteBuffer[1];
+		
+		/** The first buffer with remaining data */
+		private int offset;
+		
+		public StreamBatch(Writter<?> writter) {
+			this.writter = writter;
+		}
+		
+		public void write() {
+			final ByteBuffer[] data = this.writter.data;
+			while(this.offset<data.length && !data[this.offset].hasRemaining()) {
+				this.offset++;
+			}
+			
+			if(this.offset<data.length) {
+				SocketImpl.this.socketChannel.write(data, this.offset, data.length-this.offset, 0L, TimeUnit.MILLISECONDS, null, this);
+				return;
+			}
+			
+			if(this.chunk[0]!=null) {
+				if(this.chunk[0].hasRemaining()) {
+					SocketImpl.this.socketChannel.write(this.chunk, 0, 1, 0L, TimeUnit.MILLISECONDS, null, this);
+					return;
+				}
+				
+				this.chunk[0] = null;
+				this.writter.source.written();
+			}
+			
+			final ByteBuffer next = this.writter.source.poll(this);
+			if(next==null) {
+				SocketImpl.this.dequeued(Collections.<Writter<?>>singletonList(this.writter));
+				if(this.writter.source.isFailed()) {
+					// The data written so far is an incomplete unit, so the connection can't be used
+					SocketImpl.this.close();
+					SocketImpl.this.writeNext();
+					this.writter.failed(new IOException("stream source failed"));
+				} else {
+					SocketImpl.this.writeNext();
+					this.writter.completed();
 				}
+			} else if(next.hasRemaining()) {
+				this.chunk[0] = next;
+				SocketImpl.this.socketChannel.write(this.chunk, 0, 1, 0L, TimeUnit.MILLISECONDS, null, this);
 			}
+			
+			// Otherwise, nothing is ready. The source will call run() when it is
+		}
+		
+		@Override
+		public void run() {
+			this.write();
 		}
 		
 		@Override
-		public void completed(Integer result, Object attachment) {
+		public void completed(Long result, Object attachment) {
 			this.write();
 		}
 
 		@Override
 		public void failed(Throwable exc, Object attachment) {
+			SocketImpl.this.dequeued(Collections.<Writter<?>>singletonList(this.writter));
+			this.writter.source.cancel();
 			SocketImpl.this.writeNext();
-			if(this.callback!=null) this.callback.failed(exc, att);
+			this.writter.failed(exc);
 		}
 	}
 }
@@ -0,0 +1,74 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.reactor;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A source of data written to a socket as one contiguous unit, where the data becomes
+ * available over time. While a source is being written, no other writes are made to
+ * the socket.
+ * 
+ * @author isaiah
+ */
+public interface StreamSource {
+	
+	/**
+	 * Returns the next buffer to write.<br>
+	 * <br>
+	 * If no buffer is ready, an empty buffer is returned and the source holds onto the
+	 * given callback. The callback is run once a buffer is ready, or the source ends or
+	 * fails. If the source has ended or failed, <code>null</code> is returned.
+	 * 
+	 * @param onReady
+	 * 		The callback to run when the source changes state
+	 * @return
+	 * 		The next buffer, an empty buffer if none is ready, or <code>null</code>
+	 */
+	public ByteBuffer poll(Runnable onReady);
+	
+	/**
+	 * Called once the last polled buffer has been completely written
+	 */
+	public void written();
+	
+	/**
+	 * Tests if the source failed before all its data was made available. If so, the
+	 * data written to the socket is incomplete
+	 * 
+	 * @return
+	 * 		<code>true</code> if the source failed
+	 */
+	public boolean isFailed();
+	
+	/**
+	 * Called if the socket could not write the data. The source must not hold onto data
+	 * for the socket after this call
+	 */
+	public void cancel();
+}
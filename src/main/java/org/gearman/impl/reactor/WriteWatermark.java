@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.reactor;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * Tracks the number of bytes queued for writing on a socket. The socket becomes
+ * unwritable once the queue grows above the high watermark, and writable again
+ * once it drains to the low watermark.
+ * 
+ * @author isaiah
+ */
+final class WriteWatermark {
+	
+	private final long high;
+	private final long low;
+	
+	private final AtomicLong queued = new AtomicLong();
+	private volatile boolean isWritable = true;
+	
+	WriteWatermark() {
+		this.high = GearmanUtils.getWriteHighWatermark();
+		this.low = Math.min(GearmanUtils.getWriteLowWatermark(), this.high);
+	}
+	
+	final boolean isWritable() {
+		return this.isWritable;
+	}
+	
+	final long getQueued() {
+		return this.queued.get();
+	}
+	
+	/**
+	 * Adds queued bytes
+	 * @return
+	 * 		<code>true</code> if the socket became unwritable
+	 */
+	final boolean add(final long bytes) {
+		final long value = this.queued.addAndGet(bytes);
+		return this.high>0 && this.isWritable && value>this.high && this.update();
+	}
+	
+	/**
+	 * Removes bytes that have been written or dropped
+	 * @return
+	 * 		<code>true</code> if the socket became writable
+	 */
+	final boolean remove(final long bytes) {
+		final long value = this.queued.addAndGet(-bytes);
+		return !this.isWritable && value<=this.low && this.update();
+	}
+	
+	private synchronized final boolean update() {
+		final long value = this.queued.get();
+		if(this.isWritable && value>this.high) {
+			this.isWritable = false;
+			return true;
+		} else if(!this.isWritable && value<=this.low) {
+			this.isWritable = true;
+			return true;
+		}
+		return false;
+	}
+}
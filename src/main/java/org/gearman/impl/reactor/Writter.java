@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.reactor;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.CompletionHandler;
+
+/**
+ * A pending socket write
+ * 
+ * @author isaiah
+ */
+final class Writter<A> {
+	final ByteBuffer[] data;
+	final StreamSource source;
+	/** The number of bytes counted against the socket's write watermark */
+	final long size;
+	private final A att;
+	private final CompletionHandler<ByteBuffer[], A> callback;
+	
+	Writter(ByteBuffer[] data, StreamSource source, A att, CompletionHandler<ByteBuffer[], A> callback) {
+		this.data = data;
+		this.source = source;
+		this.att = att;
+		this.callback = callback;
+		this.size = this.remaining();
+	}
+	
+	public long remaining() {
+		long value = 0;
+		for(ByteBuffer buffer : this.data) {
+			value += buffer.remaining();
+		}
+		return value;
+	}
+	
+	public void completed() {
+		try {
+			if(this.callback!=null) this.callback.completed(data, att);
+		} catch (Throwable th) {
+			// user threw exception
+			th.printStackTrace();
+		}
+	}
+	
+	public void failed(Throwable exc) {
+		try {
+			if(this.callback!=null) this.callback.failed(exc, att);
+		} catch (Throwable th) {
+			// user threw exception
+			th.printStackTrace();
+		}
+	}
+}
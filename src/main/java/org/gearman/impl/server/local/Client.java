@@ -61,6 +61,20 @@ interface Client {
 	 */
 	public boolean can_do(Function func);
 	
+	/**
+	 * Adds a function to the set of functions for this ServerClient, limiting how long
+	 * the ServerClient may work on one of the function's jobs. If the function is
+	 * already in the set, only its timeout is changed
+	 * @param func
+	 * 		The function to add
+	 * @param timeout
+	 * 		The time, in milliseconds, the ServerClient is given to complete a job, or 0
+	 * 		for no limit
+	 * @return
+	 * 		true if the function was not already in the function set for this ServerClient
+	 */
+	public boolean can_do(Function func, long timeout);
+	
 	/**
 	 * Closes the current connection between the server and the client.
 	 */
@@ -88,6 +102,15 @@ interface Client {
 	 */
 	public int getLocalPort();
 	
+	/**
+	 * Returns the time this ServerClient is given to complete one of the function's jobs
+	 * @param func
+	 * 		The function
+	 * @return
+	 * 		The timeout in milliseconds, or 0 if there is no limit
+	 */
+	public long getTimeout(Function func);
+	
 	/**
 	 * Returns the port number for this ServerClient
 	 * 
@@ -127,6 +150,22 @@ interface Client {
 	 */
 	public boolean isClosed();
 	
+	/**
+	 * Tests if the client's connection can take more outbound data. Jobs are not
+	 * assigned to, and sleeping workers are not woken on, a connection that is not
+	 * writable
+	 * @return
+	 * 		true if the client's connection is below its high watermark
+	 */
+	public boolean isWritable();
+	
+	/**
+	 * Called when the client's connection crosses its high or low watermark. A
+	 * sleeping worker that was skipped while its connection was full is woken if
+	 * work is queued
+	 */
+	public void writabilityChanged();
+	
 	/**
 	 * Tests if exception packets should be forwarded to the client
 	 * @return
@@ -138,8 +177,12 @@ interface Client {
 	/**
 	 * Sends a NOOP packet to the client if the ServerClient is sleeping at the time of the
 	 * call 
+	 * @param func
+	 * 		The function with queued work for the client
+	 * @return
+	 * 		true if the client was sleeping and a NOOP packet was sent
 	 */
-	public void noop();
+	public boolean noop(Function func);
 	
 	/**
 	 * Removes a disconnect listener from this ServerClient
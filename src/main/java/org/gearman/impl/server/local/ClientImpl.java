@@ -36,6 +36,7 @@ import org.gearman.impl.core.GearmanCallbackHandler;
 import org.gearman.impl.core.GearmanConnection;
 import org.gearman.impl.core.GearmanPacket;
 import org.gearman.impl.core.GearmanConnection.SendCallbackResult;
+import org.gearman.impl.core.PacketTracer;
 import org.gearman.impl.util.ByteArray;
 import org.gearman.impl.util.GearmanUtils;
 
@@ -47,10 +48,16 @@ class ClientImpl implements Client {
 	
 	/** The set of all functions that this worker can perform */
 	private final ConcurrentHashMap<ByteArray,Function> funcMap = new ConcurrentHashMap<ByteArray,Function>();
+	/** The CAN_DO_TIMEOUT limits, in milliseconds, of this worker's functions */
+	private final ConcurrentHashMap<ByteArray,Long> timeouts = new ConcurrentHashMap<ByteArray,Long>();
+	/** Decides which function to check first when this worker grabs a job */
+	private final GrabScheduler scheduler = new GrabScheduler(GrabScheduler.Policy.getDefault());
 	/** The set of all disconnect listeners */
 	private final Set<ClientDisconnectListener> disconnectListeners = new HashSet<ClientDisconnectListener>();
 	/** Indicates if the client is to be notified when the next job comes in */ 
 	private boolean isSleeping	 = false;
+	/** The function that last woke this client, until the client grabs. Guarded by funcMap */
+	private Function wokenBy = null;
 	/** The client id */
 	private String clientID	 = "-";
 	/** Indicates if exception packets should be forward to clients*/
@@ -82,10 +89,19 @@ class ClientImpl implements Client {
 
 	@Override
 	public boolean can_do(Function func) {
+		return this.can_do(func, 0);
+	}
+	
+	@Override
+	public boolean can_do(Function func, long timeout) {
 		assert func!=null;
 		
+		if(timeout>0) this.timeouts.put(func.getName(), timeout);
+		else this.timeouts.remove(func.getName());
+		
 		final boolean value = funcMap.putIfAbsent(func.getName(), func)==null;
 		if(value) {
+			this.scheduler.add(func);
 			func.addNoopable(this);
 		}
 		return value;
@@ -94,9 +110,12 @@ class ClientImpl implements Client {
 	@Override
 	public boolean cant_do(ByteArray funcName) {
 		final Function value = funcMap.remove(funcName);
-		value.removeNoopable(this);
+		if(value==null) return false;
+		this.timeouts.remove(funcName);
 		
-		return value!=null;
+		this.scheduler.remove(value);
+		value.removeNoopable(this);
+		return true;
 	}
 	
 	@Override
@@ -120,6 +139,7 @@ class ClientImpl implements Client {
 		}
 		
 		this.funcMap.clear();
+		this.timeouts.clear();
 	}
 	
 	@Override
@@ -127,6 +147,12 @@ class ClientImpl implements Client {
 		return this.clientID;
 	}
 	
+	@Override
+	public long getTimeout(Function func) {
+		final Long timeout = this.timeouts.get(func.getName());
+		return timeout==null? 0: timeout;
+	}
+	
 	@Override
 	public Iterable<Function> getFunctions() {
 		return this.funcMap.values();
@@ -163,21 +189,69 @@ class ClientImpl implements Client {
 	
 	@Override
 	public void grabJob() {
-		for(Function func : this.funcMap.values()) {
-			if(func.grabJob(this))
+		final Function wokenBy = this.takeWokenBy();
+		if(!this.conn.isWritable()) {
+			// Don't assign more work to a worker that isn't reading its data
+			this.passWakeUp(wokenBy, null);
+			this.sendPacket(GearmanPacket.NO_JOB, null);
+			return;
+		}
+		
+		for(Function func : this.scheduler.order()) {
+			if(func.grabJob(this)) {
+				this.scheduler.grabbed(func);
+				this.passWakeUp(wokenBy, func);
 				return;
+			}
 		}
+		
+		this.passWakeUp(wokenBy, null);
 		this.sendPacket(GearmanPacket.NO_JOB, null);
 	}
 	
 	@Override
 	public void grabJobUniq() {
-		for(Function func : this.funcMap.values()) {
-			if(func.grabJobUniqueID(this))
+		final Function wokenBy = this.takeWokenBy();
+		if(!this.conn.isWritable()) {
+			this.passWakeUp(wokenBy, null);
+			this.sendPacket(GearmanPacket.NO_JOB, null);
+			return;
+		}
+		
+		for(Function func : this.scheduler.order()) {
+			if(func.grabJobUniqueID(this)) {
+				this.scheduler.grabbed(func);
+				this.passWakeUp(wokenBy, func);
 				return;
+			}
 		}
+		
+		this.passWakeUp(wokenBy, null);
 		this.sendPacket(GearmanPacket.NO_JOB, null);
 	}
+	
+	/**
+	 * Counts a wasted wake-up if this worker didn't take a job from the function that
+	 * woke it, and wakes another sleeping worker for that function's queued jobs
+	 * @param wokenBy
+	 * 		The function that woke this worker, or null
+	 * @param grabbed
+	 * 		The function a job was taken from, or null
+	 */
+	private final void passWakeUp(final Function wokenBy, final Function grabbed) {
+		if(wokenBy==null || wokenBy==grabbed) return;
+		
+		wokenBy.wastedWakeup();
+		if(!wokenBy.queueIsEmpty()) wokenBy.wakeUp();
+	}
+	
+	private final Function takeWokenBy() {
+		synchronized(funcMap) {
+			final Function value = this.wokenBy;
+			this.wokenBy = null;
+			return value;
+		}
+	}
 
 	@Override
 	public boolean isClosed() {
@@ -190,12 +264,37 @@ class ClientImpl implements Client {
 	}
 	
 	@Override
-	public void noop() {
+	public boolean isWritable() {
+		return this.conn.isWritable();
+	}
+	
+	@Override
+	public void writabilityChanged() {
+		if(!this.conn.isWritable()) return;
+		
 		synchronized(funcMap) {
 			if(!isSleeping) return;
+		}
+		
+		// The worker may have been dropped from the sleeping sets while it was full
+		this.awaitWork();
+	}
+	
+	@Override
+	public boolean noop(Function func) {
+		synchronized(funcMap) {
+			// The worker stays asleep until its connection drains
+			if(!isSleeping || !this.conn.isWritable()) return false;
 			this.isSleeping=false;
+			this.wokenBy=func;
+			
+			// Awake, the worker leaves every sleeping set, so no other function counts on it
+			for(Function f : this.funcMap.values()) {
+				f.awake(this);
+			}
 			
 			this.sendPacket(GearmanPacket.NOOP, null);
+			return true;
 		}
 	}	
 	
@@ -220,7 +319,7 @@ class ClientImpl implements Client {
 	
 	@Override
 	public void sendPacket(GearmanPacket packet, GearmanCallbackHandler<GearmanPacket, SendCallbackResult> callback) {
-		LOGGER.info(GearmanUtils.toString(conn) + " : OUT : " + packet.getPacketType().toString());
+		PacketTracer.trace(this.conn, PacketTracer.OUT, packet);
 		this.conn.sendPacket(packet, callback==null? this.defaultCallback : new SendCallback(callback));
 	}
 	
@@ -236,11 +335,29 @@ class ClientImpl implements Client {
 	
 	@Override
 	public void sleep() {
-		synchronized(funcMap) { this.isSleeping=true; }
+		synchronized(funcMap) {
+			this.isSleeping=true;
+			this.wokenBy=null;
+		}
+		
+		this.awaitWork();
+	}
+	
+	/**
+	 * Registers this sleeping client with its functions, or wakes it if work is already queued
+	 */
+	private final void awaitWork() {
+		/*
+		 * Register as sleeping before checking the queues. A job queued after the check
+		 * will find this worker in the function's sleeping set
+		 */
+		for(Function func : this.funcMap.values()) {
+			func.sleep(this);
+		}
 		
 		for(Function func : this.funcMap.values()) {
 			if(!func.queueIsEmpty()) {
-				this.noop();
+				this.noop(func);
 				return;
 			}
 		}
@@ -27,18 +27,23 @@
 
 package org.gearman.impl.server.local;
 
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
 
 import org.gearman.GearmanJobPriority;
-import org.gearman.GearmanPersistence;
 import org.gearman.impl.core.GearmanPacket;
 import org.gearman.impl.util.ByteArray;
-import org.gearman.impl.util.EqualsLock;
+import org.gearman.impl.util.StripedLock;
 import org.gearman.impl.util.GearmanUtils;
+import org.gearman.impl.util.TimingWheel;
 
 class Function {
 	
@@ -46,28 +51,212 @@ class Function {
 
 	/** The function's name */
 	private final ByteArray name;
-	/** The lock preventing jobs with the same ID to be created or altered at the same time */
-	private final EqualsLock lock = new EqualsLock();
+	/** The lock preventing jobs with the same ID to be created or altered at the same time. Shared by the server's functions */
+	private final StripedLock lock;
 	/** The set of jobs created by this function. ByteArray is equal to the uID */
 	private final Map<ByteArray,InnerJob> jobSet = new ConcurrentHashMap<ByteArray,InnerJob>();
 	/** The queued jobs waiting to be processed */
 	private final JobQueue<InnerJob> queue = new JobQueue<InnerJob>();
 	/** The list of workers waiting for jobs to be placed in the queue */
 	private final Set<Client> workers = new CopyOnWriteArraySet<Client>();
-	/** The maximum number of jobs this function can have at any one time */
-	private int maxQueueSize = 0;
+	/** The sleeping workers, longest sleeping first. Guarded by itself */
+	private final Set<Client> sleepers = new LinkedHashSet<Client>();
+	/** The number of NOOP packets sent to wake sleeping workers */
+	private final AtomicLong wakeups = new AtomicLong(0);
+	/** The number of wake-ups after which the worker found no job */
+	private final AtomicLong wastedWakeups = new AtomicLong(0);
+	/** The number of jobs in the job set. Raised before a job is added, so admission needs no lock */
+	private final AtomicInteger jobCount = new AtomicInteger(0);
+	/**
+	 * The maximum number of jobs this function can have when a job is submitted, indexed by the
+	 * job's priority. 0 is unlimited. Replaced, never modified
+	 */
+	private volatile int[] maxQueueSizes = new int[GearmanJobPriority.values().length];
+	/** The share of a worker's grabs this function gets under the weighted grab policy */
+	private volatile int weight = 1;
+	/** The last time, in milliseconds, this function was looked up or lost its last job or worker */
+	private volatile long lastUsed = System.currentTimeMillis();
+	/** Set while the function is being evicted, and kept once it has been */
+	private volatile boolean isEvicted = false;
 	
-	public Function(final ByteArray name) {
+	/** The server's job handle index */
+	private final JobHandleIndex index;
+	/** Holds the server's delayed jobs and work timeouts until they're due */
+	private final TimingWheel<Job> timers;
+	/** The number of this function's delayed jobs waiting in the timing wheel */
+	private final AtomicInteger delayedCount = new AtomicInteger(0);
+	/** The number of times a job was taken from a worker that ran past its CAN_DO_TIMEOUT */
+	private final AtomicLong timeouts = new AtomicLong(0);
+	/** The number of jobs failed for timing out too many times */
+	private final AtomicLong timeoutFailures = new AtomicLong(0);
+	/** Holds the data of queued jobs past the heap budget, or null if spilling is disabled */
+	private final PayloadSpill spill;
+	
+	public Function(final ByteArray name, final StripedLock lock, final JobHandleIndex index, final TimingWheel<Job> timers, final PayloadSpill spill) {
 		this.name = name;
+		this.lock = lock;
+		this.index = index;
+		this.timers = timers;
+		this.spill = spill;
 	}
 	public final void addNoopable(final Client noopable) {
 		workers.add(noopable);
 	}
 	public final void removeNoopable(final Client noopable) {
 		workers.remove(noopable);
+		synchronized(this.sleepers) { this.sleepers.remove(noopable); }
+		this.touch();
+	}
+	
+	/**
+	 * Records that the function is in use, restarting its idle period
+	 */
+	final void touch() {
+		this.lastUsed = System.currentTimeMillis();
+	}
+	
+	/**
+	 * Tests if the function has been evicted from its function map
+	 */
+	final boolean isEvicted() {
+		return this.isEvicted;
+	}
+	
+	/**
+	 * Evicts the function if it has had no jobs and no workers for the given idle
+	 * timeout. Functions with an admin-set max queue size or weight are never evicted.<br>
+	 * <br>
+	 * The eviction flag is raised before the last use is read, and {@link FunctionMap}
+	 * touches a function before reading the flag, so a concurrent lookup either sees
+	 * the eviction or is seen by it.
+	 * 
+	 * @param now
+	 * 		The current time in milliseconds
+	 * @param timeout
+	 * 		The idle timeout in milliseconds
+	 * @return
+	 * 		true if the function was evicted
+	 */
+	final boolean evictIfIdle(final long now, final long timeout) {
+		if(this.weight!=1) return false;
+		if(this.hasMaxQueue()) return false;
+		
+		this.isEvicted = true;
+		if(now-this.lastUsed<timeout || !this.jobSet.isEmpty() || !this.workers.isEmpty()) {
+			this.isEvicted = false;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Registers a worker that has gone to sleep. Sleeping workers are woken one
+	 * at a time, in the order they went to sleep
+	 * @param worker
+	 * 		The sleeping worker
+	 */
+	public final void sleep(final Client worker) {
+		// A woken worker has left the set, see awake, so it goes to the back when it sleeps again
+		synchronized(this.sleepers) { this.sleepers.add(worker); }
+	}
+	
+	/**
+	 * Removes a worker that has been woken from the sleeping set
+	 * @param worker
+	 * 		The woken worker
+	 */
+	public final void awake(final Client worker) {
+		synchronized(this.sleepers) { this.sleepers.remove(worker); }
+	}
+	
+	/**
+	 * Wakes the longest sleeping worker. Workers that are already awake, or that
+	 * can't take work, are dropped from the sleeping set
+	 * @return
+	 * 		true if a worker was woken
+	 */
+	public final boolean wakeUp() {
+		while(true) {
+			final Client worker;
+			synchronized(this.sleepers) {
+				final Iterator<Client> it = this.sleepers.iterator();
+				if(!it.hasNext()) return false;
+				
+				worker = it.next();
+				it.remove();
+			}
+			
+			if(worker.noop(this)) {
+				this.wakeups.incrementAndGet();
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Records a wake-up after which the worker found no job
+	 */
+	public final void wastedWakeup() {
+		this.wastedWakeups.incrementAndGet();
 	}
 	public final void setMaxQueue(final int size) {
-		synchronized(this.jobSet) { this.maxQueueSize = size; }
+		this.setMaxQueue(size, size, size);
+	}
+	
+	/**
+	 * Sets the maximum number of jobs the function can have when a job of each priority is
+	 * submitted. Giving low priority jobs the smallest limit sheds them first
+	 * @param high
+	 * 		The limit for high priority jobs, 0 or less for no limit
+	 * @param normal
+	 * 		The limit for normal priority jobs, 0 or less for no limit
+	 * @param low
+	 * 		The limit for low priority jobs, 0 or less for no limit
+	 */
+	public final void setMaxQueue(final int high, final int normal, final int low) {
+		final int[] sizes = new int[GearmanJobPriority.values().length];
+		sizes[GearmanJobPriority.HIGH_PRIORITY.ordinal()] = Math.max(0, high);
+		sizes[GearmanJobPriority.NORMAL_PRIORITY.ordinal()] = Math.max(0, normal);
+		sizes[GearmanJobPriority.LOW_PRIORITY.ordinal()] = Math.max(0, low);
+		this.maxQueueSizes = sizes;
+	}
+	
+	/**
+	 * Tests if a max queue size is set for any priority
+	 */
+	public final boolean hasMaxQueue() {
+		for(int size : this.maxQueueSizes) {
+			if(size>0) return true;
+		}
+		return false;
+	}
+	
+	/**
+	 * Counts a new job against the max queue size for its priority
+	 * @return
+	 * 		true if the job was counted, false if the queue is full
+	 */
+	private final boolean admit(final GearmanJobPriority priority) {
+		final int max = this.maxQueueSizes[priority.ordinal()];
+		if(max<=0) {
+			this.jobCount.incrementAndGet();
+			return true;
+		}
+		
+		while(true) {
+			final int count = this.jobCount.get();
+			if(count>=max) return false;
+			if(this.jobCount.compareAndSet(count, count+1)) return true;
+		}
+	}
+	
+	public final void setWeight(final int weight) {
+		if(weight<1) throw new IllegalArgumentException("weight must be positive: " + weight);
+		this.weight = weight;
+	}
+	
+	public final int getWeight() {
+		return this.weight;
 	}
 	
 	public final ByteArray getName() {
@@ -78,22 +267,89 @@ class Function {
 		return this.queue.isEmpty();
 	}
 	
+	public final int queueSize() {
+		return this.queue.size();
+	}
+	
 	public final GearmanPacket getStatus() {
 		StringBuilder sb = new StringBuilder();
 		sb.append(this.name.toString(GearmanUtils.getCharset())); sb.append('\t');
-		sb.append(this.jobSet.size()); sb.append('\t');
-		sb.append(this.jobSet.size()-this.queue.size());sb.append('\t');
+		final int total = this.jobCount.get();
+		sb.append(total); sb.append('\t');
+		sb.append(Math.max(0, total-this.queue.size()-this.delayedCount.get()));sb.append('\t');
 		sb.append(this.workers.size());sb.append('\n');
 		
 		return GearmanPacket.createTEXT(sb.toString());
 	}
 	
-	public final void put(ByteArray uniqueID, byte[] data, byte[] jobHandle, GearmanJobPriority priority) {
-		final InnerJob job = new InnerJob(uniqueID, data, jobHandle, priority, true, null);
-		this.jobSet.put(uniqueID, job);
+	/**
+	 * Returns the wake-up and timeout statistics in the following format:<br>
+	 * FUNCTION\tSLEEPING\tWAKEUPS\tWASTED\tTIMEDOUT\tTIMEOUT_FAILED
+	 * @return
+	 * 		A text packet holding the statistics
+	 */
+	public final GearmanPacket getStats() {
+		final int sleeping;
+		synchronized(this.sleepers) { sleeping = this.sleepers.size(); }
+		
+		StringBuilder sb = new StringBuilder();
+		sb.append(this.name.toString(GearmanUtils.getCharset())); sb.append('\t');
+		sb.append(sleeping); sb.append('\t');
+		sb.append(this.wakeups.get()); sb.append('\t');
+		sb.append(this.wastedWakeups.get()); sb.append('\t');
+		sb.append(this.timeouts.get()); sb.append('\t');
+		sb.append(this.timeoutFailures.get()); sb.append('\n');
+		
+		return GearmanPacket.createTEXT(sb.toString());
+	}
+	
+	/**
+	 * Adds a background job recovered from the persistence store. The job is queued at
+	 * its priority, or held until its epoch time, as if it had just been submitted. The
+	 * function's max queue size is not applied
+	 * @return
+	 * 		true if the job was added, false if the function already has a job with the
+	 * 		unique ID
+	 */
+	public final boolean put(ByteArray uniqueID, byte[] data, byte[] jobHandle, GearmanJobPriority priority, long epoch) {
+		final int key = uniqueID.hashCode();
+		this.lock.lock(key);
+		try {
+			if(this.jobSet.containsKey(uniqueID)) return false;
+			
+			this.jobCount.incrementAndGet();
+			final InnerJob job = new InnerJob(uniqueID, data, jobHandle, priority, true, epoch, null);
+			this.jobSet.put(uniqueID, job);
+			
+			// Recovered delayed jobs keep their schedule
+			if(this.isDelayed(epoch)) {
+				this.delay(job);
+				return true;
+			}
+			
+			this.queue.add(job);
+			this.onQueued(job);
+			this.wakeUp();
+			return true;
+		} finally {
+			this.lock.unlock(key);
+		}
 	}
 	
-	public final void createJob(ByteArray uniqueID, final byte[] data, final GearmanJobPriority priority, final Client creator, boolean isBackground, GearmanPersistence persistence) {
+	public final void createJob(ByteArray uniqueID, final byte[] data, final GearmanJobPriority priority, final Client creator, boolean isBackground, PersistenceStage persistence) {
+		this.createJob(uniqueID, data, priority, creator, isBackground, 0, persistence);
+	}
+	
+	/**
+	 * Creates a job
+	 * @param epoch
+	 * 		The time, in seconds since the epoch, before which the job is not given to a
+	 * 		worker. If 0 or past, the job is queued immediately
+	 * @param persistence
+	 * 		Persists background jobs, or null. If acknowledgements wait for durability, the
+	 * 		job is released once it has been written
+	 */
+	public final void createJob(ByteArray uniqueID, final byte[] data, final GearmanJobPriority priority, final Client creator, boolean isBackground, final long epoch, PersistenceStage persistence) {
 		
 		if(uniqueID.isEmpty()) {
 			uniqueID = new ByteArray(("emptyID_"+emptyCount.incrementAndGet()).getBytes(GearmanUtils.getCharset()));
@@ -102,7 +358,9 @@ class Function {
 			}
 		}
 		
-		final Integer key = uniqueID.hashCode(); 
+		final InnerJob job;
+		
+		final int key = uniqueID.hashCode();
 		this.lock.lock(key);
 		try {
 			
@@ -110,73 +368,195 @@ class Function {
 			
 			if(this.jobSet.containsKey(uniqueID)) {
 				
-				final InnerJob job = this.jobSet.get(uniqueID);
-				if(job!=null) {
-					synchronized(job) {
+				final InnerJob existing = this.jobSet.get(uniqueID);
+				if(existing!=null) {
+					synchronized(existing) {
 						// If the job is not background, add creator to listener set and send JOB_CREATED packet
-						if(!isBackground) job.addClient(creator);
-						creator.sendPacket(job.createJobCreatedPacket(), null /*TODO*/);
+						if(!isBackground) existing.addClient(creator);
+						
+						// A job still being persisted is acknowledged when it's released
+						if(existing.awaitingCreated!=null) existing.awaitingCreated.add(creator);
+						else creator.sendPacket(existing.createJobCreatedPacket(), null /*TODO*/);
 					
 						return;
 					}
 				}
 			}
 			
-			final InnerJob job;
-			
 			/* 
-			 * Note: with this maxQueueSize variable not being synchronized, it is
-			 * possible for a few threads to slip in and add jobs after the
-			 * maxQueueSize variable is set, but I've decided that is it not
-			 * worth the cost to guarantee this minute feature, especially since
-			 * it's possible to have more then maxQueueSize jobs if the jobs were
-			 * added prior to the variable being set.
+			 * The job is counted before it's added. Concurrent submissions can't
+			 * overshoot the limit, but a limit lowered below the current count
+			 * only rejects new jobs, existing jobs are kept.
 			 */
-			if(this.maxQueueSize>0) {
-				synchronized (this.jobSet) {
-					if(maxQueueSize>0 && maxQueueSize<=jobSet.size()) {
-						creator.sendPacket(StaticPackets.ERROR_QUEUE_FULL,null);
-						return;
-					}
-					
-					job = new InnerJob(uniqueID, data, priority, isBackground ,creator);
-					this.jobSet.put(uniqueID, job);
-				}
-			} else {
-				job = new InnerJob(uniqueID, data, priority, isBackground, creator);	
-				this.jobSet.put(uniqueID, job);		// add job to local job set
+			if(!this.admit(priority)) {
+				creator.sendPacket(StaticPackets.ERROR_QUEUE_FULL,null);
+				return;
 			}
 			
-			try {
-				if(isBackground && persistence!=null) {
-					persistence.write(new ServerPersistable(job)); 
-				}
-			} catch(Exception e) {
-				// TODO log exception
-			}
+			job = new InnerJob(uniqueID, data, priority, isBackground, epoch, creator);
 			
-			/* 
-			 * The JOB_CREATED packet must sent before the job is added to the queue.
-			 * Queuing the job before sending the packet may result in another thread
-			 * grabbing, completing and sending a WORK_COMPLETE packet before the
-			 * JOB_CREATED is sent 
-			 */
-			creator.sendPacket(job.createJobCreatedPacket(), null /*TODO*/);
-			
-			/*
-			 * The job must be queued before sending the NOOP packets. Sending the noops
-			 * first may result in a worker failing to grab the job 
-			 */
-			this.queue.add(job);
-			
-			for(Client noop : workers) {
-				noop.noop();
+			if(!isBackground || persistence==null) {
+				this.jobSet.put(uniqueID, job);		// add job to local job set
+				this.release(job, creator);
+				return;
 			}
 			
+			// Duplicate submissions wait for JOB_CREATED until the job is released
+			job.awaitingCreated = new ArrayList<Client>(0);
+			this.jobSet.put(uniqueID, job);		// add job to local job set
+			
 		} finally {
 			// Always unlock lock
 			this.lock.unlock(key);
 		}
+		
+		// A full persistence queue blocks the submission, so it's not done under the lock
+		if(GearmanUtils.isPersistenceAckDurable()) {
+			// The persistence writer releases the job once it's durable
+			persistence.write(job, new Runnable() {
+				@Override
+				public void run() {
+					Function.this.release(job, creator);
+				}
+			});
+		} else {
+			persistence.write(job, null);
+			this.release(job, creator);
+		}
+	}
+	
+	/**
+	 * Sends the JOB_CREATED packet and queues the new job, or holds it until its epoch time
+	 */
+	private final void release(final InnerJob job, final Client creator) {
+		/* 
+		 * The JOB_CREATED packet must sent before the job is added to the queue.
+		 * Queuing the job before sending the packet may result in another thread
+		 * grabbing, completing and sending a WORK_COMPLETE packet before the
+		 * JOB_CREATED is sent 
+		 */
+		final GearmanPacket created = job.createJobCreatedPacket();
+		creator.sendPacket(created, null /*TODO*/);
+		
+		synchronized(job) {
+			if(job.awaitingCreated!=null) {
+				for(Client duplicate : job.awaitingCreated) {
+					duplicate.sendPacket(created, null /*TODO*/);
+				}
+				job.awaitingCreated = null;
+			}
+		}
+		
+		if(this.isDelayed(job.getEpoch())) {
+			// Held in the timing wheel until it's due, see promote(Job)
+			this.delay(job);
+			return;
+		}
+		
+		/*
+		 * The job must be queued before sending the NOOP packet. Sending the noop
+		 * first may result in a worker failing to grab the job. Only one worker is
+		 * woken for each job
+		 */
+		this.queue.add(job);
+		this.onQueued(job);
+		this.wakeUp();
+	}
+	
+	private final boolean isDelayed(final long epoch) {
+		return epoch>0 && epoch > System.currentTimeMillis()/1000L;
+	}
+	
+	private final void delay(final InnerJob job) {
+		final long deadline = job.getEpoch() >= Long.MAX_VALUE/1000L? Long.MAX_VALUE: job.getEpoch()*1000L;
+		synchronized(job) {
+			job.delay = this.timers.schedule(job, deadline);
+			this.delayedCount.incrementAndGet();
+		}
+	}
+	
+	/**
+	 * Called for each of the function's jobs taken from the timing wheel. A delayed job
+	 * whose epoch time has passed is queued. A running job whose worker has run past its
+	 * CAN_DO_TIMEOUT is taken from the worker and queued again, or failed once it has
+	 * timed out {@link GearmanUtils#getJobTimeoutAttempts()} times.<br>
+	 * <br>
+	 * The job may have completed, or been queued and given to another worker, since it
+	 * left the wheel. Only a timer that is still set and due is acted on
+	 * @param job
+	 * 		A job taken from the timing wheel
+	 * @param now
+	 * 		The time, in milliseconds, the wheel was advanced to
+	 * @return
+	 * 		true if the job failed
+	 */
+	final boolean onTimer(final Job job, final long now) {
+		final InnerJob innerJob = (InnerJob)job;
+		synchronized(innerJob) {
+			if(innerJob.delay!=null && innerJob.delay.getDeadline()<=now) {
+				innerJob.delay = null;
+				this.delayedCount.decrementAndGet();
+				
+				final boolean value = this.queue.add(innerJob);
+				assert value;
+				this.onQueued(innerJob);
+			} else if(innerJob.timeout!=null && innerJob.timeout.getDeadline()<=now) {
+				innerJob.timeout = null;
+				this.timeouts.incrementAndGet();
+				
+				final boolean fail = ++innerJob.attempts >= GearmanUtils.getJobTimeoutAttempts();
+				if(fail) this.timeoutFailures.incrementAndGet();
+				
+				// Requeuing wakes a worker, see onQueue
+				innerJob.workTimeout(fail);
+				return fail;
+			} else {
+				return false;
+			}
+		}
+		this.wakeUp();
+		return false;
+	}
+	
+	/**
+	 * Starts the job's CAN_DO_TIMEOUT if the worker registered one for this function
+	 */
+	private final void startTimeout(final InnerJob job, final Client worker) {
+		final long timeout = worker.getTimeout(this);
+		if(timeout<=0) return;
+		
+		final long now = System.currentTimeMillis();
+		final long deadline = timeout > Long.MAX_VALUE-now? Long.MAX_VALUE: now+timeout;
+		synchronized(job) {
+			// The worker may have already finished or dropped the job
+			if(job.getState()!=Job.JobState.WORKING || job.timeout!=null) return;
+			job.timeout = this.timers.schedule(job, deadline);
+		}
+	}
+	
+	/**
+	 * Counts the data of a job just added to the queue against the heap budget, or spills it
+	 */
+	private final void onQueued(final InnerJob job) {
+		if(this.spill==null) return;
+		synchronized(job) {
+			// A worker may have taken the job already
+			if(this.queue.contains(job)) job.onQueued(this.spill);
+		}
+	}
+	
+	/**
+	 * Restores the data of a job taken from the queue
+	 */
+	private final void onDequeued(final InnerJob job) {
+		if(this.spill!=null) job.onDequeued(this.spill);
+	}
+	
+	/**
+	 * Frees the data of a job dropped from the queue, without restoring it
+	 */
+	private final void onDropped(final InnerJob job) {
+		if(this.spill!=null) job.onDropped(this.spill);
 	}
 	
 	public final boolean grabJob(final Client worker) {
@@ -185,7 +565,12 @@ class Function {
 		
 		if(job==null) return false;
 		
+		// Keep waking workers while jobs remain
+		if(!this.queue.isEmpty()) this.wakeUp();
+		
+		this.onDequeued(job);
 		job.work(worker);
+		this.startTimeout(job, worker);
 		return true;
 	}
 	
@@ -193,18 +578,31 @@ class Function {
 		final InnerJob job = this.queue.poll();
 		if(job==null) return false;
 		
+		if(!this.queue.isEmpty()) this.wakeUp();
+		
+		this.onDequeued(job);
 		job.workUniqueID(worker);
+		this.startTimeout(job, worker);
 		return true;
 	}
 	
 	private final class InnerJob extends JobAbstract {
+		
+		/** The job's entry in the timing wheel while it's delayed. Guarded by this */
+		private TimingWheel.Timeout<Job> delay;
+		/** The job's entry in the timing wheel while a worker with a CAN_DO_TIMEOUT has it. Guarded by this */
+		private TimingWheel.Timeout<Job> timeout;
+		/** The number of times the job has timed out. Guarded by this */
+		private int attempts = 0;
+		/** Duplicate submitters waiting for JOB_CREATED until the job is released, or null once it has been. Guarded by this */
+		private List<Client> awaitingCreated;
 
-		InnerJob(ByteArray uniqueID, byte[] data, GearmanJobPriority priority, boolean isBackground, Client creator) {
-			super(uniqueID, data, priority, isBackground,creator);
+		InnerJob(ByteArray uniqueID, byte[] data, GearmanJobPriority priority, boolean isBackground, long epoch, Client creator) {
+			super(uniqueID, data, priority, isBackground, epoch, creator, Function.this.index);
 		}
 		
-		InnerJob(ByteArray uniqueID, byte[] data, byte[] jobHandle ,GearmanJobPriority priority, boolean isBackground, Client creator) {
-			super(uniqueID, data, jobHandle,priority,isBackground,creator);
+		InnerJob(ByteArray uniqueID, byte[] data, byte[] jobHandle ,GearmanJobPriority priority, boolean isBackground, long epoch, Client creator) {
+			super(uniqueID, data, jobHandle, priority, isBackground, epoch, creator, Function.this.index);
 		}
 
 		@Override
@@ -212,12 +610,23 @@ class Function {
 			assert prevState!=null;
 			switch(prevState) {
 			case QUEUED:
-				// Remove from queue
-				final boolean value = Function.this.queue.remove(this);
-				assert value;
+				if(this.delay!=null) {
+					// Remove from the timing wheel
+					Function.this.timers.cancel(this.delay);
+					this.delay = null;
+					Function.this.delayedCount.decrementAndGet();
+				} else {
+					// Remove from queue
+					final boolean value = Function.this.queue.remove(this);
+					assert value;
+					Function.this.onDropped(this);
+				}
 			case WORKING:
+				this.cancelTimeout();
 				final Job job = Function.this.jobSet.remove(this.getUniqueID());
 				assert job.equals(this);
+				Function.this.jobCount.decrementAndGet();
+				Function.this.touch();
 				// Remove from jobSet
 			case COMPLETE:
 				// Do nothing
@@ -233,9 +642,12 @@ class Function {
 				break;
 			case WORKING:
 				// Requeue
+				this.cancelTimeout();
 				assert !Function.this.queue.contains(this);
 				final boolean value = Function.this.queue.add(this);
 				assert value;
+				Function.this.onQueued(this);
+				Function.this.wakeUp();
 				break;
 			case COMPLETE:
 				assert false;
@@ -244,6 +656,12 @@ class Function {
 			}
 		}
 
+		private final void cancelTimeout() {
+			if(this.timeout==null) return;
+			Function.this.timers.cancel(this.timeout);
+			this.timeout = null;
+		}
+
 		@Override
 		public Function getFunction() {
 			return Function.this;
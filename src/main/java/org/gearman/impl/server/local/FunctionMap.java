@@ -27,33 +27,60 @@
 
 package org.gearman.impl.server.local;
 
-import java.lang.ref.Reference;
-import java.lang.ref.SoftReference;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.gearman.impl.core.GearmanPacket;
 import org.gearman.impl.util.ByteArray;
-import org.gearman.impl.util.EqualsLock;
+import org.gearman.impl.util.StripedLock;
+import org.gearman.impl.util.TimingWheel;
 
+/**
+ * The server's functions, by name.<br>
+ * <br>
+ * Functions are held strongly. A function is only removed by {@link #evictIdle(long)},
+ * once it has had no queued jobs, no running jobs and no registered workers for the
+ * idle timeout.
+ * 
+ * @author isaiah
+ */
 class FunctionMap {
 	
-	private final ConcurrentHashMap<ByteArray, Reference<InnerFunction>> funcMap = new ConcurrentHashMap<ByteArray, Reference<InnerFunction>>();
-	private final EqualsLock lock = new EqualsLock();
+	private final ConcurrentHashMap<ByteArray, Function> funcMap = new ConcurrentHashMap<ByteArray, Function>();
+	private final StripedLock lock = new StripedLock();
+	/** Locks the unique IDs of jobs being created, shared by all functions */
+	private final StripedLock jobLock = new StripedLock();
+	/** The server's job handle index, shared by all functions */
+	private final JobHandleIndex index;
+	/** The server's delayed jobs and work timeouts, shared by all functions */
+	private final TimingWheel<Job> timers;
+	/** The server's spill for the data of queued jobs, or null */
+	private final PayloadSpill spill;
+	/** The number of functions evicted for being idle */
+	private final AtomicLong evictions = new AtomicLong(0);
+	
+	FunctionMap(final JobHandleIndex index, final TimingWheel<Job> timers, final PayloadSpill spill) {
+		this.index = index;
+		this.timers = timers;
+		this.spill = spill;
+	}
 	
 	public final Function getFunction(ByteArray name) {
-		Integer key = name.hashCode();
+		Function func = funcMap.get(name);
+		if(func!=null) {
+			// Touch before checking the flag, see Function.evictIfIdle
+			func.touch();
+			if(!func.isEvicted()) return func;
+		}
+		
+		final int key = name.hashCode();
+		lock.lock(key);
 		try {
-			lock.lock(key);
-			
-			final Reference<InnerFunction> ref = funcMap.get(name);
-			InnerFunction func;
 			
-			if(ref==null || (func=ref.get())==null) {
-				func = new InnerFunction(name);
-				final Reference<InnerFunction> ref2 = new SoftReference<InnerFunction>(func);
-				func.ref = ref2;
-				
-				final Object o = this.funcMap.put(name, ref2);
-				assert o==null;
+			func = funcMap.get(name);
+			if(func==null || func.isEvicted()) {
+				func = new Function(name, this.jobLock, this.index, this.timers, this.spill);
+				this.funcMap.put(name, func);
 			}
 			return func;
 		} finally {
@@ -62,32 +89,64 @@ class FunctionMap {
 	}
 	
 	public final Function getFunctionIfDefined(ByteArray name) {
-		final Reference<InnerFunction> ref = funcMap.get(name);
-		return ref==null? null: ref.get();
+		final Function func = funcMap.get(name);
+		return func==null || func.isEvicted()? null: func;
+	}
+	
+	/**
+	 * Removes the functions that have been idle for at least the given timeout
+	 * @param timeout
+	 * 		The idle timeout in milliseconds
+	 * @return
+	 * 		The number of functions evicted
+	 */
+	public final int evictIdle(final long timeout) {
+		final long now = System.currentTimeMillis();
+		int count = 0;
+		
+		for(Function func : funcMap.values()) {
+			final ByteArray name = func.getName();
+			final int key = name.hashCode();
+			lock.lock(key);
+			try {
+				if(func.evictIfIdle(now, timeout) && funcMap.remove(name, func)) count++;
+			} finally {
+				lock.unlock(key);
+			}
+		}
+		
+		this.evictions.addAndGet(count);
+		return count;
 	}
 	
 	public final void sendStatus(Client client) {
 		
-		for(Reference<InnerFunction> funcRef : funcMap.values()) {
-			InnerFunction func = funcRef.get();
-			if(func!=null) 
-				client.sendPacket(func.getStatus(), null);
+		for(Function func : funcMap.values()) {
+			client.sendPacket(func.getStatus(), null);
 		}
 		
 		client.sendPacket(StaticPackets.TEXT_DONE, null /*TODO*/);
 	}
 	
-	private final class InnerFunction extends Function {
-		private Reference<?> ref;
+	public final void sendStats(Client client) {
 		
-		public InnerFunction(ByteArray name) {
-			super(name);
+		for(Function func : funcMap.values()) {
+			client.sendPacket(func.getStats(), null);
 		}
 		
-		@Override
-		protected final void finalize() throws Throwable {
-			super.finalize();
-			FunctionMap.this.funcMap.remove(super.getName(), ref);
-		}
+		client.sendPacket(StaticPackets.TEXT_DONE, null);
+	}
+	
+	/**
+	 * Sends the number of functions and the number of functions evicted so far, in
+	 * the format FUNCTIONS\tEVICTED, followed by a line with a single '.'
+	 */
+	public final void sendFunctionStats(Client client) {
+		final StringBuilder sb = new StringBuilder();
+		sb.append(funcMap.size()); sb.append('\t');
+		sb.append(evictions.get()); sb.append('\n');
+		
+		client.sendPacket(GearmanPacket.createTEXT(sb.toString()), null);
+		client.sendPacket(StaticPackets.TEXT_DONE, null);
 	}
 }
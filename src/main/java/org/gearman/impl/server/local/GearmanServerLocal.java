@@ -33,23 +33,29 @@ import java.net.UnknownHostException;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 import org.gearman.GearmanPersistence;
+import org.gearman.GearmanSnapshotPersistence;
 import org.gearman.impl.GearmanImpl;
 import org.gearman.impl.core.GearmanCallbackHandler;
 import org.gearman.impl.core.GearmanConnection;
 import org.gearman.impl.core.GearmanConnectionHandler;
 import org.gearman.impl.core.GearmanPacket;
+import org.gearman.impl.core.GearmanStreamHandler;
+import org.gearman.impl.core.GearmanWritabilityHandler;
 import org.gearman.impl.core.GearmanConnectionManager.ConnectCallbackResult;
+import org.gearman.impl.core.PacketTracer;
 import org.gearman.impl.server.GearmanServerInterface;
 import org.gearman.impl.server.ServerShutdownListener;
 import org.gearman.impl.util.GearmanUtils;
 
 import static org.gearman.context.GearmanContext.LOGGER;
 
-public class GearmanServerLocal implements GearmanServerInterface, GearmanConnectionHandler<Client> {
+public class GearmanServerLocal implements GearmanServerInterface, GearmanStreamHandler<Client>, GearmanWritabilityHandler<Client> {
 	
 	private final String id;
 	
@@ -67,6 +73,13 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 	
 	private final Set<ServerShutdownListener> listeners = new HashSet<>();
 	
+	/** The periodic eviction of idle functions, or null if eviction is disabled */
+	private final ScheduledFuture<?> evictionTask;
+	/** The periodic promotion of delayed jobs and expiry of work timeouts */
+	private final ScheduledFuture<?> timerTask;
+	/** The periodic snapshot of the persistence store, or null if the store takes none */
+	private final ScheduledFuture<?> snapshotTask;
+	
 	public GearmanServerLocal(GearmanImpl gearman, GearmanPersistence persistence, int port) throws IOException {
 		this(gearman, persistence, createID(port), port);
 	}
@@ -85,14 +98,59 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 		this.hostName = host;
 		this.interpreter = new Interpreter(this, persistence);
 		
+		// Jobs are recovered before clients can connect
+		this.interpreter.recover(persistence);
+		
 		try {
 			gearman.getGearmanConnectionManager().openPort(port, this);
 		} catch (IOException ioe) {
 			LOGGER.error("failed to open port: " + port, ioe);
+			
+			// Stops the persistence writer and removes the spill directory
+			this.interpreter.shutdown();
 			throw ioe;
 		}
 		
 		this.id = serverID;
+		this.evictionTask = this.scheduleEviction(GearmanUtils.getFunctionIdleTimeout());
+		this.snapshotTask = this.scheduleSnapshots(persistence, GearmanUtils.getSnapshotInterval());
+		
+		final long tick = this.interpreter.getTimerTickMillis();
+		this.timerTask = this.gearman.getScheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				GearmanServerLocal.this.interpreter.fireTimers();
+			}
+		}, tick, tick, TimeUnit.MILLISECONDS);
+	}
+	
+	private final ScheduledFuture<?> scheduleEviction(final long timeout) {
+		if(timeout<=0) return null;
+		
+		// Check twice per timeout, so functions go at most one and a half timeouts after becoming idle
+		final long period = Math.max(1, timeout/2);
+		return this.gearman.getScheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				GearmanServerLocal.this.interpreter.evictIdleFunctions(timeout);
+			}
+		}, period, period, TimeUnit.MILLISECONDS);
+	}
+	
+	private final ScheduledFuture<?> scheduleSnapshots(final GearmanPersistence persistence, final long interval) {
+		if(interval<=0 || !(persistence instanceof GearmanSnapshotPersistence)) return null;
+		
+		final GearmanSnapshotPersistence store = (GearmanSnapshotPersistence)persistence;
+		return this.gearman.getScheduler().scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					store.snapshot();
+				} catch (Exception e) {
+					LOGGER.warn("failed to snapshot the persistence store", e);
+				}
+			}
+		}, interval, interval, TimeUnit.MILLISECONDS);
 	}
 	
 	private static final String createID(int openPort) {
@@ -124,12 +182,18 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 			this.lock.writeLock().unlock();
 		}
 		
+		if(this.evictionTask!=null) this.evictionTask.cancel(false);
+		if(this.timerTask!=null) this.timerTask.cancel(false);
+		if(this.snapshotTask!=null) this.snapshotTask.cancel(false);
 		this.gearman.getGearmanConnectionManager().closePort(openPort);
 		
 		for(Client client : clients) {
 			client.close();
 		}
 		
+		// Jobs submitted before the port closed are persisted
+		this.interpreter.shutdown();
+		
 		for(ServerShutdownListener l : listeners) {
 			l.onShutdown(this);
 		}
@@ -189,6 +253,7 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 	private static final class LocalConnection<X,Y> implements GearmanConnection<X> {
 		private final LocalConnection<Y,X> peer;
 		private final GearmanConnectionHandler<X> handler;
+		private final int id = GearmanUtils.nextConnectionId();
 		private X att;
 		
 		private boolean isClosed = false;
@@ -244,6 +309,11 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 		public final int getPort() {
 			return -1;
 		}
+		
+		@Override
+		public final int getConnectionId() {
+			return this.id;
+		}
 
 		
 		@Override
@@ -265,15 +335,33 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 		public boolean isClosed() {
 			return this.isClosed;
 		}
+		
+		@Override
+		public boolean isWritable() {
+			// Packets are handed to the peer directly, nothing is queued
+			return true;
+		}
 
 		@Override
-		public void sendPacket(GearmanPacket packet, GearmanCallbackHandler<GearmanPacket, org.gearman.impl.core.GearmanConnection.SendCallbackResult> callback) {
+		public void sendPacket(GearmanPacket packet, final GearmanCallbackHandler<GearmanPacket, org.gearman.impl.core.GearmanConnection.SendCallbackResult> callback) {
 			if(this.isClosed) {
 				if(callback!=null)
 					callback.onComplete(packet, SendCallbackResult.SERVICE_SHUTDOWN);
 				return;
 			}
 			
+			if(packet.isStreamed()) {
+				// The peer reads packets directly, so the payload is assembled first
+				packet.getStream().assemble(packet, new GearmanCallbackHandler<GearmanPacket, SendCallbackResult>() {
+					@Override
+					public void onComplete(GearmanPacket data, SendCallbackResult result) {
+						if(result.isSuccessful()) LocalConnection.this.peer.handler.onPacketReceived(data, peer);
+						if(callback!=null) callback.onComplete(data, result);
+					}
+				});
+				return;
+			}
+			
 			this.peer.handler.onPacketReceived(packet, peer);
 			if(callback!=null) callback.onComplete(packet, SendCallbackResult.SEND_SUCCESSFUL);
 		}
@@ -306,9 +394,24 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 		}
 	}
 
+	@Override
+	public boolean isStreamable(GearmanPacket.Type type) {
+		// Results are relayed to the listening clients as they are. Submitted jobs are
+		// queued, so their data is always assembled
+		switch(type) {
+		case WORK_COMPLETE:
+		case WORK_DATA:
+		case WORK_WARNING:
+		case WORK_EXCEPTION:
+			return true;
+		default:
+			return false;
+		}
+	}
+
 	@Override
 	public void onPacketReceived(GearmanPacket packet, GearmanConnection<Client> conn) {
-		LOGGER.info(GearmanUtils.toString(conn) + " : IN  : " + packet.getPacketType().toString());
+		PacketTracer.trace(conn, PacketTracer.IN, packet);
 		
 		assert packet!=null;
 		assert conn.getAttachment()!=null;
@@ -320,6 +423,12 @@ public class GearmanServerLocal implements GearmanServerInterface, GearmanConnec
 		}
 	}
 
+	@Override
+	public void onWritabilityChanged(GearmanConnection<Client> conn) {
+		final Client client = conn.getAttachment();
+		if(client!=null) client.writabilityChanged();
+	}
+
 	@Override
 	public void onDisconnect(GearmanConnection<Client> conn) {
 		LOGGER.info(GearmanUtils.toString(conn) + " : Disconnected");
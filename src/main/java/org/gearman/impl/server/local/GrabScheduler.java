@@ -0,0 +1,230 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.server.local;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * Decides the order in which a worker's functions are checked for jobs. Each worker
+ * has its own scheduler, so rotation state is not shared between workers.
+ * 
+ * @author isaiah
+ */
+final class GrabScheduler {
+	
+	/**
+	 * The grab policies
+	 */
+	enum Policy {
+		/** Functions are checked in turn, starting after the last function a job was grabbed from */
+		ROUND_ROBIN,
+		/** Jobs are taken from functions in proportion to their weights (smooth weighted round-robin) */
+		WEIGHTED,
+		/** The function with the most queued jobs is checked first */
+		DEEPEST_QUEUE;
+		
+		/**
+		 * Returns the policy with the given name. Case and underscores are ignored, so
+		 * "round_robin", "roundRobin" and "ROUND_ROBIN" are all accepted
+		 * @param name
+		 * 		The policy name
+		 * @return
+		 * 		The policy
+		 * @throws IllegalArgumentException
+		 * 		if no policy has the given name
+		 */
+		static final Policy fromName(final String name) {
+			final String key = name.replace("_", "").trim();
+			for(Policy policy : Policy.values()) {
+				if(policy.name().replace("_", "").equalsIgnoreCase(key)) return policy;
+			}
+			throw new IllegalArgumentException("Unknown grab policy: " + name);
+		}
+		
+		/**
+		 * Returns the configured default policy
+		 */
+		static final Policy getDefault() {
+			return fromName(GearmanUtils.getGrabPolicy());
+		}
+	}
+	
+	private static final Function[] EMPTY = new Function[0];
+	
+	private final Policy policy;
+	
+	/** The worker's functions */
+	private Function[] functions = EMPTY;
+	/** The current weight of each function, used by the weighted policy */
+	private long[] current = new long[0];
+	/** The sum of the weights of the functions in the last weighted order */
+	private long total;
+	/** The index of the function checked first by the round-robin policy */
+	private int next;
+	
+	GrabScheduler(final Policy policy) {
+		this.policy = policy;
+	}
+	
+	final synchronized void add(final Function func) {
+		for(Function f : this.functions) {
+			if(f==func) return;
+		}
+		
+		final int size = this.functions.length;
+		this.functions = Arrays.copyOf(this.functions, size+1);
+		this.current = Arrays.copyOf(this.current, size+1);
+		this.functions[size] = func;
+	}
+	
+	final synchronized void remove(final Function func) {
+		final int size = this.functions.length;
+		for(int i=0; i<size; i++) {
+			if(this.functions[i]!=func) continue;
+			
+			final Function[] functions = new Function[size-1];
+			final long[] current = new long[size-1];
+			System.arraycopy(this.functions, 0, functions, 0, i);
+			System.arraycopy(this.functions, i+1, functions, i, size-i-1);
+			System.arraycopy(this.current, 0, current, 0, i);
+			System.arraycopy(this.current, i+1, current, i, size-i-1);
+			
+			this.functions = functions;
+			this.current = current;
+			if(this.next>i) this.next--;
+			return;
+		}
+	}
+	
+	/**
+	 * Returns the worker's functions in the order they should be checked for jobs
+	 * @return
+	 * 		The functions to check, in order
+	 */
+	final synchronized Function[] order() {
+		final int size = this.functions.length;
+		if(size<=1) return this.functions;
+		
+		switch(this.policy) {
+		case WEIGHTED:
+			return this.weightedOrder();
+		case DEEPEST_QUEUE:
+			return this.deepestOrder();
+		case ROUND_ROBIN:
+		default:
+			final Function[] order = new Function[size];
+			final int start = this.next % size;
+			System.arraycopy(this.functions, start, order, 0, size-start);
+			System.arraycopy(this.functions, 0, order, size-start, start);
+			return order;
+		}
+	}
+	
+	/**
+	 * Records that a job was grabbed from the given function
+	 * @param func
+	 * 		The function the job was taken from
+	 */
+	final synchronized void grabbed(final Function func) {
+		final int index = this.indexOf(func);
+		if(index<0) return;
+		
+		switch(this.policy) {
+		case WEIGHTED:
+			this.current[index] -= this.total;
+			break;
+		case ROUND_ROBIN:
+			this.next = index+1;
+			break;
+		default:
+			break;
+		}
+	}
+	
+	private final Function[] weightedOrder() {
+		// Only functions with queued jobs take part, so idle functions don't build up credit
+		final Function[] order = new Function[this.functions.length];
+		final long[] score = new long[this.functions.length];
+		int count = 0;
+		long total = 0;
+		
+		for(int i=0; i<this.functions.length; i++) {
+			final Function func = this.functions[i];
+			if(func.queueIsEmpty()) continue;
+			
+			final int weight = func.getWeight();
+			this.current[i] += weight;
+			total += weight;
+			
+			// Insertion sort by current weight, highest first
+			int pos = count++;
+			while(pos>0 && score[pos-1]<this.current[i]) {
+				order[pos] = order[pos-1];
+				score[pos] = score[pos-1];
+				pos--;
+			}
+			order[pos] = func;
+			score[pos] = this.current[i];
+		}
+		
+		this.total = total;
+		return Arrays.copyOf(order, count);
+	}
+	
+	private final Function[] deepestOrder() {
+		final Function[] order = this.functions.clone();
+		final int[] depth = new int[order.length];
+		for(int i=0; i<order.length; i++) {
+			depth[i] = order[i].queueSize();
+		}
+		
+		// Sort by the depth sampled above, so the order is consistent while queues change
+		final Integer[] index = new Integer[order.length];
+		for(int i=0; i<index.length; i++) index[i] = i;
+		Arrays.sort(index, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return depth[b]<depth[a]? -1: (depth[b]==depth[a]? 0: 1);
+			}
+		});
+		
+		final Function[] sorted = new Function[order.length];
+		for(int i=0; i<index.length; i++) sorted[i] = order[index[i]];
+		return sorted;
+	}
+	
+	private final int indexOf(final Function func) {
+		for(int i=0; i<this.functions.length; i++) {
+			if(this.functions[i]==func) return i;
+		}
+		return -1;
+	}
+}
@@ -27,17 +27,21 @@
 
 package org.gearman.impl.server.local;
 
+import java.io.IOException;
+import java.io.StringWriter;
 import java.util.Arrays;
-import java.util.Collection;
 
 import org.gearman.GearmanJobPriority;
-import org.gearman.GearmanPersistable;
 import org.gearman.GearmanPersistence;
 import org.gearman.impl.core.GearmanPacket;
 import org.gearman.impl.core.GearmanPacket.Magic;
 import org.gearman.impl.core.GearmanPacket.Type;
+import org.gearman.impl.core.PacketTracer;
 import org.gearman.impl.util.ByteArray;
 import org.gearman.impl.util.GearmanUtils;
+import org.gearman.impl.util.TimingWheel;
+
+import static org.gearman.context.GearmanContext.LOGGER;
 
 
 /**
@@ -48,49 +52,68 @@ import org.gearman.impl.util.GearmanUtils;
  */
 final class Interpreter {
 	
-	private final FunctionMap funcMap = new FunctionMap();
-	private final GearmanPersistence persistence;
+	private final JobHandleIndex jobs = new JobHandleIndex();
+	/** Background jobs waiting for their epoch time and running jobs with a CAN_DO_TIMEOUT, with one second ticks */
+	private final TimingWheel<Job> timers = new TimingWheel<Job>(1000L);
+	/** Holds the data of queued jobs past the heap budget, or null if spilling is disabled */
+	private final PayloadSpill spill = PayloadSpill.create();
+	private final FunctionMap funcMap = new FunctionMap(this.jobs, this.timers, this.spill);
+	/** Applies persistence operations in the background. null if there's no persistence store */
+	private final PersistenceStage persistence;
 	
 	private final GearmanServerLocal server;
 	
 	public Interpreter(GearmanServerLocal server, GearmanPersistence persistence) {
 		this.server = server;
-		this.persistence = persistence;
-		
+		this.persistence = persistence==null? null: new PersistenceStage(persistence);
+	}
+	
+	/**
+	 * Replays the jobs held by the persistence store into their functions' queues.
+	 * Called before the server's port is opened
+	 */
+	final void recover(final GearmanPersistence persistence) {
 		if(persistence==null) return;
-		
-		Collection<GearmanPersistable> items = null;
-		try {
-			items = persistence.readAll();
-		} catch (Exception ex) {
-			// TODO LOG
-		}
-		
-		if(items==null) return;
-		for(GearmanPersistable item : items) {
-			try {
-				String functionName = item.getFunctionName();
-				if(functionName==null) {
-					// TODO log
-				}
-				
-				Function func = funcMap.getFunction(new ByteArray(functionName));
-				
-				byte[] uniqueID = item.getUniqueID();
-				byte[] data = item.getData();
-				GearmanJobPriority priority = item.getPriority();
-				byte[] jobHandle = item.getJobHandle();
-				
-				if(uniqueID==null || data==null || priority==null || jobHandle==null) {
-					// TODO log
-				} else {
-					func.put(new ByteArray(uniqueID), data, jobHandle, priority);
-				}
-			} catch (Exception e) {
-				// TODO log
+		new Recovery(this.funcMap).run(persistence);
+	}
+	
+	/**
+	 * Removes the functions that have had no jobs and no workers for the given timeout
+	 * @param timeout
+	 * 		The idle timeout in milliseconds
+	 */
+	final void evictIdleFunctions(final long timeout) {
+		this.funcMap.evictIdle(timeout);
+	}
+	
+	/**
+	 * Queues the delayed jobs whose epoch time has passed, and takes jobs from the
+	 * workers that have run past their CAN_DO_TIMEOUT
+	 */
+	final void fireTimers() {
+		final long now = System.currentTimeMillis();
+		for(Job job : this.timers.advance(now)) {
+			if(job.getFunction().onTimer(job, now) && job.isBackground() && this.persistence!=null) {
+				// The job failed
+				this.persistence.delete(job);
 			}
 		}
 	}
+	
+	/**
+	 * Waits for the queued persistence operations to complete and releases the spill
+	 */
+	final void shutdown() {
+		if(this.persistence!=null) this.persistence.shutdown();
+		if(this.spill!=null) this.spill.close();
+	}
+	
+	/**
+	 * Returns the length of a tick of the timing wheel, in milliseconds
+	 */
+	final long getTimerTickMillis() {
+		return this.timers.getTickMillis();
+	}
 		
 	/**
 	 * Once a packet has been acquired from a client, it's processed here.
@@ -114,7 +137,7 @@ final class Interpreter {
 			can_do(packet,client);
 			return;
 		case CAN_DO_TIMEOUT:
-			can_do(packet,client);
+			can_do_timeout(packet,client);
 			return;
 		case CANT_DO:
 			cant_do(packet,client);
@@ -161,6 +184,12 @@ final class Interpreter {
 		case SUBMIT_JOB_LOW_BG:
 			submit_job(packet,client,GearmanJobPriority.LOW_PRIORITY, true);
 			return;
+		case SUBMIT_JOB_EPOCH:
+			submit_job_epoch(packet,client);
+			return;
+		case SUBMIT_JOB_SCHED:
+			submit_job_sched(packet,client);
+			return;
 		case WORK_COMPLETE:
 			work_complete(packet,client);
 			return;
@@ -191,8 +220,6 @@ final class Interpreter {
 			
 		// Packets Not Yet Implemented
 		case ALL_YOURS:
-		case SUBMIT_JOB_EPOCH:
-		case SUBMIT_JOB_SCHED:
 			client.sendPacket(StaticPackets.ERROR_BAD_COMMAND, null);
 			return;
 		
@@ -238,6 +265,24 @@ final class Interpreter {
 		case "VERSION":
 			text_version(args, client);
 			return;
+		case "STATS":
+			text_stats(args, client);
+			return;
+		case "WEIGHT":
+			text_weight(args, client);
+			return;
+		case "FUNCTIONS":
+			text_functions(args, client);
+			return;
+		case "TRACE":
+			text_trace(args, client);
+			return;
+		case "PERSISTENCE":
+			text_persistence(args, client);
+			return;
+		case "SPILL":
+			text_spill(args, client);
+			return;
 		default:
 			client.sendPacket(StaticPackets.TEXT_UNKNOWN_COMMAND, null);
 		}
@@ -254,29 +299,41 @@ final class Interpreter {
 		this.funcMap.sendStatus(client);
 	}
 	
+	/**
+	 * Sets the maximum number of jobs a function can hold.<br>
+	 * Format: MAXQUEUE FUNCTION [SIZE | HIGH NORMAL LOW]<br>
+	 * <br>
+	 * With one size, the limit applies to all priorities. With three, a job is
+	 * rejected once the function holds as many jobs as the limit for the job's
+	 * priority. With none, or a size of 0 or less, the function is unlimited.
+	 */
 	private final void text_maxqueue(final String[] args, final Client client) {
-		final byte[] funcName = args[1].getBytes(GearmanUtils.getCharset());
-		if(funcName==null) {
+		if(args.length<2 || args[1].isEmpty() || args.length==4 || args.length>5) {
 			client.sendPacket(StaticPackets.TEXT_INCOMPLETE_ARGS, null);
 			return;
 		}
-		final ByteArray funcNameBA = new ByteArray(funcName);
+		final ByteArray funcName = new ByteArray(args[1].getBytes(GearmanUtils.getCharset()));
 		
-		final String sizeStr = args[2];
-		if(sizeStr==null) {
+		final int[] sizes = new int[args.length-2];
+		try {
+			for(int i=0; i<sizes.length; i++) sizes[i] = Integer.parseInt(args[i+2]);
+		} catch (NumberFormatException e) {
 			client.sendPacket(StaticPackets.TEXT_INCOMPLETE_ARGS, null);
 			return;
 		}
 		
-		final int size;
-		try { size = Integer.parseInt(sizeStr); }
-		catch (NumberFormatException e) {
-			client.sendPacket(StaticPackets.TEXT_OK, null);
-			return;
+		final Function func = this.funcMap.getFunction(funcName);
+		switch(sizes.length) {
+		case 0:
+			func.setMaxQueue(0);
+			break;
+		case 1:
+			func.setMaxQueue(sizes[0]);
+			break;
+		default:
+			func.setMaxQueue(sizes[0], sizes[1], sizes[2]);
 		}
-		
-		final Function func = this.funcMap.getFunctionIfDefined(funcNameBA);
-		if(func!=null) func.setMaxQueue(size);
+		client.sendPacket(StaticPackets.TEXT_OK, null);
 	}
 	
 	private final void text_shutdown(final String[] args, final Client client) {
@@ -289,6 +346,125 @@ final class Interpreter {
 		client.sendPacket(StaticPackets.TEXT_VERSION, null);
 	}
 	
+	/**
+	 * Sends the wake-up and timeout statistics for each function, one line per function in the format
+	 * FUNCTION\tSLEEPING\tWAKEUPS\tWASTED\tTIMEDOUT\tTIMEOUT_FAILED, followed by a line with a single '.'
+	 */
+	private final void text_stats(final String[] args, final Client client) {
+		this.funcMap.sendStats(client);
+	}
+	
+	/**
+	 * Sends the number of functions and the number evicted for being idle, in the
+	 * format FUNCTIONS\tEVICTED, followed by a line with a single '.'
+	 */
+	private final void text_functions(final String[] args, final Client client) {
+		this.funcMap.sendFunctionStats(client);
+	}
+	
+	/**
+	 * Sends the persistence writer's statistics, one per line in the format NAME\tVALUE,
+	 * followed by a line with a single '.'. Without a persistence store only the '.' is sent
+	 */
+	private final void text_persistence(final String[] args, final Client client) {
+		if(this.persistence==null) {
+			client.sendPacket(StaticPackets.TEXT_DONE, null);
+			return;
+		}
+		client.sendPacket(this.persistence.getStatus(), null);
+	}
+	
+	/**
+	 * Sends the statistics of the spill for queued job data, one per line in the format
+	 * NAME\tVALUE, followed by a line with a single '.'. If spilling is disabled only the
+	 * '.' is sent
+	 */
+	private final void text_spill(final String[] args, final Client client) {
+		if(this.spill==null) {
+			client.sendPacket(StaticPackets.TEXT_DONE, null);
+			return;
+		}
+		client.sendPacket(this.spill.getStatus(), null);
+	}
+	
+	/**
+	 * Controls the packet tracer.<br>
+	 * Format: TRACE [ON|OFF|RATE n|SAVE]<br>
+	 * With no argument the recorded packets are sent, one per line in the format
+	 * TIME\tCONNECTION\tIN|OUT\tTYPE\tSIZE, followed by a line with a single '.'.
+	 * SAVE writes the same lines to the configured trace file
+	 */
+	private final void text_trace(final String[] args, final Client client) {
+		final String arg = args.length<2? null: args[1].toUpperCase();
+		
+		if(arg==null) {
+			final StringWriter out = new StringWriter();
+			try { PacketTracer.dump(out); }
+			catch (IOException e) { throw new IllegalStateException(e); }
+			
+			out.write(".\n");
+			client.sendPacket(GearmanPacket.createTEXT(out.toString()), null);
+			return;
+		}
+		
+		switch(arg) {
+		case "ON":
+			PacketTracer.setEnabled(true);
+			break;
+		case "OFF":
+			PacketTracer.setEnabled(false);
+			break;
+		case "RATE":
+			int rate = 0;
+			try { if(args.length>=3) rate = Integer.parseInt(args[2]); }
+			catch (NumberFormatException e) { /* reported below */ }
+			if(rate<1) {
+				client.sendPacket(StaticPackets.TEXT_INCOMPLETE_ARGS, null);
+				return;
+			}
+			PacketTracer.setSampleRate(rate);
+			break;
+		case "SAVE":
+			try { PacketTracer.dumpToFile(); }
+			catch (IOException e) {
+				LOGGER.warn("failed to write the packet trace", e);
+				client.sendPacket(StaticPackets.TEXT_TRACE_FAILED, null);
+				return;
+			}
+			break;
+		default:
+			client.sendPacket(StaticPackets.TEXT_UNKNOWN_COMMAND, null);
+			return;
+		}
+		client.sendPacket(StaticPackets.TEXT_OK, null);
+	}
+	
+	/**
+	 * Sets a function's weight for workers using the weighted grab policy.<br>
+	 * Format: WEIGHT FUNCTION WEIGHT, where WEIGHT is a positive integer
+	 */
+	private final void text_weight(final String[] args, final Client client) {
+		if(args.length<3) {
+			client.sendPacket(StaticPackets.TEXT_INCOMPLETE_ARGS, null);
+			return;
+		}
+		
+		final int weight;
+		try { weight = Integer.parseInt(args[2]); }
+		catch (NumberFormatException e) {
+			client.sendPacket(StaticPackets.TEXT_INCOMPLETE_ARGS, null);
+			return;
+		}
+		if(weight<1) {
+			client.sendPacket(StaticPackets.TEXT_INCOMPLETE_ARGS, null);
+			return;
+		}
+		
+		final ByteArray funcName = new ByteArray(args[1].getBytes(GearmanUtils.getCharset()));
+		this.funcMap.getFunction(funcName).setWeight(weight);
+		client.sendPacket(StaticPackets.TEXT_OK, null);
+	}
+	
 	/**
 	 * Called when a CAN_DO packet comes in.<br>
 	 * <br><i>
@@ -308,9 +484,6 @@ final class Interpreter {
 	 */
 	private final void can_do(final GearmanPacket packet, final Client client) {
 		
-		// Note: Currently the CAN_DO_TIMEOUT maps to this method, the timeout
-		// feature will be fully implemented in the future.
-		
 		//Function Name
 		final byte[] funcName = packet.getArgumentData(0);
 		assert funcName!=null;
@@ -328,6 +501,47 @@ final class Interpreter {
 		client.can_do(func);
 	}
 	
+	/**
+	 * Called when a CAN_DO_TIMEOUT packet comes in.<br>
+	 * <br><i>
+	 * CAN_DO_TIMEOUT:<br>
+	 * Same as CAN_DO, but with a timeout value on how long the job
+	 * is allowed to run. After the timeout value, the job server will
+	 * mark the job as failed and notify any listening clients.<br>
+	 * <br>
+	 * Arguments:<br>
+	 * - NULL byte terminated Function name.<br>
+	 * - Timeout value.<br>
+	 * </i><br>
+	 * The timeout is in seconds. A job that times out is queued again for another
+	 * worker, and only fails once it has timed out {@link GearmanUtils#getJobTimeoutAttempts()}
+	 * times.
+	 * 
+	 * @param packet
+	 * 		The CAN_DO_TIMEOUT packet
+	 * @param client
+	 * 		The client who acquired the packet.
+	 */
+	private final void can_do_timeout(final GearmanPacket packet, final Client client) {
+		final byte[] funcName = packet.getArgumentData(0);
+		final byte[] timeoutData = packet.getArgumentData(1);
+		assert funcName!=null && timeoutData!=null;
+		
+		long timeout;
+		try {
+			timeout = Long.parseLong(new String(timeoutData, GearmanUtils.getCharset()).trim());
+		} catch (NumberFormatException e) {
+			timeout = -1;
+		}
+		if(timeout<0 || timeout>Long.MAX_VALUE/1000L) {
+			client.sendPacket(StaticPackets.ERROR_INVALID_TIMEOUT, null);
+			return;
+		}
+		
+		final Function func = this.funcMap.getFunction(new ByteArray(funcName));
+		client.can_do(func, timeout*1000L);
+	}
+	
 	
 	/**
 	 * Called when a CANT_DO packet comes in.<br>
@@ -388,9 +602,8 @@ final class Interpreter {
 		
 		final byte[] jobHandle = packet.getArgumentData(0);
 		assert jobHandle != null;
-		final ByteArray jobHandleBA = new ByteArray(jobHandle);
 		
-		final Job job = JobAbstract.getJob(jobHandleBA);
+		final Job job = this.jobs.get(jobHandle);
 		if(job==null){
 			//Send unknown job STATUS_RES packet 
 			final byte[] unknown = new byte[]{'0'};
@@ -543,6 +756,69 @@ final class Interpreter {
 		func.createJob(uniqueIDBA, data, priority, client, isBackground, persistence);	
 	}
 	
+	private final void submit_job_epoch(final GearmanPacket packet, final Client client) {
+		
+		/*
+		 * A client issues this to submit a background job that is not given to
+		 * a worker until the given time has passed.
+		 * 
+		 * Arguments:
+		 * - NULL byte terminated function name.
+		 * - NULL byte terminated unique ID.
+		 * - NULL byte terminated epoch time, in seconds.
+		 * - Opaque data that is given to the function as an argument.
+		 */
+		
+		final long epoch = JobSchedule.parseEpoch(packet.getArgumentData(2));
+		if(epoch<0) {
+			client.sendPacket(StaticPackets.ERROR_INVALID_TIME, null);
+			return;
+		}
+		
+		submit_delayed_job(packet, client, epoch, packet.getArgumentData(3));
+	}
+	
+	private final void submit_job_sched(final GearmanPacket packet, final Client client) {
+		
+		/*
+		 * A client issues this to submit a background job that is not given to
+		 * a worker until the next time matching the given schedule, in the
+		 * server's time zone. An empty field matches any value.
+		 * 
+		 * Arguments:
+		 * - NULL byte terminated function name.
+		 * - NULL byte terminated unique ID.
+		 * - NULL byte terminated minute (0-59).
+		 * - NULL byte terminated hour (0-23).
+		 * - NULL byte terminated day of month (1-31).
+		 * - NULL byte terminated month (1-12).
+		 * - NULL byte terminated day of week (0-6, 0 = Sunday).
+		 * - Opaque data that is given to the function as an argument.
+		 */
+		
+		final long epoch = JobSchedule.nextEpoch(
+				packet.getArgumentData(2), packet.getArgumentData(3), packet.getArgumentData(4),
+				packet.getArgumentData(5), packet.getArgumentData(6), System.currentTimeMillis());
+		if(epoch<0) {
+			client.sendPacket(StaticPackets.ERROR_INVALID_TIME, null);
+			return;
+		}
+		
+		submit_delayed_job(packet, client, epoch, packet.getArgumentData(7));
+	}
+	
+	private final void submit_delayed_job(final GearmanPacket packet, final Client client, final long epoch, final byte[] data) {
+		final byte[] funcName = packet.getArgumentData(0);
+		assert funcName != null;
+		
+		final byte[] uniqueID = packet.getArgumentData(1);
+		assert uniqueID != null;
+		assert data != null;
+		
+		final Function func = this.funcMap.getFunction(new ByteArray(funcName));
+		func.createJob(new ByteArray(uniqueID), data, GearmanJobPriority.NORMAL_PRIORITY, client, true, epoch, persistence);
+	}
+	
 	private final void work_complete(final GearmanPacket packet, final Client client) {
 		/*
 		 * This is to notify the server (and any listening clients) that
@@ -555,28 +831,34 @@ final class Interpreter {
 		
 		final byte[] jobHandle = packet.getArgumentData(0);
 		assert jobHandle != null;
-		final ByteArray jobHandleBA = new ByteArray(jobHandle);
 		
-		final Job job = JobAbstract.getJob(jobHandleBA);
+		final Job job = this.jobs.get(jobHandle);
 		if(job==null) {
 			client.sendPacket(StaticPackets.ERROR_JOB_NOT_FOUND, null);
 		} else {
 			
-			try {
-				if(job.isBackground() && this.persistence!=null) {
-					persistence.delete(new ServerPersistable(job));
-				}
-			} catch (Exception e) {
-				// TODO log issue
-			}
-			
 			synchronized(job) {
+				/*
+				 * Only the job's current worker may complete it. The job may have timed
+				 * out since it was assigned to the sender, and have been failed, requeued
+				 * or given to another worker, see Function#onTimer
+				 */
+				if(job.getWorker()!=client) {
+					client.sendPacket(StaticPackets.ERROR_JOB_NOT_FOUND, null);
+					return;
+				}
+				
 				// Construct a WORK_COMPLETE response packet
 				
 				// This operation must be synchronized. There is a race condition with
 				// ServerFunction#createJob() method.
 				job.workComplete(packet);
 			}
+			
+			// Not under the job's monitor, the persistence writer may need it to release a job
+			if(job.isBackground() && this.persistence!=null) {
+				this.persistence.delete(job);
+			}
 		}
 	}
 	
@@ -595,9 +877,8 @@ final class Interpreter {
 		
 		final byte[] jobHandle = packet.getArgumentData(0);
 		assert jobHandle != null;
-		final ByteArray jobHandleBA = new ByteArray(jobHandle);
 		
-		final Job job = JobAbstract.getJob(jobHandleBA);
+		final Job job = this.jobs.get(jobHandle);
 		if(job==null) {
 			client.sendPacket(StaticPackets.ERROR_JOB_NOT_FOUND, null);
 		} else {
@@ -636,9 +917,8 @@ final class Interpreter {
 		
 		final byte[] jobHandle = packet.getArgumentData(0);;
 		assert jobHandle != null;
-		final ByteArray jobHandleBA = new ByteArray(jobHandle);
 		
-		final Job job = JobAbstract.getJob(jobHandleBA);
+		final Job job = this.jobs.get(jobHandle);
 		if(job==null) {
 			client.sendPacket(StaticPackets.ERROR_JOB_NOT_FOUND, null);
 		} else {
@@ -659,23 +939,26 @@ final class Interpreter {
 
 		final byte[] jobHandle = packet.getArgumentData(0);
 		assert jobHandle != null;
-		final ByteArray jobHandleBA = new ByteArray(jobHandle);
 		
-		final Job job = JobAbstract.getJob(jobHandleBA);
+		final Job job = this.jobs.get(jobHandle);
 		if(job==null){
 			client.sendPacket(StaticPackets.ERROR_JOB_NOT_FOUND, null);
-		} else {
-			
-			try {
-				if(job.isBackground() && this.persistence!=null) {
-					persistence.delete(new ServerPersistable(job));
-				}
-			} catch (Exception e) {
-				// TODO log issue
+			return;
+		}
+		
+		synchronized(job) {
+			// Only the job's current worker may fail it, see work_complete
+			if(job.getWorker()!=client) {
+				client.sendPacket(StaticPackets.ERROR_JOB_NOT_FOUND, null);
+				return;
 			}
 			
 			job.workComplete(packet);
 		}
+		
+		if(job.isBackground() && this.persistence!=null) {
+			this.persistence.delete(job);
+		}
 	}
 	
 	private final void work_status(final GearmanPacket packet, final Client client) {
@@ -695,7 +978,6 @@ final class Interpreter {
 		
 		final byte[] jobHandle = packet.getArgumentData(0);
 		assert jobHandle != null;
-		final ByteArray jobHandleBA = new ByteArray(jobHandle);
 		
 		final byte[] num = packet.getArgumentData(1);
 		assert num != null;
@@ -703,7 +985,7 @@ final class Interpreter {
 		final byte[] den = packet.getArgumentData(2);
 		assert den != null;
 		
-		final Job job = JobAbstract.getJob(jobHandleBA);
+		final Job job = this.jobs.get(jobHandle);
 		if(job==null) {
 			client.sendPacket(StaticPackets.ERROR_JOB_NOT_FOUND, null);
 		} else {
@@ -41,21 +41,24 @@ interface Job {
 	public GearmanPacket createStatusResPacket();
 	
 	/**
-	 * Returns a JOB_ASSIGN packet as specified in the gearman protocol
+	 * Returns a JOB_ASSIGN packet as specified in the gearman protocol. The
+	 * packet is immutable and is shared by every call
 	 * 
 	 * @return a JOB_ASSIGN packet as specified in the gearman protocol
 	 */
 	public GearmanPacket createJobAssignPacket();
 
 	/**
-	 * Returns a JOB_ASSIGN_UNIQ packet as specified in the gearman protocol
+	 * Returns a JOB_ASSIGN_UNIQ packet as specified in the gearman protocol. The
+	 * packet is immutable and is shared by every call
 	 * 
 	 * @return a JOB_ASSIGN_UNIQ packet as specified in the gearman protocol
 	 */
 	public GearmanPacket createJobAssignUniqPacket();
 
 	/**
-	 * Returns a JobCreated packet as specified by the gearman protocol
+	 * Returns a JobCreated packet as specified by the gearman protocol. The
+	 * packet is immutable and is shared by every call
 	 * 
 	 * @return a JOB_CREATED packet as specified by the gearman protocol
 	 */
@@ -74,6 +77,13 @@ interface Job {
 	 * @return the opaque data that is given to the function as an argument
 	 */
 	public byte[] getData();
+	
+	/**
+	 * Returns the time before which the job is not given to a worker
+	 * 
+	 * @return the time in seconds since the epoch, or 0 if the job can run immediately
+	 */
+	public long getEpoch();
 
 	/**
 	 * Returns the function that manages this job
@@ -103,6 +113,13 @@ interface Job {
 	 */
 	public JobState getState();
 
+	/**
+	 * Returns the worker this job is assigned to
+	 * 
+	 * @return the worker working on this job, or null if the job is not being worked on
+	 */
+	public Client getWorker();
+
 	/**
 	 * Returns the function local ID specified by the user
 	 * 
@@ -27,11 +27,8 @@
 
 package org.gearman.impl.server.local;
 
-import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CopyOnWriteArraySet;
-import java.util.concurrent.atomic.AtomicLong;
 
 import org.gearman.GearmanJobPriority;
 import org.gearman.impl.core.GearmanCallbackHandler;
@@ -40,31 +37,23 @@ import org.gearman.impl.core.GearmanConnection.SendCallbackResult;
 import org.gearman.impl.core.GearmanPacket.Magic;
 import org.gearman.impl.core.GearmanPacket.Type;
 import org.gearman.impl.util.ByteArray;
-import org.gearman.impl.util.GearmanUtils;
 
 abstract class JobAbstract implements Job, ClientDisconnectListener {
 	
 	private static final byte[] STATUS_TRUE = new byte[]{'1'};
 	private static final byte[] STATUS_FALSE = new byte[]{'0'};
+	/** The data of a dropped job whose spilled data was freed unread */
+	private static final byte[] DROPPED_DATA = new byte[0];
 	
 	
-	/** 
-	 * Global Job Map
-	 * key = job handle
-	 * value = job
-	 */
-	private static final Map<ByteArray, Job > globalJobs = new ConcurrentHashMap<ByteArray, Job>();
-	
-	public static final Job getJob(final ByteArray jobHandle) {
-		return JobAbstract.globalJobs.get(jobHandle);
-	}
-	
 	/** Defines this job's current state */
 	private JobState state = JobState.QUEUED;
 	/** Defines this job's priority. Also used as the state change lock */
 	private final GearmanJobPriority priority;
 	/** Specifies if this is a background or not */
 	private final boolean isBackground;
+	/** The time, in seconds since the epoch, before which the job is not run, or 0 */
+	private final long epoch;
 	
 	// --- Job Data --- //
 	
@@ -72,28 +61,66 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 	private final ByteArray uniqueID;
 	/** The server wide ID specified by the server */
 	private final ByteArray jobHandle;
-	/** The opaque data that is given as an argument in the SUBMIT_JOB packet*/
-	private final byte[] data;
+	/** The job handle's key in the index, or JobHandleIndex.FOREIGN */
+	private final long handleKey;
+	/** The server's job handle index */
+	private final JobHandleIndex index;
+	/** The opaque data that is given as an argument in the SUBMIT_JOB packet, or null while it's spilled. Guarded by this once queued */
+	private byte[] data;
 	/** The status numerator */
 	private byte[] numerator;
 	/** The status denominator */
 	private byte[] denominator;
 	
+	// --- Pre-encoded Packets --- //
+	
+	/** The JOB_CREATED packet, created on first use */
+	private GearmanPacket jobCreatedPacket;
+	/** The JOB_ASSIGN packet, created on first use */
+	private GearmanPacket jobAssignPacket;
+	/** The JOB_ASSIGN_UNIQ packet, created on first use */
+	private GearmanPacket jobAssignUniqPacket;
+	
+	// --- Payload Spill --- //
+	
+	/** Where the data is while it's spilled, or null. Guarded by this */
+	private PayloadSpill.Payload spilled;
+	/** If the data is counted against the spill's heap budget. Guarded by this */
+	private boolean isCounted = false;
+	
+	// --- Queue Links --- //
+	
+	/** The queue holding this job, or null if the job is not queued. Guarded by the queue */
+	JobQueue<?> queuedIn;
+	/** The previous job with the same priority in the queue. Guarded by the queue */
+	JobAbstract prevQueued;
+	/** The next job with the same priority in the queue. Guarded by the queue */
+	JobAbstract nextQueued;
+	
 	//--- Listening Clients and Worker --- //
 	
 	/** The set of all listing clients */
 	private final Set<Client> clients = new CopyOnWriteArraySet<Client>();
-	/** The worker assigned to work on this job */
-	private Client worker;
+	/** The worker assigned to work on this job. Volatile since the assignment is made outside the job's monitor */
+	private volatile Client worker;
+	
+	JobAbstract(final ByteArray uniqueID, final byte[] data, final GearmanJobPriority priority, boolean isBackground, final long epoch, final Client creator, final JobHandleIndex index) {
+		this(uniqueID, data, index.nextKey(), priority, isBackground, epoch, creator, index);
+	}
 	
-	JobAbstract(final ByteArray uniqueID, final byte[] data, final GearmanJobPriority priority, boolean isBackground, final Client creator) {
-		this(uniqueID, data, getNextJobHandle(), priority, isBackground, creator);
+	JobAbstract(final ByteArray uniqueID, final byte[] data, final byte[] jobHandle, final GearmanJobPriority priority, boolean isBackground, final long epoch, final Client creator, final JobHandleIndex index) {
+		this(uniqueID, data, jobHandle, index.keyOf(jobHandle), priority, isBackground, epoch, creator, index);
 	}
 	
-	JobAbstract(final ByteArray uniqueID, final byte[] data, final byte[] jobHandle, final GearmanJobPriority priority, boolean isBackground, final Client creator) {
+	private JobAbstract(final ByteArray uniqueID, final byte[] data, final long handleKey, final GearmanJobPriority priority, boolean isBackground, final long epoch, final Client creator, final JobHandleIndex index) {
+		this(uniqueID, data, index.toHandle(handleKey), handleKey, priority, isBackground, epoch, creator, index);
+	}
+	
+	private JobAbstract(final ByteArray uniqueID, final byte[] data, final byte[] jobHandle, final long handleKey, final GearmanJobPriority priority, boolean isBackground, final long epoch, final Client creator, final JobHandleIndex index) {
 		this.uniqueID = uniqueID;
 		this.data = data;
 		this.priority = priority;
+		this.epoch = epoch;
 		
 		if(!(this.isBackground = isBackground)) {
 			this.clients.add(creator);
@@ -101,8 +128,10 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 		}
 		
 		this.jobHandle = new ByteArray(jobHandle);
+		this.handleKey = handleKey;
+		this.index = index;
 		
-		JobAbstract.globalJobs.put(this.jobHandle, this);
+		index.put(this);
 	}
 	
 	protected final boolean addClient(final Client client) {
@@ -116,17 +145,33 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 
 	@Override
 	public final GearmanPacket createJobAssignPacket() {
-		return GearmanPacket.createJOB_ASSIGN(jobHandle.getBytes(), this.getFunction().getName().toString(GearmanUtils.getCharset()), data);
+		// Races are benign, all threads encode the same packet
+		GearmanPacket packet = this.jobAssignPacket;
+		if(packet==null) {
+			packet = new GearmanPacket(Magic.RES, Type.JOB_ASSIGN, this.jobHandle.getBytes(), this.getFunction().getName().getBytes(), this.getData()).toImmutable();
+			this.jobAssignPacket = packet;
+		}
+		return packet;
 	}
 
 	@Override
 	public final GearmanPacket createJobAssignUniqPacket() {
-		return new GearmanPacket(Magic.RES, Type.JOB_ASSIGN_UNIQ, this.jobHandle.getBytes(), this.getFunction().getName().getBytes(), this.uniqueID.getBytes(), data);
+		GearmanPacket packet = this.jobAssignUniqPacket;
+		if(packet==null) {
+			packet = new GearmanPacket(Magic.RES, Type.JOB_ASSIGN_UNIQ, this.jobHandle.getBytes(), this.getFunction().getName().getBytes(), this.uniqueID.getBytes(), this.getData()).toImmutable();
+			this.jobAssignUniqPacket = packet;
+		}
+		return packet;
 	}
 
 	@Override
 	public final GearmanPacket createJobCreatedPacket() {
-		return new GearmanPacket(Magic.RES, Type.JOB_CREATED, this.jobHandle.getBytes());
+		GearmanPacket packet = this.jobCreatedPacket;
+		if(packet==null) {
+			packet = new GearmanPacket(Magic.RES, Type.JOB_CREATED, this.jobHandle.getBytes()).toImmutable();
+			this.jobCreatedPacket = packet;
+		}
+		return packet;
 	}
 
 	@Override
@@ -142,14 +187,81 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 
 
 	@Override
-	public byte[] getData() {
-		return this.data;
+	public synchronized byte[] getData() {
+		// A spilled job's data is read without restoring it
+		return this.spilled==null? this.data: this.spilled.read();
+	}
+	
+	/**
+	 * Counts the queued job's data against the spill's heap budget, or moves the data to
+	 * the spill if the budget is spent. Called each time the job is queued
+	 */
+	final synchronized void onQueued(final PayloadSpill spill) {
+		// Encoded by an earlier assignment, they hold an uncounted copy of the data
+		this.jobAssignPacket = null;
+		this.jobAssignUniqPacket = null;
+		
+		if(this.isCounted || this.spilled!=null || this.data.length<PayloadSpill.MIN_SPILL_SIZE) return;
+		
+		if(spill.reserve(this.data.length)) {
+			this.isCounted = true;
+			return;
+		}
+		
+		final PayloadSpill.Payload payload = spill.write(this.data);
+		if(payload==null) return;	// Kept on the heap
+		
+		this.spilled = payload;
+		this.data = null;
+	}
+	
+	/**
+	 * Restores the job's data, or stops counting it against the heap budget. Called each
+	 * time the job leaves the queue
+	 */
+	final synchronized void onDequeued(final PayloadSpill spill) {
+		if(this.isCounted) {
+			spill.release(this.data.length);
+			this.isCounted = false;
+		} else if(this.spilled!=null) {
+			this.data = spill.restore(this.spilled);
+			this.spilled = null;
+		}
+	}
+	
+	/**
+	 * Frees the job's spilled data without reading it back, or stops counting it against
+	 * the heap budget. Called when a queued job is dropped
+	 */
+	final synchronized void onDropped(final PayloadSpill spill) {
+		if(this.isCounted) {
+			spill.release(this.data.length);
+			this.isCounted = false;
+		} else if(this.spilled!=null) {
+			spill.discard(this.spilled);
+			this.spilled = null;
+			this.data = DROPPED_DATA;
+		}
 	}
 
+	@Override
+	public long getEpoch() {
+		return this.epoch;
+	}
+	
 	@Override
 	public ByteArray getJobHandle() {
 		return this.jobHandle;
 	}
+	
+	/**
+	 * Returns the job handle's key in the server's job handle index
+	 * @return
+	 * 		The key, or JobHandleIndex.FOREIGN if the handle was not generated by the index
+	 */
+	final long getHandleKey() {
+		return this.handleKey;
+	}
 
 	@Override
 	public GearmanJobPriority getPriority() {
@@ -161,6 +273,11 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 		return this.state;
 	}
 
+	@Override
+	public Client getWorker() {
+		return this.worker;
+	}
+
 	@Override
 	public ByteArray getUniqueID() {
 		return this.uniqueID;
@@ -200,11 +317,7 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 		assert packet.getPacketType().equals(GearmanPacket.Type.WORK_COMPLETE) || packet.getPacketType().equals(GearmanPacket.Type.WORK_FAIL);
 		packet.setMagic(Magic.RES);
 		
-		final JobState prevState = this.state;
-		this.state = JobState.COMPLETE;
-		
-		this.onComplete(prevState);
-		JobAbstract.globalJobs.remove(this.jobHandle);
+		this.complete();
 		
 		for(Client client : this.clients) {
 			boolean t = client.removeDisconnectListener(this);
@@ -223,41 +336,44 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 	@Override
 	public final void onDisconnect(final Client client) {
 		
-		switch (this.state) {
-		case QUEUED:
-			assert this.worker==null;
-			this.clients.remove(client);
-			// If the job was in the QUEUED state, all attached clients have disconnected, and it is not a background job, drop the job
-			if(this.clients.isEmpty() && !this.isBackground)
-				complete();
-			break;
-		case WORKING:
-			this.clients.remove(client);
-			if(this.worker==client) {
-				this.worker = null;
-				
-				if(this.clients.isEmpty() && !this.isBackground) {
+		// A timeout or a WORK_FAIL may change the state concurrently, see Function#onTimer
+		synchronized(this) {
+			switch (this.state) {
+			case QUEUED:
+				assert this.worker==null;
+				this.clients.remove(client);
+				// If the job was in the QUEUED state, all attached clients have disconnected, and it is not a background job, drop the job
+				if(this.clients.isEmpty() && !this.isBackground)
 					complete();
-				} else {
-					// (!this.clients.isEmpty() || this.isBackground)==true
-					queue();
+				break;
+			case WORKING:
+				this.clients.remove(client);
+				if(this.worker==client) {
+					this.worker = null;
+					
+					if(this.clients.isEmpty() && !this.isBackground) {
+						complete();
+					} else {
+						// (!this.clients.isEmpty() || this.isBackground)==true
+						queue();
+					}
 				}
-			}
 
-			/* 
-			 * If the disconnecting client is not the worker, there is no need to change the state.
-			 * Since there is no way to notify the worker that the job is no longer valid, we just
-			 * let the worker finish execution 
-			 */
-			
-			break;
-		case COMPLETE:
-			// Do nothing
-		}
-		if(client==this.worker) {
-			this.worker = null;
+				/* 
+				 * If the disconnecting client is not the worker, there is no need to change the state.
+				 * Since there is no way to notify the worker that the job is no longer valid, we just
+				 * let the worker finish execution 
+				 */
+				
+				break;
+			case COMPLETE:
+				// Do nothing
+			}
+			if(client==this.worker) {
+				this.worker = null;
+			}
+			this.clients.remove(client);
 		}
-		this.clients.remove(client);
 	}
 	
 	protected final void work(final Client worker){
@@ -292,13 +408,43 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 		});
 	}
 	
+	/**
+	 * Takes the job from a worker that has run it past its CAN_DO_TIMEOUT. The worker
+	 * is forgotten, so its disconnect no longer affects the job and its late WORK_COMPLETE
+	 * or WORK_FAIL is rejected.
+	 * @param fail
+	 * 		If true, the listening clients are sent a WORK_FAIL and the job is completed.
+	 * 		Otherwise the job is queued for another worker, unless nobody is waiting on it
+	 */
+	protected final void workTimeout(final boolean fail) {
+		assert this.state==JobState.WORKING;
+		
+		if(this.worker!=null) {
+			this.worker.removeDisconnectListener(this);
+			this.worker = null;
+		}
+		
+		if(fail) {
+			this.workComplete(new GearmanPacket(Magic.RES, Type.WORK_FAIL, this.jobHandle.getBytes()));
+		} else if(this.clients.isEmpty() && !this.isBackground) {
+			complete();
+		} else {
+			queue();
+		}
+	}
+	
 	protected abstract void onComplete(JobState prevState);
 	
+	/**
+	 * Completes the job and removes it from the server's job handle index, so its
+	 * handle is no longer found
+	 */
 	private final void complete() {
 		final JobState prevState = this.state;
 		this.state = JobState.COMPLETE;
 		
 		this.onComplete(prevState);
+		this.index.remove(this);
 	}
 	private final void queue() {
 		final JobState prevState = this.state;
@@ -308,43 +454,4 @@ abstract class JobAbstract implements Job, ClientDisconnectListener {
 	}
 	
 	protected abstract void onQueue(JobState prevState);
-	
-	/** The prefix for the job handle */
-	private static final byte[] jobHandlePrefix = initJobHandle();
-	/** The current job handle number */
-	private static AtomicLong jobHandleNumber = new AtomicLong(0);
-	
-	/**
-	 * Initializes the jobHandlePrefix variable
-	 * @return
-	 * 		The prefix for the job handle
-	 */
-	private static final byte[] initJobHandle() {
-		String user;
-		try {
-			user = java.net.InetAddress.getLocalHost().getHostName();
-		} catch (Throwable e) {
-			String prefixStr = GearmanUtils.getJobHandlePrefix();
-			return (prefixStr + ":gearman:").getBytes(GearmanUtils.getCharset());
-		}
-		
-		String prefixStr = GearmanUtils.getJobHandlePrefix();
-		return (prefixStr + ':' + user + ':').getBytes(GearmanUtils.getCharset());
-	}
-	
-	
-	/**
-	 * Returns the next available job handle
-	 * @return
-	 * 		the next available job handle
-	 */
-	private static final byte[] getNextJobHandle() {
-		final byte[] jobNumber = Long.toString(jobHandleNumber.incrementAndGet()).getBytes(GearmanUtils.getCharset());
-		
-		final byte[] jobHandle = new byte[jobHandlePrefix.length+jobNumber.length];
-		System.arraycopy(jobHandlePrefix, 0, jobHandle, 0, jobHandlePrefix.length);
-		System.arraycopy(jobNumber, 0, jobHandle, jobHandlePrefix.length, jobNumber.length);
-		
-		return jobHandle;
-	}
 }
@@ -0,0 +1,340 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.server.local;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import org.gearman.impl.util.ByteArray;
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * A server's index of jobs by job handle.<br>
+ * <br>
+ * Handles created by this server have the form <code>prefix:host:n</code>, where n is a
+ * positive number. Those jobs are keyed by n in open-addressing tables, so a lookup
+ * from a packet's handle bytes does not allocate. Handles with some other form, such
+ * as those recovered from a persistence store written by another server, are kept in
+ * a separate hash map.<br>
+ * <br>
+ * The keys are spread over a fixed number of segments. Writers lock one segment, and
+ * readers don't lock at all: each segment carries a sequence number that is odd while
+ * the segment is being changed, and a lookup that overlaps a change is retried.
+ * 
+ * @author isaiah
+ */
+final class JobHandleIndex {
+	
+	/** Returned by {@link #keyOf(byte[])} for handles not generated by this index */
+	static final long FOREIGN = -1L;
+	
+	/** The prefix for the job handle */
+	private static final byte[] PREFIX = initPrefix();
+	
+	/** The number of segments. A power of two */
+	private static final int SEGMENTS = 16;
+	/** The number of bits of a key's hash that select its segment */
+	private static final int SEGMENT_SHIFT = 32 - Integer.numberOfTrailingZeros(SEGMENTS);
+	
+	/** The smallest capacity of a segment's table. A power of two */
+	private static final int MIN_CAPACITY = 64;
+	
+	/** The last job handle number given out */
+	private final AtomicLong handleNumber = new AtomicLong(0);
+	
+	private final Segment[] segments = new Segment[SEGMENTS];
+	
+	/** Jobs with handles not generated by this index */
+	private final Map<ByteArray, Job> foreign = new ConcurrentHashMap<ByteArray, Job>();
+	
+	JobHandleIndex() {
+		for(int i=0; i<SEGMENTS; i++) {
+			this.segments[i] = new Segment();
+		}
+	}
+	
+	/**
+	 * Initializes the job handle prefix
+	 * @return
+	 * 		The prefix for the job handle
+	 */
+	private static final byte[] initPrefix() {
+		String user;
+		try {
+			user = java.net.InetAddress.getLocalHost().getHostName();
+		} catch (Throwable e) {
+			String prefixStr = GearmanUtils.getJobHandlePrefix();
+			return (prefixStr + ":gearman:").getBytes(GearmanUtils.getCharset());
+		}
+		
+		String prefixStr = GearmanUtils.getJobHandlePrefix();
+		return (prefixStr + ':' + user + ':').getBytes(GearmanUtils.getCharset());
+	}
+	
+	/**
+	 * Returns the key for the next job handle
+	 * @return
+	 * 		A new, positive key
+	 */
+	final long nextKey() {
+		return this.handleNumber.incrementAndGet();
+	}
+	
+	/**
+	 * Returns the job handle for the given key
+	 * @param key
+	 * 		A key returned by {@link #nextKey()}
+	 * @return
+	 * 		The job handle
+	 */
+	final byte[] toHandle(final long key) {
+		final byte[] jobNumber = Long.toString(key).getBytes(GearmanUtils.getCharset());
+		
+		final byte[] jobHandle = new byte[PREFIX.length+jobNumber.length];
+		System.arraycopy(PREFIX, 0, jobHandle, 0, PREFIX.length);
+		System.arraycopy(jobNumber, 0, jobHandle, PREFIX.length, jobNumber.length);
+		
+		return jobHandle;
+	}
+	
+	/**
+	 * Returns the key for the given job handle, without allocating
+	 * @param handle
+	 * 		The job handle
+	 * @return
+	 * 		The handle's key, or {@link #FOREIGN} if the handle does not have the form
+	 * 		this index generates
+	 */
+	final long keyOf(final byte[] handle) {
+		final int digits = handle.length - PREFIX.length;
+		
+		// At most 18 digits, so the number can't overflow
+		if(digits<1 || digits>18) return FOREIGN;
+		for(int i=0; i<PREFIX.length; i++) {
+			if(handle[i]!=PREFIX[i]) return FOREIGN;
+		}
+		
+		// A leading zero would give a second spelling of the same key
+		if(handle[PREFIX.length]=='0') return FOREIGN;
+		
+		long key = 0;
+		for(int i=PREFIX.length; i<handle.length; i++) {
+			final int d = handle[i]-'0';
+			if(d<0 || d>9) return FOREIGN;
+			key = key*10 + d;
+		}
+		return key;
+	}
+	
+	/**
+	 * Adds a job to the index
+	 * @param job
+	 * 		The job to add
+	 */
+	final void put(final JobAbstract job) {
+		final long key = job.getHandleKey();
+		if(key==FOREIGN) {
+			this.foreign.put(job.getJobHandle(), job);
+			return;
+		}
+		
+		// A recovered job may carry a handle from an earlier run; don't hand it out again
+		long last;
+		while((last=this.handleNumber.get())<key) {
+			if(this.handleNumber.compareAndSet(last, key)) break;
+		}
+		
+		final int hash = hash(key);
+		this.segments[hash>>>SEGMENT_SHIFT].put(key, hash, job);
+	}
+	
+	/**
+	 * Returns the job with the given handle
+	 * @param handle
+	 * 		The job handle
+	 * @return
+	 * 		The job, or null if there is no such job
+	 */
+	final Job get(final byte[] handle) {
+		final long key = this.keyOf(handle);
+		if(key==FOREIGN) {
+			return this.foreign.isEmpty()? null: this.foreign.get(new ByteArray(handle));
+		}
+		
+		final int hash = hash(key);
+		return this.segments[hash>>>SEGMENT_SHIFT].get(key, hash);
+	}
+	
+	/**
+	 * Removes a job from the index
+	 * @param job
+	 * 		The job to remove
+	 */
+	final void remove(final JobAbstract job) {
+		final long key = job.getHandleKey();
+		if(key==FOREIGN) {
+			this.foreign.remove(job.getJobHandle());
+			return;
+		}
+		
+		final int hash = hash(key);
+		this.segments[hash>>>SEGMENT_SHIFT].remove(key, hash, job);
+	}
+	
+	private static final int hash(final long key) {
+		final long h = key * 0x9E3779B97F4A7C15L;
+		return (int)(h ^ (h>>>32));
+	}
+	
+	/**
+	 * An open-addressing table. The arrays are atomic so a reader sees each slot as it
+	 * was written, in order with the segment's sequence number
+	 */
+	private static final class Table {
+		/** The keys. 0 marks an empty slot */
+		private final AtomicLongArray keys;
+		private final AtomicReferenceArray<Job> values;
+		private final int mask;
+		
+		private Table(final int capacity) {
+			this.keys = new AtomicLongArray(capacity);
+			this.values = new AtomicReferenceArray<Job>(capacity);
+			this.mask = capacity-1;
+		}
+	}
+	
+	private static final class Segment {
+		
+		/** Odd while a writer is changing the table. Written under this */
+		private volatile int sequence = 0;
+		/** Replaced when the table grows or shrinks. Written under this */
+		private volatile Table table = new Table(MIN_CAPACITY);
+		/** The number of jobs in the table. Guarded by this */
+		private int size;
+		
+		private final Job get(final long key, final int hash) {
+			for(;;) {
+				final int seq = this.sequence;
+				if((seq&1)!=0) continue;
+				
+				final Table table = this.table;
+				Job value = null;
+				
+				int i = hash & table.mask;
+				long k;
+				while((k=table.keys.get(i))!=0) {
+					if(k==key) {
+						value = table.values.get(i);
+						break;
+					}
+					i = (i+1) & table.mask;
+				}
+				
+				// A removal may have shifted the entry past the probe, try again
+				if(this.sequence==seq) return value;
+			}
+		}
+		
+		private final synchronized void put(final long key, final int hash, final Job job) {
+			if((this.size+1)*2 > this.table.keys.length()) this.resize(this.table.keys.length()*2);
+			
+			final Table table = this.table;
+			int i = hash & table.mask;
+			long k;
+			while((k=table.keys.get(i))!=0 && k!=key) {
+				i = (i+1) & table.mask;
+			}
+			
+			// Filling an empty slot can't hide another entry from a reader
+			if(k==0) this.size++;
+			table.values.set(i, job);
+			table.keys.set(i, key);
+		}
+		
+		private final synchronized void remove(final long key, final int hash, final Job job) {
+			final Table table = this.table;
+			final int mask = table.mask;
+			
+			int i = hash & mask;
+			long k;
+			while((k=table.keys.get(i))!=key) {
+				if(k==0) return;
+				i = (i+1) & mask;
+			}
+			if(table.values.get(i)!=job) return;
+			
+			this.sequence++;
+			
+			// Backward-shift deletion, so no tombstones are needed
+			int hole = i;
+			for(int j=(i+1)&mask; (k=table.keys.get(j))!=0; j=(j+1)&mask) {
+				final int home = hash(k) & mask;
+				// Move the entry if its home slot is not in the cyclic range (hole, j]
+				if(hole<=j? (home<=hole || home>j): (home<=hole && home>j)) {
+					table.keys.set(hole, k);
+					table.values.set(hole, table.values.get(j));
+					hole = j;
+				}
+			}
+			table.keys.set(hole, 0);
+			table.values.set(hole, null);
+			this.size--;
+			
+			this.sequence++;
+			
+			// Give back the memory of a burst of jobs once it has drained
+			final int capacity = table.keys.length();
+			if(capacity>MIN_CAPACITY && this.size*8 < capacity) this.resize(capacity/2);
+		}
+		
+		/**
+		 * Copies the entries to a new table and publishes it. Readers of the old table
+		 * still find every entry, since it is not changed after the copy
+		 */
+		private final void resize(final int capacity) {
+			final Table oldTable = this.table;
+			final Table newTable = new Table(capacity);
+			
+			for(int j=0; j<oldTable.keys.length(); j++) {
+				final long key = oldTable.keys.get(j);
+				if(key==0) continue;
+				
+				int i = hash(key) & newTable.mask;
+				while(newTable.keys.get(i)!=0) {
+					i = (i+1) & newTable.mask;
+				}
+				newTable.keys.set(i, key);
+				newTable.values.set(i, oldTable.values.get(j));
+			}
+			this.table = newTable;
+		}
+	}
+}
@@ -27,48 +27,55 @@
 
 package org.gearman.impl.server.local;
 
-import java.util.concurrent.BlockingDeque;
-import java.util.concurrent.LinkedBlockingDeque;
-
-
 /**
  * A JobQueue queues the different jobs in three different priority levels, low,
  * medium, and high.  Jobs pulled from this queue are pulled from the highest
- * priority first, then medium priority, and low priority last. 
+ * priority first, then medium priority, and low priority last.<br>
+ * <br>
+ * The queue is intrusive. Each job carries its own links, so adding, polling and
+ * removing a job are constant time operations. A job may be held by at most one
+ * queue at a time. All operations are guarded by the queue's monitor.
  * 
  * @author isaiah
  *
  */
-final class JobQueue <X extends Job> {
-	/** Low priority queue */
-	private final BlockingDeque<X> low		= new LinkedBlockingDeque<X>();
-	/** Medium priority queue */
-	private final BlockingDeque<X> mid		= new LinkedBlockingDeque<X>();
-	/** High priority queue */
-	private final BlockingDeque<X> high		= new LinkedBlockingDeque<X>();
+final class JobQueue <X extends JobAbstract> {
+	/** The number of priority levels */
+	private static final int LEVELS = 3;
+	
+	/** The first job for each priority level, highest priority first */
+	private final JobAbstract[] heads = new JobAbstract[LEVELS];
+	/** The last job for each priority level, highest priority first */
+	private final JobAbstract[] tails = new JobAbstract[LEVELS];
+	
+	/** The total number of queued jobs. Written under the monitor, read without it */
+	private volatile int size = 0;
 	
 	/** 
 	 * Adds a job to the back of queue with the corresponding priority
 	 * @param job
 	 * 		The job to add
 	 * @return
-	 * 		True if the job was added successful, false otherwise
+	 * 		True if the job was added successful, false if the job is already queued
 	 */
-	public final boolean add(X job) {
+	public final synchronized boolean add(X job) {
 		if(job == null) 
 			throw new IllegalArgumentException("Null Value");
+		if(job.queuedIn!=null)
+			return false;
 		
-		switch (job.getPriority()) {
-		case LOW_PRIORITY:
-			return low.add(job);
-		case NORMAL_PRIORITY:
-			return mid.add(job);
-		case HIGH_PRIORITY:
-			return high.add(job);
-		}
+		final int level = level(job);
+		final JobAbstract tail = this.tails[level];
 		
-		assert false;
-		return false;
+		job.prevQueued = tail;
+		job.nextQueued = null;
+		if(tail==null) this.heads[level] = job;
+		else tail.nextQueued = job;
+		this.tails[level] = job;
+		
+		job.queuedIn = this;
+		this.size++;
+		return true;
 	}
 	
 	/**
@@ -76,23 +83,23 @@ final class JobQueue <X extends Job> {
 	 * @param job
 	 * 		The job to insert
 	 */
-	public final void addFirst(X job) {
+	public final synchronized void addFirst(X job) {
 		if(job == null) 
 			throw new IllegalArgumentException("Null Value");
+		if(job.queuedIn!=null)
+			throw new IllegalStateException("job is already queued");
 		
-		switch (job.getPriority()) {
-		case LOW_PRIORITY:
-			low.addFirst(job);
-			return;
-		case NORMAL_PRIORITY:
-			mid.addFirst(job);
-			return;
-		case HIGH_PRIORITY:
-			high.addFirst(job);
-			return;
-		}
+		final int level = level(job);
+		final JobAbstract head = this.heads[level];
+		
+		job.prevQueued = null;
+		job.nextQueued = head;
+		if(head==null) this.tails[level] = job;
+		else head.prevQueued = job;
+		this.heads[level] = job;
 		
-		assert false;
+		job.queuedIn = this;
+		this.size++;
 	}
 	
 	/**
@@ -100,16 +107,21 @@ final class JobQueue <X extends Job> {
 	 * @return
 	 * 		The next job if one is available. null is returned if no job is available 
 	 */
+	@SuppressWarnings("unchecked")
 	public final X poll() {
-		X job = high.poll();
-		if(job!=null)
-			return job;
-		
-		job = mid.poll();
-		if(job!=null)
-			return job;
+		// Avoid taking the lock when there is nothing to poll
+		if(this.size==0) return null;
 		
-		return low.poll();
+		synchronized(this) {
+			for(int level=0; level<LEVELS; level++) {
+				final JobAbstract job = this.heads[level];
+				if(job!=null) {
+					this.unlink(job, level);
+					return (X)job;
+				}
+			}
+			return null;
+		}
 	}
 	
 	/**
@@ -118,7 +130,7 @@ final class JobQueue <X extends Job> {
 	 * 		The total number of queued jobs
 	 */
 	public final int size() {
-		return low.size() + mid.size() + high.size();
+		return this.size;
 	}
 	
 	/**
@@ -129,21 +141,14 @@ final class JobQueue <X extends Job> {
 	 * 		true if the job was in the queue and successfully removed,
 	 * 		false otherwise 		
 	 */
-	public final boolean remove(X job) {
+	public final synchronized boolean remove(X job) {
 		if(job == null) 
 			throw new IllegalArgumentException("Null Value");
+		if(job.queuedIn!=this)
+			return false;
 		
-		switch (job.getPriority()) {
-		case LOW_PRIORITY:
-			return low.remove(job);
-		case NORMAL_PRIORITY:
-			return mid.remove(job);
-		case HIGH_PRIORITY:
-			return high.remove(job);
-		}
-		
-		assert false;
-		return false;
+		this.unlink(job, level(job));
+		return true;
 	}
 	
 	/**
@@ -153,24 +158,46 @@ final class JobQueue <X extends Job> {
 	 * @return
 	 * 		true if the job is in the queue, false if not.
 	 */
-	public final boolean contains(X job) {
+	public final synchronized boolean contains(X job) {
 		if(job == null) 
 			throw new IllegalArgumentException("Null Value");
 		
+		return job.queuedIn==this;
+	}
+	
+	public final boolean isEmpty() {
+		return this.size==0;
+	}
+	
+	private final void unlink(final JobAbstract job, final int level) {
+		final JobAbstract prev = job.prevQueued;
+		final JobAbstract next = job.nextQueued;
+		
+		if(prev==null) this.heads[level] = next;
+		else prev.nextQueued = next;
+		
+		if(next==null) this.tails[level] = prev;
+		else next.prevQueued = prev;
+		
+		job.prevQueued = null;
+		job.nextQueued = null;
+		job.queuedIn = null;
+		this.size--;
+	}
+	
+	/**
+	 * Returns the index of the job's priority level, highest priority first
+	 */
+	private static final int level(final Job job) {
 		switch (job.getPriority()) {
-		case LOW_PRIORITY:
-			return low.contains(job);
-		case NORMAL_PRIORITY:
-			return mid.contains(job);
 		case HIGH_PRIORITY:
-			return high.contains(job);
+			return 0;
+		case NORMAL_PRIORITY:
+			return 1;
+		case LOW_PRIORITY:
+			return 2;
 		}
 		
-		assert false;
-		return false;
-	}
-	
-	public final boolean isEmpty() {
-		return high.isEmpty() && mid.isEmpty() && low.isEmpty();
+		throw new IllegalArgumentException("Unknown priority: " + job.getPriority());
 	}
 }
@@ -0,0 +1,151 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.server.local;
+
+import java.util.Calendar;
+
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * Parses the times given with SUBMIT_JOB_EPOCH and SUBMIT_JOB_SCHED
+ * 
+ * @author isaiah
+ */
+final class JobSchedule {
+	
+	/** How far ahead a schedule is searched for a matching time */
+	private static final int SEARCH_YEARS = 5;
+	
+	private JobSchedule() {}
+	
+	/**
+	 * Parses an epoch time argument
+	 * @param value
+	 * 		The decimal epoch time in seconds
+	 * @return
+	 * 		The epoch time, or -1 if the argument is not a valid time
+	 */
+	static final long parseEpoch(final byte[] value) {
+		if(value==null || value.length==0) return -1;
+		try {
+			final long epoch = Long.parseLong(new String(value, GearmanUtils.getCharset()).trim());
+			return epoch<0? -1: epoch;
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+	
+	/**
+	 * Returns the next time matching a schedule, in the default time zone. Each field
+	 * is a decimal number, or empty to match any value. As with cron, if both the day
+	 * of month and the day of week are given, a day matching either one is accepted.
+	 * 
+	 * @param minute
+	 * 		The minute, 0-59
+	 * @param hour
+	 * 		The hour, 0-23
+	 * @param dayOfMonth
+	 * 		The day of the month, 1-31
+	 * @param month
+	 * 		The month, 1-12
+	 * @param dayOfWeek
+	 * 		The day of the week, 0-6 where 0 is Sunday
+	 * @param now
+	 * 		The current time in milliseconds
+	 * @return
+	 * 		The next matching time after now, in seconds since the epoch, or -1 if a field
+	 * 		is invalid or the schedule does not occur within the next few years
+	 */
+	static final long nextEpoch(final byte[] minute, final byte[] hour, final byte[] dayOfMonth, final byte[] month, final byte[] dayOfWeek, final long now) {
+		final int min = parseField(minute, 0, 59);
+		final int hr = parseField(hour, 0, 23);
+		final int dom = parseField(dayOfMonth, 1, 31);
+		final int mon = parseField(month, 1, 12);
+		final int dow = parseField(dayOfWeek, 0, 6);
+		if(min==-2 || hr==-2 || dom==-2 || mon==-2 || dow==-2) return -1;
+		
+		final Calendar cal = Calendar.getInstance();
+		cal.setTimeInMillis(now);
+		cal.set(Calendar.SECOND, 0);
+		cal.set(Calendar.MILLISECOND, 0);
+		cal.add(Calendar.MINUTE, 1);
+		
+		final Calendar limit = (Calendar) cal.clone();
+		limit.add(Calendar.YEAR, SEARCH_YEARS);
+		
+		while(cal.before(limit)) {
+			if(mon>=0 && cal.get(Calendar.MONTH)+1!=mon) {
+				cal.set(Calendar.DAY_OF_MONTH, 1);
+				cal.set(Calendar.HOUR_OF_DAY, 0);
+				cal.set(Calendar.MINUTE, 0);
+				cal.add(Calendar.MONTH, 1);
+				continue;
+			}
+			if(!matchesDay(cal, dom, dow)) {
+				cal.set(Calendar.HOUR_OF_DAY, 0);
+				cal.set(Calendar.MINUTE, 0);
+				cal.add(Calendar.DAY_OF_MONTH, 1);
+				continue;
+			}
+			if(hr>=0 && cal.get(Calendar.HOUR_OF_DAY)!=hr) {
+				cal.set(Calendar.MINUTE, 0);
+				cal.add(Calendar.HOUR_OF_DAY, 1);
+				continue;
+			}
+			if(min>=0 && cal.get(Calendar.MINUTE)!=min) {
+				cal.add(Calendar.MINUTE, 1);
+				continue;
+			}
+			return cal.getTimeInMillis()/1000L;
+		}
+		return -1;
+	}
+	
+	private static final boolean matchesDay(final Calendar cal, final int dom, final int dow) {
+		final boolean domMatch = dom<0 || cal.get(Calendar.DAY_OF_MONTH)==dom;
+		final boolean dowMatch = dow<0 || cal.get(Calendar.DAY_OF_WEEK)-1==dow;
+		
+		if(dom>=0 && dow>=0) return domMatch || dowMatch;
+		return domMatch && dowMatch;
+	}
+	
+	/**
+	 * Parses a schedule field
+	 * @return
+	 * 		The value, -1 if the field is empty, or -2 if it's invalid
+	 */
+	private static final int parseField(final byte[] value, final int min, final int max) {
+		if(value==null || value.length==0) return -1;
+		try {
+			final int field = Integer.parseInt(new String(value, GearmanUtils.getCharset()).trim());
+			return field<min || field>max? -2: field;
+		} catch (NumberFormatException e) {
+			return -2;
+		}
+	}
+}
@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.server.local;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gearman.impl.core.GearmanPacket;
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * Holds the data of queued jobs on disk once the data on the heap reaches a budget.<br>
+ * <br>
+ * The data of each queued job is counted against the heap budget. A job queued after
+ * the budget is spent has its data written to a memory-mapped segment file, and keeps
+ * only a {@link Payload} pointing at it. The data is read back when the job leaves the
+ * queue, normally to be given to a worker. Data is appended to the current segment. A
+ * segment is dropped once none of its payloads are in use and it isn't current.<br>
+ * <br>
+ * Segment files are unlinked as soon as they're mapped, so a crash leaves none behind.
+ * The operating system reclaims a segment's space once its mapping is collected.<br>
+ * <br>
+ * Small payloads are neither counted nor spilled, a payload would save next to nothing.
+ * 
+ * @author isaiah
+ */
+final class PayloadSpill {
+	
+	/** The size of a segment file. Larger payloads get a segment of their own */
+	private static final int SEGMENT_SIZE = 64*1024*1024;
+	
+	/** Payloads smaller than this stay on the heap uncounted */
+	static final int MIN_SPILL_SIZE = 64;
+	
+	/** A spilled job's data */
+	static final class Payload {
+		private final Segment segment;
+		private final int offset;
+		private final int length;
+		
+		private Payload(final Segment segment, final int offset, final int length) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+		}
+		
+		/**
+		 * Reads the data back
+		 */
+		final byte[] read() {
+			final byte[] data = new byte[this.length];
+			final ByteBuffer view = this.segment.buffer.duplicate();
+			view.position(this.offset);
+			view.get(data);
+			return data;
+		}
+	}
+	
+	private static final class Segment {
+		private final MappedByteBuffer buffer;
+		
+		/** The offset at which the next payload is written. Guarded by the spill's lock */
+		private int position = 0;
+		/** The number of payloads in use. Guarded by the spill's lock */
+		private int live = 0;
+		
+		private Segment(final MappedByteBuffer buffer) {
+			this.buffer = buffer;
+		}
+	}
+	
+	private final File directory;
+	private final boolean isTemporary;
+	private final long heapBudget;
+	
+	/** The bytes of queued job data counted against the heap budget */
+	private final AtomicLong heapBytes = new AtomicLong();
+	
+	/** Guards the segments */
+	private final Object lock = new Object();
+	/** The segment being appended to, or null. Guarded by lock */
+	private Segment current;
+	/** The segments, including the current one. Guarded by lock */
+	private final List<Segment> segments = new ArrayList<Segment>();
+	/** The bytes held by payloads in use. Guarded by lock */
+	private long spilledBytes = 0;
+	/** The number of payloads in use. Guarded by lock */
+	private long spilledJobs = 0;
+	
+	private final AtomicLong spills = new AtomicLong();
+	private final AtomicLong restores = new AtomicLong();
+	private final AtomicLong discards = new AtomicLong();
+	
+	private PayloadSpill(final File directory, final boolean isTemporary, final long heapBudget) {
+		this.directory = directory;
+		this.isTemporary = isTemporary;
+		this.heapBudget = heapBudget;
+	}
+	
+	/**
+	 * Creates the spill configured by {@link GearmanUtils#getSpillHeapBudget()} and
+	 * {@link GearmanUtils#getSpillDirectory()}
+	 * @return
+	 * 		The spill, or null if spilling is disabled or the directory can't be created
+	 */
+	static final PayloadSpill create() {
+		final long budget = GearmanUtils.getSpillHeapBudget();
+		if(budget<=0) return null;
+		
+		final String path = GearmanUtils.getSpillDirectory();
+		try {
+			if(path.isEmpty()) {
+				return new PayloadSpill(Files.createTempDirectory("gearman-spill").toFile(), true, budget);
+			}
+			
+			final File directory = new File(path);
+			if(!directory.isDirectory() && !directory.mkdirs()) throw new IOException("failed to create directory: " + directory);
+			return new PayloadSpill(directory, false, budget);
+		} catch (IOException e) {
+			LOGGER.error("failed to create the spill directory, job data is kept on the heap", e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Counts the data against the heap budget
+	 * @return
+	 * 		true if the data fits in the budget and was counted, false if it should be spilled
+	 */
+	final boolean reserve(final int length) {
+		long bytes;
+		do {
+			bytes = this.heapBytes.get();
+			if(bytes+length > this.heapBudget) return false;
+		} while(!this.heapBytes.compareAndSet(bytes, bytes+length));
+		return true;
+	}
+	
+	/**
+	 * Stops counting the data against the heap budget
+	 */
+	final void release(final int length) {
+		this.heapBytes.addAndGet(-length);
+	}
+	
+	/**
+	 * Writes the data to the current segment
+	 * @return
+	 * 		The payload, or null if the data couldn't be written
+	 */
+	final Payload write(final byte[] data) {
+		final Segment segment;
+		final int offset;
+		synchronized(this.lock) {
+			try {
+				if(this.current==null || this.current.position+data.length > this.current.buffer.capacity()) {
+					this.roll(data.length);
+				}
+			} catch (IOException e) {
+				LOGGER.warn("failed to create a spill segment in " + this.directory, e);
+				return null;
+			}
+			
+			segment = this.current;
+			offset = segment.position;
+			segment.position += data.length;
+			segment.live++;
+			this.spilledBytes += data.length;
+			this.spilledJobs++;
+		}
+		
+		// The range is reserved, so it can be written without the lock
+		final ByteBuffer view = segment.buffer.duplicate();
+		view.position(offset);
+		view.put(data);
+		
+		this.spills.incrementAndGet();
+		return new Payload(segment, offset, data.length);
+	}
+	
+	/**
+	 * Reads the data back and frees the payload
+	 */
+	final byte[] restore(final Payload payload) {
+		final byte[] data = payload.read();
+		this.free(payload);
+		
+		this.restores.incrementAndGet();
+		return data;
+	}
+	
+	/**
+	 * Frees the payload without reading it, for a job dropped while it was spilled
+	 */
+	final void discard(final Payload payload) {
+		this.free(payload);
+		this.discards.incrementAndGet();
+	}
+	
+	private final void free(final Payload payload) {
+		synchronized(this.lock) {
+			this.spilledBytes -= payload.length;
+			this.spilledJobs--;
+			if(--payload.segment.live==0 && payload.segment!=this.current) {
+				this.segments.remove(payload.segment);
+			}
+		}
+	}
+	
+	/**
+	 * Starts a new segment with room for at least the given length. Called with the lock held
+	 */
+	private final void roll(final int length) throws IOException {
+		final Path file = Files.createTempFile(this.directory.toPath(), "gearman-spill-", ".dat");
+		
+		final MappedByteBuffer buffer;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE, StandardOpenOption.DELETE_ON_CLOSE)) {
+			// The mapping stays valid after the channel is closed and the file is unlinked
+			buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(SEGMENT_SIZE, length));
+		}
+		
+		final Segment previous = this.current;
+		this.current = new Segment(buffer);
+		this.segments.add(this.current);
+		
+		if(previous!=null && previous.live==0) this.segments.remove(previous);
+	}
+	
+	/**
+	 * Drops the segments, and deletes the directory if it's temporary. Payloads in use
+	 * can still be read
+	 */
+	final void close() {
+		synchronized(this.lock) {
+			this.segments.clear();
+			this.current = null;
+		}
+		
+		if(this.isTemporary && !this.directory.delete()) {
+			LOGGER.warn("failed to delete " + this.directory);
+		}
+	}
+	
+	/**
+	 * Creates the response to the SPILL admin command. One statistic per line, in the
+	 * format NAME\tVALUE, followed by a line with a single '.'
+	 */
+	final GearmanPacket getStatus() {
+		final StringBuilder sb = new StringBuilder();
+		sb.append("HEAP_BYTES\t").append(this.heapBytes.get()).append('\n');
+		sb.append("HEAP_BUDGET\t").append(this.heapBudget).append('\n');
+		synchronized(this.lock) {
+			sb.append("SPILLED_JOBS\t").append(this.spilledJobs).append('\n');
+			sb.append("SPILLED_BYTES\t").append(this.spilledBytes).append('\n');
+			sb.append("SEGMENTS\t").append(this.segments.size()).append('\n');
+		}
+		sb.append("SPILLS\t").append(this.spills.get()).append('\n');
+		sb.append("RESTORES\t").append(this.restores.get()).append('\n');
+		sb.append("DISCARDS\t").append(this.discards.get()).append('\n');
+		sb.append(".\n");
+		
+		return GearmanPacket.createTEXT(sb.toString());
+	}
+}
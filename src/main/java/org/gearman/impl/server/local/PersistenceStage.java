@@ -0,0 +1,328 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.server.local;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gearman.GearmanBatchPersistence;
+import org.gearman.GearmanPersistable;
+import org.gearman.GearmanPersistence;
+import org.gearman.impl.core.GearmanPacket;
+import org.gearman.impl.util.GearmanUtils;
+
+/**
+ * Takes persistence operations off the threads handling packets.<br>
+ * <br>
+ * Writes and deletes are put on a bounded queue and applied by a dedicated writer
+ * thread, in the order they were submitted. The writer takes as many operations as
+ * are waiting, up to {@link #MAX_BATCH}, and hands them to the store at once. If the
+ * store is a {@link GearmanBatchPersistence} the batch costs a single flush. Once a
+ * full queue is reached, submissions block until the writer catches up.<br>
+ * <br>
+ * A write may be given a callback to run once it's durable. A write without one is
+ * cancelled, along with the delete, if the job is deleted before the writer takes it.
+ * A write and a delete of the same job that end up in one batch cancel each other too,
+ * so the store never sees both in a single update.
+ * 
+ * @author isaiah
+ */
+final class PersistenceStage {
+	
+	/** The maximum number of operations handed to the store at once */
+	private static final int MAX_BATCH = 1024;
+	
+	/** How long the writer waits for an operation before checking for shutdown, in milliseconds */
+	private static final long POLL_MILLIS = 100L;
+	
+	private static final int PENDING = 0;
+	private static final int CLAIMED = 1;
+	private static final int CANCELLED = 2;
+	
+	private final GearmanPersistence persistence;
+	private final BlockingQueue<Operation> queue;
+	
+	/** Writes without a callback that the writer has not yet taken, by job */
+	private final ConcurrentMap<Job, Operation> pendingWrites = new ConcurrentHashMap<Job, Operation>();
+	
+	private final Thread writer;
+	private volatile boolean isShutdown = false;
+	
+	private final AtomicLong writes = new AtomicLong();
+	private final AtomicLong deletes = new AtomicLong();
+	private final AtomicLong cancelled = new AtomicLong();
+	private final AtomicLong failures = new AtomicLong();
+	private final AtomicLong batches = new AtomicLong();
+	private final AtomicLong flushNanos = new AtomicLong();
+	private volatile long maxFlushNanos = 0;
+	
+	PersistenceStage(final GearmanPersistence persistence) {
+		this.persistence = persistence;
+		this.queue = new ArrayBlockingQueue<Operation>(Math.max(1, GearmanUtils.getPersistenceQueueSize()));
+		
+		this.writer = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				PersistenceStage.this.runWriter();
+			}
+		}, "gearman-persistence");
+		
+		// Queued operations are drained by shutdown(), the writer doesn't need to hold the JVM open
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+	
+	/**
+	 * Persists the job
+	 * @param job
+	 * 		The job to write
+	 * @param onDurable
+	 * 		Run by the writer once the write has completed, or failed. May be null
+	 */
+	public final void write(final Job job, final Runnable onDurable) {
+		final Operation op = new Operation(job, new ServerPersistable(job), false, onDurable);
+		if(onDurable==null) this.pendingWrites.put(job, op);
+		this.submit(op);
+	}
+	
+	/**
+	 * Removes the job from the persistence store. If the job's write has not been
+	 * taken by the writer, neither is sent to the store
+	 */
+	public final void delete(final Job job) {
+		final Operation write = this.pendingWrites.remove(job);
+		if(write!=null && write.state.compareAndSet(PENDING, CANCELLED)) {
+			this.cancelled.incrementAndGet();
+			return;
+		}
+		
+		this.submit(new Operation(job, new ServerPersistable(job), true, null));
+	}
+	
+	private final void submit(final Operation op) {
+		if(this.isShutdown) {
+			// The writer may be gone, apply in the caller's thread
+			this.apply(singletonList(op));
+			return;
+		}
+		
+		try {
+			this.queue.put(op);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			this.apply(singletonList(op));
+		}
+	}
+	
+	/**
+	 * Stops the writer once it has applied the queued operations
+	 */
+	public final void shutdown() {
+		this.isShutdown = true;
+		
+		/*
+		 * The writer isn't interrupted. An interrupt during a write closes the
+		 * FileChannels of file based stores
+		 */
+		boolean interrupted = false;
+		while(this.writer.isAlive()) {
+			try {
+				this.writer.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+		
+		// Operations submitted while the writer was exiting
+		final List<Operation> batch = new ArrayList<Operation>();
+		this.queue.drainTo(batch);
+		if(!batch.isEmpty()) this.apply(batch);
+	}
+	
+	private final void runWriter() {
+		final List<Operation> batch = new ArrayList<Operation>();
+		while(!this.isShutdown || !this.queue.isEmpty()) {
+			final Operation first;
+			try {
+				first = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+			} catch (InterruptedException e) {
+				continue;
+			}
+			if(first==null) continue;
+			
+			batch.add(first);
+			this.queue.drainTo(batch, MAX_BATCH-1);
+			
+			try {
+				this.apply(batch);
+			} catch (Throwable th) {
+				LOGGER.error("persistence writer failed", th);
+			}
+			batch.clear();
+		}
+	}
+	
+	/**
+	 * Sends the operations to the store and runs their callbacks
+	 */
+	private final void apply(final List<Operation> batch) {
+		final List<GearmanPersistable> writeItems = new ArrayList<GearmanPersistable>(batch.size());
+		final List<GearmanPersistable> deleteItems = new ArrayList<GearmanPersistable>();
+		
+		// A job written and deleted in the same batch is sent to the store by neither
+		final Set<Job> deleted = Collections.newSetFromMap(new IdentityHashMap<Job, Boolean>());
+		for(Operation op : batch) {
+			if(op.isDelete) deleted.add(op.job);
+		}
+		
+		for(Operation op : batch) {
+			if(op.isDelete) continue;
+			
+			if(!op.state.compareAndSet(PENDING, CLAIMED)) continue;
+			if(op.onDurable==null) this.pendingWrites.remove(op.job, op);
+			
+			if(deleted.remove(op.job)) {
+				op.isDropped = true;
+				this.cancelled.incrementAndGet();
+				continue;
+			}
+			writeItems.add(op.item);
+		}
+		
+		for(Operation op : batch) {
+			if(!op.isDelete) continue;
+			if(deleted.contains(op.job)) deleteItems.add(op.item);
+			else op.isDropped = true;
+		}
+		
+		if(!writeItems.isEmpty() || !deleteItems.isEmpty()) {
+			final long start = System.nanoTime();
+			if(this.persistence instanceof GearmanBatchPersistence) {
+				try {
+					((GearmanBatchPersistence)this.persistence).update(writeItems, deleteItems);
+				} catch (Exception e) {
+					this.failures.addAndGet(writeItems.size()+deleteItems.size());
+					LOGGER.warn("failed to persist " + (writeItems.size()+deleteItems.size()) + " operations", e);
+				}
+			} else {
+				// One at a time, in the order submitted
+				for(Operation op : batch) {
+					if(op.isDropped || !op.isDelete && op.state.get()!=CLAIMED) continue;
+					try {
+						if(op.isDelete) this.persistence.delete(op.item);
+						else this.persistence.write(op.item);
+					} catch (Exception e) {
+						this.failures.incrementAndGet();
+						LOGGER.warn(op.isDelete? "failed to delete job": "failed to write job", e);
+					}
+				}
+			}
+			this.recordFlush(System.nanoTime()-start);
+			
+			this.writes.addAndGet(writeItems.size());
+			this.deletes.addAndGet(deleteItems.size());
+		}
+		
+		// Jobs are released even if the write failed, as before the stage existed
+		for(Operation op : batch) {
+			if(op.onDurable==null || op.isDropped || op.state.get()!=CLAIMED) continue;
+			try {
+				op.onDurable.run();
+			} catch (Throwable th) {
+				LOGGER.warn("persistence callback failed", th);
+			}
+		}
+	}
+	
+	private final void recordFlush(final long nanos) {
+		this.batches.incrementAndGet();
+		this.flushNanos.addAndGet(nanos);
+		if(nanos>this.maxFlushNanos) this.maxFlushNanos = nanos;
+	}
+	
+	/**
+	 * Creates the response to the PERSISTENCE admin command. One statistic per line,
+	 * in the format NAME\tVALUE, followed by a line with a single '.'
+	 */
+	public final GearmanPacket getStatus() {
+		final long flushes = this.batches.get();
+		
+		final StringBuilder sb = new StringBuilder();
+		sb.append("QUEUED\t").append(this.queue.size()).append('\n');
+		sb.append("CAPACITY\t").append(this.queue.size()+this.queue.remainingCapacity()).append('\n');
+		sb.append("WRITES\t").append(this.writes.get()).append('\n');
+		sb.append("DELETES\t").append(this.deletes.get()).append('\n');
+		sb.append("CANCELLED\t").append(this.cancelled.get()).append('\n');
+		sb.append("FAILURES\t").append(this.failures.get()).append('\n');
+		sb.append("BATCHES\t").append(flushes).append('\n');
+		sb.append("FLUSH_AVG_MS\t").append(String.format("%.3f", flushes==0? 0.0: this.flushNanos.get()/1e6/flushes)).append('\n');
+		sb.append("FLUSH_MAX_MS\t").append(String.format("%.3f", this.maxFlushNanos/1e6)).append('\n');
+		sb.append(".\n");
+		
+		return GearmanPacket.createTEXT(sb.toString());
+	}
+	
+	private static final List<Operation> singletonList(final Operation op) {
+		final List<Operation> list = new ArrayList<Operation>(1);
+		list.add(op);
+		return list;
+	}
+	
+	private static final class Operation {
+		private final Job job;
+		private final GearmanPersistable item;
+		private final boolean isDelete;
+		private final Runnable onDurable;
+		
+		/** PENDING, CLAIMED by the writer, or CANCELLED by a delete. Deletes are always CLAIMED */
+		private final AtomicInteger state;
+		/** Set by the writer if the operation was cancelled by another in its batch. Only read by the writer */
+		private boolean isDropped = false;
+		
+		private Operation(final Job job, final GearmanPersistable item, final boolean isDelete, final Runnable onDurable) {
+			this.job = job;
+			this.item = item;
+			this.isDelete = isDelete;
+			this.onDurable = onDurable;
+			this.state = new AtomicInteger(isDelete? CLAIMED: PENDING);
+		}
+	}
+}
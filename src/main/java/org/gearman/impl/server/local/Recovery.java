@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.server.local;
+
+import static org.gearman.context.GearmanContext.LOGGER;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.gearman.GearmanPersistable;
+import org.gearman.GearmanPersistence;
+import org.gearman.GearmanStreamingPersistence;
+import org.gearman.impl.util.ByteArray;
+
+/**
+ * Replays the jobs held by a persistence store into the server's functions.<br>
+ * <br>
+ * The calling thread reads the store and routes each job to one of several lanes, by
+ * function name. Each lane has its own thread, so functions are filled in parallel while
+ * the jobs of any one function are added in the order they were read. A
+ * {@link GearmanStreamingPersistence} is read one job at a time and the lanes' queues
+ * are bounded, so only a few thousand jobs are in memory outside the functions at once.
+ * Progress is logged every {@link #PROGRESS_MILLIS} milliseconds.
+ * 
+ * @author isaiah
+ */
+final class Recovery implements GearmanStreamingPersistence.Handler {
+	
+	/** The number of jobs each lane may hold before the reader blocks */
+	private static final int LANE_CAPACITY = 1024;
+	
+	/** How often progress is logged, in milliseconds */
+	private static final long PROGRESS_MILLIS = 5000L;
+	
+	/** How long a lane waits for a job before checking if the store has been read, in milliseconds */
+	private static final long POLL_MILLIS = 100L;
+	
+	private final FunctionMap funcMap;
+	private final Lane[] lanes;
+	
+	private final AtomicLong recovered = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	/** Set once the store has been read */
+	private volatile boolean isRead = false;
+	private long read = 0;
+	private long lastProgress;
+	
+	Recovery(final FunctionMap funcMap) {
+		this.funcMap = funcMap;
+		this.lanes = new Lane[Math.max(1, Runtime.getRuntime().availableProcessors())];
+	}
+	
+	/**
+	 * Replays the store's jobs. Returns once every job read has been added to its function
+	 * @param persistence
+	 * 		The store to read
+	 */
+	public final void run(final GearmanPersistence persistence) {
+		final long start = System.currentTimeMillis();
+		this.lastProgress = start;
+		LOGGER.info("recovering persisted jobs");
+		
+		for(int i=0; i<this.lanes.length; i++) {
+			this.lanes[i] = new Lane(i);
+			this.lanes[i].start();
+		}
+		
+		try {
+			if(persistence instanceof GearmanStreamingPersistence) {
+				((GearmanStreamingPersistence)persistence).readAll(this);
+			} else {
+				for(GearmanPersistable item : persistence.readAll()) {
+					this.onItem(item);
+				}
+			}
+		} catch (Exception e) {
+			LOGGER.error("failed to read persisted jobs, " + this.read + " jobs were read", e);
+		} finally {
+			this.finish();
+		}
+		
+		LOGGER.info("recovered " + this.recovered.get() + " jobs in " + (System.currentTimeMillis()-start) + "ms, skipped " + this.skipped.get());
+	}
+	
+	@Override
+	public void onItem(final GearmanPersistable item) throws Exception {
+		this.read++;
+		
+		final String functionName = item.getFunctionName();
+		if(functionName==null || item.getUniqueID()==null || item.getData()==null || item.getPriority()==null || item.getJobHandle()==null) {
+			LOGGER.warn("skipped a persisted job with missing fields");
+			this.skipped.incrementAndGet();
+		} else {
+			this.lanes[(functionName.hashCode() & Integer.MAX_VALUE) % this.lanes.length].queue.put(item);
+		}
+		
+		final long now = System.currentTimeMillis();
+		if(now-this.lastProgress >= PROGRESS_MILLIS) {
+			this.lastProgress = now;
+			LOGGER.info("recovering persisted jobs, " + this.read + " read, " + this.recovered.get() + " recovered");
+		}
+	}
+	
+	/**
+	 * Ends each lane once it has taken the jobs already routed to it
+	 */
+	private final void finish() {
+		this.isRead = true;
+		
+		boolean interrupted = false;
+		for(Lane lane : this.lanes) {
+			while(lane.isAlive()) {
+				try {
+					lane.join();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if(interrupted) Thread.currentThread().interrupt();
+	}
+	
+	private final void recover(final GearmanPersistable item) throws Exception {
+		final Function func = this.funcMap.getFunction(new ByteArray(item.getFunctionName()));
+		if(func.put(new ByteArray(item.getUniqueID()), item.getData(), item.getJobHandle(), item.getPriority(), item.epochTime())) {
+			this.recovered.incrementAndGet();
+		} else {
+			// Another persisted job has the same function and unique ID
+			this.skipped.incrementAndGet();
+		}
+	}
+	
+	private final class Lane extends Thread {
+		private final BlockingQueue<GearmanPersistable> queue = new ArrayBlockingQueue<GearmanPersistable>(LANE_CAPACITY);
+		
+		private Lane(final int id) {
+			super("gearman-recovery-" + id);
+		}
+		
+		@Override
+		public void run() {
+			while(!Recovery.this.isRead || !this.queue.isEmpty()) {
+				final GearmanPersistable item;
+				try {
+					item = this.queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					continue;
+				}
+				if(item==null) continue;
+				
+				try {
+					Recovery.this.recover(item);
+				} catch (Throwable th) {
+					LOGGER.warn("failed to recover a persisted job", th);
+					Recovery.this.skipped.incrementAndGet();
+				}
+			}
+		}
+	}
+}
@@ -45,7 +45,7 @@ class ServerPersistable implements GearmanPersistable {
 		this.data = job.getData().clone();
 		this.jobHandle = job.getJobHandle().getBytes();
 		this.uniqueID = job.getUniqueID().getBytes();
-		this.epoch = 0;
+		this.epoch = job.getEpoch();
 		this.priority = job.getPriority();
 	}
 	
@@ -42,6 +42,7 @@ import org.gearman.impl.core.GearmanConnection.SendCallbackResult;
 import org.gearman.impl.core.GearmanConnectionHandler;
 import org.gearman.impl.core.GearmanConnectionManager.ConnectCallbackResult;
 import org.gearman.impl.core.GearmanPacket;
+import org.gearman.impl.core.PacketTracer;
 import org.gearman.impl.server.GearmanServerInterface;
 import org.gearman.impl.util.ByteArray;
 import org.gearman.impl.util.GearmanUtils;
@@ -270,7 +271,7 @@ public abstract class AbstractConnectionController implements ConnectionControll
 	public boolean sendPacket(GearmanPacket packet, GearmanCallbackHandler<GearmanPacket, SendCallbackResult> callback) {
 		if(this.conn==null || conn.isClosed()) return false;
 		
-		LOGGER.info(GearmanUtils.toString(conn) + " : OUT : " + packet.getPacketType().toString());
+		PacketTracer.trace(this.conn, PacketTracer.OUT, packet);
 		this.conn.sendPacket(packet, callback==null? this.defaultCallback: new SendCallback(callback));
 		return true;
 	}
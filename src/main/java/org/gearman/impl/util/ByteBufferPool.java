@@ -0,0 +1,235 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.util;
+
+import java.nio.ByteBuffer;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A pool of direct {@link ByteBuffer}s.<br>
+ * <br>
+ * Buffers are grouped into size classes, the powers of two between the minimum and maximum
+ * class sizes. A lease is rounded up to the nearest class and served from that class's free
+ * list when possible. Returned buffers are retained up to a fixed number per class. Anything
+ * beyond that is left to the garbage collector.<br>
+ * <br>
+ * Leases larger than the maximum class size are not pooled. They are allocated on demand and
+ * ignored when released.
+ * 
+ * @author isaiah
+ */
+public final class ByteBufferPool {
+	
+	/** Lazily creates the shared pool from the context properties */
+	private static final class DefaultHolder {
+		private static final ByteBufferPool DEFAULT = new ByteBufferPool(1024, GearmanUtils.getBufferPoolMaxClassSize(), GearmanUtils.getBufferPoolRetainedPerClass());
+	}
+	
+	/**
+	 * Returns the pool shared by all connections
+	 * @return
+	 * 		The shared pool
+	 */
+	public static final ByteBufferPool getDefault() {
+		return DefaultHolder.DEFAULT;
+	}
+	
+	private final int minShift;
+	private final int maxClassSize;
+	private final int retainedPerClass;
+	
+	private final Queue<ByteBuffer>[] free;
+	private final AtomicInteger[] freeCount;
+	
+	private final AtomicLong leased = new AtomicLong();
+	private final AtomicLong reused = new AtomicLong();
+	private final AtomicLong allocated = new AtomicLong();
+	private final AtomicLong unpooled = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong discarded = new AtomicLong();
+	
+	/**
+	 * Creates a new pool
+	 * @param minClassSize
+	 * 		The smallest size class. Must be a power of two
+	 * @param maxClassSize
+	 * 		The largest size class. Must be a power of two, no smaller than the minimum
+	 * @param retainedPerClass
+	 * 		The maximum number of free buffers held in each size class
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public ByteBufferPool(final int minClassSize, final int maxClassSize, final int retainedPerClass) {
+		if(Integer.bitCount(minClassSize)!=1 || Integer.bitCount(maxClassSize)!=1) throw new IllegalArgumentException("class sizes must be powers of two");
+		if(maxClassSize<minClassSize) throw new IllegalArgumentException("maximum class size is less then the minimum");
+		if(retainedPerClass<0) throw new IllegalArgumentException("negative retention");
+		
+		this.minShift = Integer.numberOfTrailingZeros(minClassSize);
+		this.maxClassSize = maxClassSize;
+		this.retainedPerClass = retainedPerClass;
+		
+		final int classes = Integer.numberOfTrailingZeros(maxClassSize) - this.minShift + 1;
+		this.free = new Queue[classes];
+		this.freeCount = new AtomicInteger[classes];
+		for(int i=0; i<classes; i++) {
+			this.free[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			this.freeCount[i] = new AtomicInteger();
+		}
+	}
+	
+	/**
+	 * Leases a cleared buffer with at least the given capacity. The buffer should be given back
+	 * with {@link #release(ByteBuffer)} once it's no longer used
+	 * @param capacity
+	 * 		The minimum capacity
+	 * @return
+	 * 		A cleared direct buffer
+	 */
+	public final ByteBuffer lease(final int capacity) {
+		this.leased.incrementAndGet();
+		
+		if(capacity>this.maxClassSize) {
+			this.unpooled.incrementAndGet();
+			return ByteBuffer.allocateDirect(capacity);
+		}
+		
+		final int index = this.indexOf(capacity);
+		final ByteBuffer buffer = this.free[index].poll();
+		if(buffer!=null) {
+			this.freeCount[index].decrementAndGet();
+			this.reused.incrementAndGet();
+			return buffer;
+		}
+		
+		this.allocated.incrementAndGet();
+		return ByteBuffer.allocateDirect(this.capacityOf(capacity));
+	}
+	
+	/**
+	 * Returns the capacity of a buffer leased for the given size
+	 * @param size
+	 * 		The requested capacity
+	 * @return
+	 * 		The size class the request falls in, or the size itself if it's not pooled
+	 */
+	public final int capacityOf(final int size) {
+		if(size>this.maxClassSize) return size;
+		return 1<<(this.indexOf(size)+this.minShift);
+	}
+	
+	/**
+	 * Gives a leased buffer back to the pool. Buffers that do not belong to a size class are
+	 * ignored. The caller must not use the buffer after it's released
+	 * @param buffer
+	 * 		The buffer to release
+	 */
+	public final void release(final ByteBuffer buffer) {
+		if(!this.isPooled(buffer)) return;
+		
+		final int index = this.indexOf(buffer.capacity());
+		if(this.freeCount[index].incrementAndGet()>this.retainedPerClass) {
+			this.freeCount[index].decrementAndGet();
+			this.discarded.incrementAndGet();
+			return;
+		}
+		
+		buffer.clear();
+		this.free[index].offer(buffer);
+		this.released.incrementAndGet();
+	}
+	
+	/**
+	 * Tests if the given buffer belongs to one of this pool's size classes
+	 * @param buffer
+	 * 		The buffer to test
+	 * @return
+	 * 		<code>true</code> if the buffer can be returned to this pool
+	 */
+	public final boolean isPooled(final ByteBuffer buffer) {
+		final int capacity = buffer.capacity();
+		return buffer.isDirect() && !buffer.isReadOnly()
+				&& Integer.bitCount(capacity)==1
+				&& capacity>=(1<<this.minShift) && capacity<=this.maxClassSize;
+	}
+	
+	/**
+	 * Returns the largest size class. Leases above this size are not pooled
+	 * @return
+	 * 		The largest size class
+	 */
+	public final int getMaxClassSize() {
+		return this.maxClassSize;
+	}
+	
+	/** @return The number of leases made */
+	public final long getLeaseCount() {
+		return this.leased.get();
+	}
+	
+	/** @return The number of leases served from a free list */
+	public final long getReuseCount() {
+		return this.reused.get();
+	}
+	
+	/** @return The number of pooled buffers allocated */
+	public final long getAllocationCount() {
+		return this.allocated.get();
+	}
+	
+	/** @return The number of leases above the maximum class size */
+	public final long getUnpooledCount() {
+		return this.unpooled.get();
+	}
+	
+	/** @return The number of buffers returned to a free list */
+	public final long getReleaseCount() {
+		return this.released.get();
+	}
+	
+	/** @return The number of released buffers dropped because their free list was full */
+	public final long getDiscardCount() {
+		return this.discarded.get();
+	}
+	
+	@Override
+	public final String toString() {
+		return "leased=" + this.getLeaseCount()
+				+ " reused=" + this.getReuseCount()
+				+ " allocated=" + this.getAllocationCount()
+				+ " unpooled=" + this.getUnpooledCount()
+				+ " released=" + this.getReleaseCount()
+				+ " discarded=" + this.getDiscardCount();
+	}
+	
+	private final int indexOf(final int capacity) {
+		if(capacity<=(1<<this.minShift)) return 0;
+		return (32-Integer.numberOfLeadingZeros(capacity-1)) - this.minShift;
+	}
+}
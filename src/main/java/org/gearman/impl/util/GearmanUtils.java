@@ -30,6 +30,7 @@ package org.gearman.impl.util;
 import java.net.InetSocketAddress;
 import java.nio.charset.Charset;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.gearman.context.GearmanContext;
 import org.gearman.impl.core.GearmanConnection;
@@ -47,7 +48,16 @@ public class GearmanUtils {
 	public static final String toString(GearmanConnection<?> conn) {
 		if(conn==null)
 			System.out.println("error");
-		return "["+conn.getHostAddress() + ":" + conn.getPort() +"]";
+		return "["+conn.getHostAddress() + ":" + conn.getPort() + " #" + conn.getConnectionId() +"]";
+	}
+	
+	private static final AtomicInteger connectionIds = new AtomicInteger(0);
+	
+	/**
+	 * Returns a new connection id. Ids are unique within the JVM until the counter wraps
+	 */
+	public static final int nextConnectionId() {
+		return connectionIds.incrementAndGet();
 	}
 	
 	public static final byte[] createUID() {
@@ -78,6 +88,94 @@ public class GearmanUtils {
 		return (Charset) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_CHARSET);
 	}
 	
+	public static final boolean isReadAhead() {
+		return (Boolean) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_READ_AHEAD);
+	}
+	
+	public static final int getReadAheadBufferSize() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_READ_AHEAD_BUFFER_SIZE);
+	}
+	
+	public static final int getWriteBatchSize() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_WRITE_BATCH_SIZE);
+	}
+	
+	public static final int getBufferPoolMaxClassSize() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_BUFFER_POOL_MAX_CLASS_SIZE);
+	}
+	
+	public static final int getBufferPoolRetainedPerClass() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_BUFFER_POOL_RETAINED_PER_CLASS);
+	}
+	
+	public static final int getStreamThreshold() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_STREAM_THRESHOLD);
+	}
+	
+	public static final boolean isSelectorReactor() {
+		return (Boolean) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_SELECTOR_REACTOR);
+	}
+	
+	public static final int getSelectorThreads() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_SELECTOR_THREADS);
+	}
+	
+	public static final long getFunctionIdleTimeout() {
+		return (Long) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_FUNCTION_IDLE_TIMEOUT);
+	}
+	
+	public static final boolean isTrace() {
+		return (Boolean) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_TRACE);
+	}
+	
+	public static final int getTraceSampleRate() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_TRACE_SAMPLE_RATE);
+	}
+	
+	public static final int getTraceBufferSize() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_TRACE_BUFFER_SIZE);
+	}
+	
+	public static final String getTraceFile() {
+		return (String) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_TRACE_FILE);
+	}
+	
+	public static final int getJobTimeoutAttempts() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_JOB_TIMEOUT_ATTEMPTS);
+	}
+	
+	public static final int getPersistenceQueueSize() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_PERSISTENCE_QUEUE_SIZE);
+	}
+	
+	public static final boolean isPersistenceAckDurable() {
+		return (Boolean) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_PERSISTENCE_ACK_DURABLE);
+	}
+	
+	public static final long getSnapshotInterval() {
+		return (Long) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_SNAPSHOT_INTERVAL);
+	}
+	
+	public static final long getSpillHeapBudget() {
+		return (Long) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_SPILL_HEAP_BUDGET);
+	}
+	
+	public static final String getSpillDirectory() {
+		return (String) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_SPILL_DIRECTORY);
+	}
+	
+	public static final String getGrabPolicy() {
+		return (String) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_GRAB_POLICY);
+	}
+	
+	public static final int getWriteHighWatermark() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_WRITE_HIGH_WATERMARK);
+	}
+	
+	public static final int getWriteLowWatermark() {
+		return (Integer) GearmanContext.getAttribute(GearmanContext.ATTRIBUTE_WRITE_LOW_WATERMARK);
+	}
+	
 	public static final String getJobHandlePrefix() {
 		return GearmanContext.getProperty(GearmanContext.PROPERTY_JOB_HANDLE_PREFIX);
 	}
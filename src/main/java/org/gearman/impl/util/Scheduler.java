@@ -185,7 +185,7 @@ public class Scheduler implements ScheduledExecutorService {
 		
 		public final int compareTo(final ScheduledFutureTask<?> o) {
 			if(time-o.time < 0) 
-				return 1;
+				return -1;
 			else if (time-o.time == 0) 
 				return 0;
 			else 
@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.util;
+
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A keyed lock that maps each key's hash code onto a fixed set of locks.<br>
+ * <br>
+ * Threads locking keys with different hash codes usually take different locks, so
+ * they don't contend on a shared monitor. Keys whose hash codes map to the same
+ * stripe share a lock, which only costs some concurrency, never correctness.
+ * Releasing a stripe wakes a single waiting thread rather than every waiting thread.<br>
+ * <br>
+ * The locks are private to this object, so an embedding program can't interfere
+ * with them by synchronizing on the same values.
+ * 
+ * @author isaiah
+ */
+public class StripedLock {
+	
+	/** The locks. The length is a power of two */
+	private final ReentrantLock[] stripes;
+	
+	/**
+	 * Creates a striped lock with four stripes per available processor, and at least 16
+	 */
+	public StripedLock() {
+		this(Math.max(16, Runtime.getRuntime().availableProcessors()*4));
+	}
+	
+	/**
+	 * Creates a striped lock
+	 * @param stripes
+	 * 		The minimum number of stripes. Rounded up to a power of two
+	 */
+	public StripedLock(final int stripes) {
+		if(stripes<1) throw new IllegalArgumentException("stripes must be positive: " + stripes);
+		
+		int size = 1;
+		while(size<stripes) size <<= 1;
+		
+		this.stripes = new ReentrantLock[size];
+		for(int i=0; i<size; i++) {
+			this.stripes[i] = new ReentrantLock();
+		}
+	}
+	
+	/**
+	 * Acquires the lock for the given hash code, blocking until it is available.
+	 * Interrupts are ignored while waiting.
+	 * 
+	 * @param hash
+	 * 		The key's hash code
+	 */
+	public final void lock(final int hash) {
+		this.stripe(hash).lock();
+	}
+	
+	/**
+	 * Acquires the lock for the given hash code only if it is free at the time of
+	 * invocation
+	 * 
+	 * @param hash
+	 * 		The key's hash code
+	 * @return
+	 * 		true if the lock was acquired, false if the lock was not acquired
+	 */
+	public final boolean tryLock(final int hash) {
+		return this.stripe(hash).tryLock();
+	}
+	
+	/**
+	 * Releases the lock for the given hash code
+	 * 
+	 * @param hash
+	 * 		The key's hash code
+	 * @throws IllegalMonitorStateException
+	 * 		If the calling thread does not hold the lock
+	 */
+	public final void unlock(final int hash) {
+		this.stripe(hash).unlock();
+	}
+	
+	private final ReentrantLock stripe(final int hash) {
+		// Spread the high bits, since many hash codes differ only there
+		final int h = hash ^ (hash>>>16);
+		return this.stripes[h & (this.stripes.length-1)];
+	}
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2012, Isaiah van der Elst (isaiah.v@comcast.net)
+ * All rights reserved.
+ * 
+ * Redistribution and use in source and binary forms, with or without
+ * modification, are permitted provided that the following conditions are met:
+ * 
+ * - Redistributions of source code must retain the above copyright notice,
+ *   this list of conditions and the following disclaimer.
+ *   
+ * - Redistributions in binary form must reproduce the above copyright notice,
+ *   this list of conditions and the following disclaimer in the documentation
+ *   and/or other materials provided with the distribution.
+ *   
+ * THIS SOFTWARE IS PROVIDED BY THE COPYRIGHT HOLDERS AND CONTRIBUTORS "AS IS"
+ * AND ANY EXPRESS OR IMPLIED WARRANTIES, INCLUDING, BUT NOT LIMITED TO, THE
+ * IMPLIED WARRANTIES OF MERCHANTABILITY AND FITNESS FOR A PARTICULAR PURPOSE
+ * ARE DISCLAIMED. IN NO EVENT SHALL THE COPYRIGHT HOLDER OR CONTRIBUTORS BE
+ * LIABLE FOR ANY DIRECT, INDIRECT, INCIDENTAL, SPECIAL, EXEMPLARY, OR
+ * CONSEQUENTIAL DAMAGES (INCLUDING, BUT NOT LIMITED TO, PROCUREMENT OF
+ * SUBSTITUTE GOODS OR SERVICES; LOSS OF USE, DATA, OR PROFITS; OR BUSINESS
+ * INTERRUPTION) HOWEVER CAUSED AND ON ANY THEORY OF LIABILITY, WHETHER IN
+ * CONTRACT, STRICT LIABILITY, OR TORT (INCLUDING NEGLIGENCE OR OTHERWISE)
+ * ARISING IN ANY WAY OUT OF THE USE OF THIS SOFTWARE, EVEN IF ADVISED OF THE
+ * POSSIBILITY OF SUCH DAMAGE.
+ */
+
+package org.gearman.impl.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A hierarchical timing wheel. Values are scheduled for a deadline, in milliseconds since
+ * the epoch, and returned by {@link #advance(long)} once the deadline has passed.<br>
+ * <br>
+ * Time is divided into ticks. The wheel has four levels of 256 slots: the first level
+ * holds deadlines less than 256 ticks away, and each higher level covers 256 times the
+ * span of the level below. As time advances, the slots of the higher levels are
+ * cascaded down into the lower ones. Scheduling and cancelling are constant-time, and
+ * advancing costs one slot visit per elapsed tick plus one move per cascaded value.
+ * Deadlines beyond the top level are parked in its furthest slot and re-filed as they
+ * come closer.<br>
+ * <br>
+ * Values are never returned before their deadline, but may be returned up to one tick
+ * after it.
+ * 
+ * @author isaiah
+ * @param <T> The type of value scheduled
+ */
+public class TimingWheel<T> {
+	
+	private static final int LEVELS = 4;
+	private static final int SLOT_BITS = 8;
+	private static final int SLOTS = 1<<SLOT_BITS;
+	private static final int SLOT_MASK = SLOTS-1;
+	
+	/**
+	 * A scheduled value. Used to cancel the value before it expires
+	 * @param <T> The type of value scheduled
+	 */
+	public static final class Timeout<T> {
+		private final T value;
+		private final long deadline;
+		private final long tick;
+		
+		private Timeout<T> prev, next;
+		
+		private Timeout(final T value, final long deadline, final long tick) {
+			this.value = value;
+			this.deadline = deadline;
+			this.tick = tick;
+		}
+		
+		/** Creates a slot's sentinel */
+		private Timeout() {
+			this.value = null;
+			this.deadline = 0;
+			this.tick = 0;
+			this.prev = this.next = this;
+		}
+		
+		/**
+		 * Returns the scheduled value
+		 */
+		public final T getValue() {
+			return this.value;
+		}
+		
+		/**
+		 * Returns the deadline, in milliseconds since the epoch
+		 */
+		public final long getDeadline() {
+			return this.deadline;
+		}
+		
+		private final boolean isLinked() {
+			return this.next!=null;
+		}
+		
+		private final void linkBefore(final Timeout<T> sentinel) {
+			this.next = sentinel;
+			this.prev = sentinel.prev;
+			sentinel.prev.next = this;
+			sentinel.prev = this;
+		}
+		
+		private final void unlink() {
+			this.prev.next = this.next;
+			this.next.prev = this.prev;
+			this.prev = this.next = null;
+		}
+	}
+	
+	private final long tickMillis;
+	private final long origin;
+	
+	/** The slots of each level. Each slot is a circular list with a sentinel */
+	private final Timeout<T>[][] wheels;
+	/** Values whose deadline had passed when they were scheduled */
+	private final Timeout<T> overdue = new Timeout<T>();
+	
+	/** The last tick processed */
+	private long current = 0;
+	/** The number of scheduled values */
+	private int size = 0;
+	
+	/**
+	 * Creates a timing wheel
+	 * @param tickMillis
+	 * 		The length of a tick, in milliseconds
+	 */
+	@SuppressWarnings({"unchecked","rawtypes"})
+	public TimingWheel(final long tickMillis) {
+		if(tickMillis<1) throw new IllegalArgumentException("tick must be positive: " + tickMillis);
+		
+		this.tickMillis = tickMillis;
+		this.origin = System.currentTimeMillis();
+		
+		this.wheels = new Timeout[LEVELS][SLOTS];
+		for(int level=0; level<LEVELS; level++) {
+			for(int slot=0; slot<SLOTS; slot++) {
+				this.wheels[level][slot] = new Timeout<T>();
+			}
+		}
+	}
+	
+	/**
+	 * Returns the length of a tick, in milliseconds
+	 */
+	public final long getTickMillis() {
+		return this.tickMillis;
+	}
+	
+	/**
+	 * Returns the number of values scheduled
+	 */
+	public final synchronized int size() {
+		return this.size;
+	}
+	
+	/**
+	 * Schedules a value
+	 * @param value
+	 * 		The value to schedule
+	 * @param deadline
+	 * 		The time, in milliseconds since the epoch, after which the value is returned by
+	 * 		{@link #advance(long)}
+	 * @return
+	 * 		The timeout, which can be used to cancel the value
+	 */
+	public final synchronized Timeout<T> schedule(final T value, final long deadline) {
+		// Round up, so the value never expires early
+		final long offset = deadline - this.origin;
+		final long tick = offset<=0? 0: (offset + this.tickMillis - 1) / this.tickMillis;
+		
+		final Timeout<T> timeout = new Timeout<T>(value, deadline, tick);
+		this.file(timeout);
+		this.size++;
+		return timeout;
+	}
+	
+	/**
+	 * Cancels a scheduled value
+	 * @param timeout
+	 * 		The timeout returned when the value was scheduled
+	 * @return
+	 * 		true if the value was cancelled, false if it had already expired or been cancelled
+	 */
+	public final synchronized boolean cancel(final Timeout<T> timeout) {
+		if(!timeout.isLinked()) return false;
+		
+		timeout.unlink();
+		this.size--;
+		return true;
+	}
+	
+	/**
+	 * Advances the wheel to the given time and removes the values that have expired
+	 * @param now
+	 * 		The current time in milliseconds since the epoch
+	 * @return
+	 * 		The expired values, in no particular order
+	 */
+	public final synchronized List<T> advance(final long now) {
+		final long target = (now - this.origin) / this.tickMillis;
+		if(this.size==0) {
+			if(target>this.current) this.current = target;
+			return Collections.emptyList();
+		}
+		
+		final List<T> expired = new ArrayList<T>();
+		this.drain(this.overdue, expired);
+		
+		while(this.current<target && this.size>expired.size()) {
+			final long tick = ++this.current;
+			
+			// Cascade the higher levels whose slot comes due at this tick
+			for(int level=1; level<LEVELS; level++) {
+				if((tick & ((1L<<(SLOT_BITS*level))-1))!=0) break;
+				this.cascade(this.wheels[level][(int)(tick>>>(SLOT_BITS*level)) & SLOT_MASK]);
+			}
+			
+			this.drain(this.wheels[0][(int)tick & SLOT_MASK], expired);
+			// Cascaded values due at this tick were filed as overdue
+			this.drain(this.overdue, expired);
+		}
+		if(this.current<target) this.current = target;
+		
+		this.size -= expired.size();
+		return expired;
+	}
+	
+	/**
+	 * Places a timeout in the slot for its deadline
+	 */
+	private final void file(final Timeout<T> timeout) {
+		final long delta = timeout.tick - this.current;
+		if(delta<=0) {
+			timeout.linkBefore(this.overdue);
+			return;
+		}
+		
+		for(int level=0; level<LEVELS; level++) {
+			if(delta < (1L<<(SLOT_BITS*(level+1)))) {
+				timeout.linkBefore(this.wheels[level][(int)(timeout.tick>>>(SLOT_BITS*level)) & SLOT_MASK]);
+				return;
+			}
+		}
+		
+		// Too far away for the wheel. Park it in the top level's last slot before now
+		final int top = LEVELS-1;
+		final int slot = (int)((this.current>>>(SLOT_BITS*top)) - 1) & SLOT_MASK;
+		timeout.linkBefore(this.wheels[top][slot]);
+	}
+	
+	private final void cascade(final Timeout<T> sentinel) {
+		Timeout<T> t = sentinel.next;
+		while(t!=sentinel) {
+			final Timeout<T> next = t.next;
+			t.unlink();
+			this.file(t);
+			t = next;
+		}
+	}
+	
+	private final void drain(final Timeout<T> sentinel, final List<T> expired) {
+		Timeout<T> t = sentinel.next;
+		while(t!=sentinel) {
+			final Timeout<T> next = t.next;
+			t.unlink();
+			expired.add(t.value);
+			t = next;
+		}
+	}
+}
@@ -35,6 +35,7 @@ import org.gearman.impl.core.GearmanConnection;
 import org.gearman.impl.core.GearmanPacket;
 import org.gearman.impl.core.GearmanConnection.SendCallbackResult;
 import org.gearman.impl.core.GearmanPacket.Magic;
+import org.gearman.impl.core.PacketTracer;
 import org.gearman.impl.data.GearmanJob;
 import org.gearman.impl.server.GearmanServerInterface;
 import org.gearman.impl.serverpool.AbstractConnectionController;
@@ -249,7 +250,7 @@ abstract class WorkerConnectionController extends AbstractConnectionController {
 	
 	@Override
 	public void onPacketReceived(GearmanPacket packet, GearmanConnection<Object> conn) {
-		LOGGER.info(GearmanUtils.toString(conn)+ " : IN : " + packet.getPacketType());
+		PacketTracer.trace(conn, PacketTracer.IN, packet);
 		
 		switch (packet.getPacketType()) {
 		case NOOP: